@@ -0,0 +1,31 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this module and always attaches the {@link GCProfiler} such that allocation regressions,
+ * for example of lookup keys or weak keys, are visible as {@code gc.alloc.rate.norm}. Any JMH command line option
+ * is supported. Additionally, the {@code threads} system property accepts a comma-separated list of thread counts,
+ * for example {@code -Dthreads=1,2,4,8}, where the benchmarks are run once for each count.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        String threads = System.getProperty("threads");
+        if (threads == null) {
+            new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+        } else {
+            for (String count : threads.split(",")) {
+                new Runner(new OptionsBuilder()
+                        .parent(options)
+                        .threads(Integer.parseInt(count.trim()))
+                        .addProfiler(GCProfiler.class)
+                        .build()).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.DetachedThreadLocal;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and transferring values of a {@link DetachedThreadLocal}. Values are transferred between the
+ * benchmark thread and a thread that is kept alive for the duration of the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DetachedThreadLocalBenchmark {
+
+    @Param({"INLINE", "MANUAL"})
+    public DetachedThreadLocal.Cleaner cleaner;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private DetachedThreadLocal<Object> threadLocal;
+
+    private Thread other;
+
+    @Setup
+    public void setup() {
+        threadLocal = new DetachedThreadLocal<Object>(cleaner, false, compact) {
+            @Override
+            protected Object initialValue(Thread thread) {
+                return new Object();
+            }
+        };
+        other = new Thread();
+        threadLocal.define(other, new Object());
+    }
+
+    @Benchmark
+    public Object get() {
+        return threadLocal.get();
+    }
+
+    @Benchmark
+    public Object pushTo() {
+        return threadLocal.pushTo(other);
+    }
+
+    @Benchmark
+    public Object fetchFrom() {
+        return threadLocal.fetchFrom(other);
+    }
+}
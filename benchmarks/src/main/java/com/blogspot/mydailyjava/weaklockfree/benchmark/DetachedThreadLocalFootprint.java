@@ -0,0 +1,106 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.DetachedThreadLocal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * <p>
+ * Measures the retained heap per thread and the backlog of stale entries of a {@link DetachedThreadLocal} for a large
+ * number of threads. If the current VM supports virtual threads, virtual threads are used. The number of threads is
+ * set by the {@code count} system property, for example:
+ * </p>
+ * <pre>
+ * java -Dcount=1000000 -cp benchmarks/target/benchmarks.jar com.blogspot.mydailyjava.weaklockfree.benchmark.DetachedThreadLocalFootprint
+ * </pre>
+ * <p>
+ * The heap per thread is the difference of the used heap after defining a value for every thread, where all threads share
+ * the same value. The backlog is the number of entries after all threads were collected, sampled once per interval
+ * until all stale entries are removed.
+ * </p>
+ */
+public class DetachedThreadLocalFootprint {
+
+    private static final Object VALUE = new Object();
+
+    private static volatile Object reachable;
+
+    public static void main(String[] args) throws Exception {
+        int count = Integer.getInteger("count", 1000000);
+        boolean virtual = isVirtualThreadAvailable();
+        System.out.printf("threads=%d, virtual=%b%n", count, virtual);
+        for (DetachedThreadLocal.Cleaner cleaner : new DetachedThreadLocal.Cleaner[]{
+                DetachedThreadLocal.Cleaner.INLINE,
+                DetachedThreadLocal.Cleaner.THREAD,
+                DetachedThreadLocal.Cleaner.SHARED}) {
+            for (boolean compact : new boolean[]{false, true}) {
+                measure(new DetachedThreadLocal<Object>(cleaner, false, compact), cleaner, compact, count, virtual);
+            }
+        }
+    }
+
+    private static void measure(DetachedThreadLocal<Object> threadLocal,
+                                DetachedThreadLocal.Cleaner cleaner,
+                                boolean compact,
+                                int count,
+                                boolean virtual) throws Exception {
+        Thread[] threads = new Thread[count];
+        for (int index = 0; index < count; index++) {
+            threads[index] = newThread(virtual);
+        }
+        reachable = threads; // the threads must not be collected before measuring
+        long before = usedHeap();
+        for (Thread thread : threads) {
+            threadLocal.define(thread, VALUE);
+        }
+        long after = usedHeap();
+        reachable = threads = null;
+        System.gc();
+        StringBuilder backlog = new StringBuilder();
+        long started = System.nanoTime();
+        int size;
+        do {
+            Thread.sleep(100L);
+            for (int index = 0; index < 1024; index++) {
+                threadLocal.get(); // drives inlined expunction
+            }
+            size = threadLocal.getBackingMap().approximateSize();
+            backlog.append(backlog.length() == 0 ? "" : ",").append(size);
+        } while (size > 0 && System.nanoTime() - started < 30000000000L);
+        System.out.printf("cleaner=%s, compact=%b: %.1f bytes/thread, backlog per 100ms=[%s]%n",
+                cleaner,
+                compact,
+                (after - before) / (double) count,
+                backlog);
+        threadLocal.close();
+    }
+
+    private static boolean isVirtualThreadAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ignored) {
+            return false;
+        }
+    }
+
+    private static Thread newThread(boolean virtual) throws Exception {
+        if (!virtual) {
+            return new Thread();
+        }
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        return (Thread) unstarted.invoke(builder, (Runnable) () -> {
+            /* empty */
+        });
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int index = 0; index < 3; index++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,72 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the expunction modes of a {@link WeakConcurrentMap} under steady garbage collection churn where every
+ * invocation inserts a key that is immediately eligible for garbage collection and then reads a live key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpunctionBenchmark {
+
+    private static final int LIVE = 1024;
+
+    @Param({"INLINE", "AMORTIZED", "THREAD"})
+    public String mode;
+
+    private WeakConcurrentMap<Object, Object> map;
+
+    private Object[] keys;
+
+    private final Object value = new Object();
+
+    @Setup
+    public void setup() {
+        if (mode.equals("INLINE")) {
+            map = new WeakConcurrentMap.WithInlinedExpunction<Object, Object>();
+        } else if (mode.equals("AMORTIZED")) {
+            map = new WeakConcurrentMap.WithAmortizedExpunction<Object, Object>();
+        } else if (mode.equals("THREAD")) {
+            map = new WeakConcurrentMap<Object, Object>(true);
+        } else {
+            throw new AssertionError();
+        }
+        keys = new Object[LIVE];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+            map.put(keys[index], value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Thread thread = map.getCleanerThread();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Position {
+
+        private int index;
+
+        int next() {
+            return index = (index + 1) & (LIVE - 1);
+        }
+    }
+
+    @Benchmark
+    public Object churn(Position position) {
+        map.put(new Object(), value);
+        return map.get(keys[position.next()]);
+    }
+}
@@ -0,0 +1,86 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Compares the referent of weak references by dereferencing them ({@code get}) and by {@code Reference#refersTo} as
+ * it is used by the keys and entries of this library on Java 16 or later. Every second reference refers to the probed
+ * object such that both outcomes of a comparison are measured. This benchmark requires Java 16 or later and is most
+ * meaningful with a concurrent collector, for example:
+ * </p>
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ReferenceComparisonBenchmark -jvmArgsAppend -XX:+UseZGC
+ * </pre>
+ * <p>
+ * The {@code WeakConcurrentMapBenchmark} shows the effect on lookups when run on the same VM with the multi-release
+ * jar of the library, compared to a jar that was built without the {@code java16.home} property.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ReferenceComparisonBenchmark {
+
+    private static final MethodHandle REFERS_TO = refersTo();
+
+    @Param({"1000", "1000000"})
+    public int size;
+
+    private Object[] keys;
+
+    private Reference<?>[] references;
+
+    private static MethodHandle refersTo() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Reference.class, "refersTo", MethodType.methodType(boolean.class, Object.class));
+        } catch (Exception exception) {
+            throw new IllegalStateException("Reference#refersTo requires Java 16 or later", exception);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        keys = new Object[size];
+        references = new Reference<?>[size];
+        for (int index = 0; index < size; index++) {
+            keys[index] = new Object();
+            references[index] = new WeakReference<Object>(index % 2 == 0 ? keys[index] : new Object());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Position {
+
+        private int index;
+
+        int next(int length) {
+            if (++index >= length) {
+                index = 0;
+            }
+            return index;
+        }
+    }
+
+    @Benchmark
+    public boolean get(Position position) {
+        int index = position.next(keys.length);
+        return references[index].get() == keys[index];
+    }
+
+    @Benchmark
+    public boolean refersTo(Position position) throws Throwable {
+        int index = position.next(keys.length);
+        return (boolean) REFERS_TO.invokeExact(references[index], keys[index]);
+    }
+}
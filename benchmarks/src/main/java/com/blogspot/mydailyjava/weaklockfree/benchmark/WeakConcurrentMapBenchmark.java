@@ -0,0 +1,118 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.AbstractWeakConcurrentMap;
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookup and update operations of a {@link WeakConcurrentMap} for different map sizes and configurations.
+ * Keys that are removed by a benchmark are reinserted by the same invocation such that the map's size remains stable.
+ * Run with {@code -t} to measure contention among multiple threads and with {@code -prof gc} to measure the allocation
+ * of updates of existing keys. Lookup keys are only used by a map that is backed by a concurrent hash map such that
+ * reusing lookup keys is only measured for this backing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class WeakConcurrentMapBenchmark {
+
+    @Param({"10", "1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"CONCURRENT_HASH_MAP_REUSED_KEYS", "CONCURRENT_HASH_MAP", "WEAK_HASH_TABLE"})
+    public Configuration configuration;
+
+    private WeakConcurrentMap<Object, Object> map;
+
+    private Object[] keys, absent;
+
+    private final Object value = new Object();
+
+    @Setup
+    public void setup() {
+        switch (configuration) {
+            case CONCURRENT_HASH_MAP_REUSED_KEYS:
+                map = new WeakConcurrentMap<Object, Object>(false, true, new ConcurrentHashMap<AbstractWeakConcurrentMap.WeakKey<Object>, Object>());
+                break;
+            case CONCURRENT_HASH_MAP:
+                map = new WeakConcurrentMap<Object, Object>(false, false, new ConcurrentHashMap<AbstractWeakConcurrentMap.WeakKey<Object>, Object>());
+                break;
+            case WEAK_HASH_TABLE:
+                map = new WeakConcurrentMap<Object, Object>(false, AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+                break;
+            default:
+                throw new AssertionError();
+        }
+        keys = new Object[size];
+        absent = new Object[Math.min(size, 1024)];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+            map.put(keys[index], value);
+        }
+        for (int index = 0; index < absent.length; index++) {
+            absent[index] = new Object();
+        }
+    }
+
+    public enum Configuration {
+        CONCURRENT_HASH_MAP_REUSED_KEYS,
+        CONCURRENT_HASH_MAP,
+        WEAK_HASH_TABLE
+    }
+
+    @State(Scope.Thread)
+    public static class Position {
+
+        private int index;
+
+        int next(int length) {
+            if (++index >= length) {
+                index = 0;
+            }
+            return index;
+        }
+    }
+
+    @Benchmark
+    public Object getHit(Position position) {
+        return map.get(keys[position.next(keys.length)]);
+    }
+
+    @Benchmark
+    public Object getMiss(Position position) {
+        return map.get(absent[position.next(absent.length)]);
+    }
+
+    @Benchmark
+    public Object put(Position position) {
+        return map.put(keys[position.next(keys.length)], value);
+    }
+
+    @Benchmark
+    public Object replace(Position position) {
+        return map.replace(keys[position.next(keys.length)], value);
+    }
+
+    @Benchmark
+    public Object putIfAbsent(Position position) {
+        return map.putIfAbsent(keys[position.next(keys.length)], value);
+    }
+
+    @Benchmark
+    public Object putIfProbablyAbsent(Position position) {
+        return map.putIfProbablyAbsent(keys[position.next(keys.length)], value);
+    }
+
+    @Benchmark
+    public Object removeAndPut(Position position) {
+        Object key = keys[position.next(keys.length)];
+        map.remove(key);
+        return map.put(key, value);
+    }
+}
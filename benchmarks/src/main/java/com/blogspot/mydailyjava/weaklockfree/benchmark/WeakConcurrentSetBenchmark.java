@@ -0,0 +1,70 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding present elements to and looking up elements of a {@link WeakConcurrentSet}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class WeakConcurrentSetBenchmark {
+
+    @Param({"10", "1000", "100000", "10000000"})
+    public int size;
+
+    @Param({"INLINE", "MANUAL"})
+    public WeakConcurrentSet.Cleaner cleaner;
+
+    private WeakConcurrentSet<Object> set;
+
+    private Object[] elements, absent;
+
+    @Setup
+    public void setup() {
+        set = new WeakConcurrentSet<Object>(cleaner);
+        elements = new Object[size];
+        absent = new Object[Math.min(size, 1024)];
+        for (int index = 0; index < elements.length; index++) {
+            elements[index] = new Object();
+            set.add(elements[index]);
+        }
+        for (int index = 0; index < absent.length; index++) {
+            absent[index] = new Object();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Position {
+
+        private int index;
+
+        int next(int length) {
+            if (++index >= length) {
+                index = 0;
+            }
+            return index;
+        }
+    }
+
+    @Benchmark
+    public boolean add(Position position) {
+        return set.add(elements[position.next(elements.length)]);
+    }
+
+    @Benchmark
+    public boolean containsHit(Position position) {
+        return set.contains(elements[position.next(elements.length)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss(Position position) {
+        return set.contains(absent[position.next(absent.length)]);
+    }
+}
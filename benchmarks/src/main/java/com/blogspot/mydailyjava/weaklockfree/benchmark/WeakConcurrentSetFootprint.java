@@ -0,0 +1,77 @@
+package com.blogspot.mydailyjava.weaklockfree.benchmark;
+
+import com.blogspot.mydailyjava.weaklockfree.AbstractWeakConcurrentMap;
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentSet;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * <p>
+ * Measures the retained heap per element of a {@link WeakConcurrentSet} and compares it to weak concurrent maps with
+ * {@link Boolean} values, as they would be used for tracking elements otherwise. The number of elements is set by the
+ * {@code count} system property, for example:
+ * </p>
+ * <pre>
+ * java -Dcount=10000000 -cp benchmarks/target/benchmarks.jar com.blogspot.mydailyjava.weaklockfree.benchmark.WeakConcurrentSetFootprint
+ * </pre>
+ * <p>
+ * The heap per element is the difference of the used heap before and after adding all elements, divided by their number.
+ * </p>
+ */
+public class WeakConcurrentSetFootprint {
+
+    private static volatile Object reachable;
+
+    public static void main(String[] args) throws Exception {
+        int count = Integer.getInteger("count", 1000000);
+        Object[] elements = new Object[count];
+        for (int index = 0; index < count; index++) {
+            elements[index] = new Object();
+        }
+        System.out.printf("elements=%d%n", count);
+        measure("set", elements, new Target() {
+            @Override
+            public Object fill(Object[] elements) {
+                WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.MANUAL);
+                for (Object element : elements) {
+                    set.add(element);
+                }
+                return set;
+            }
+        });
+        for (final AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            measure("map/" + backing, elements, new Target() {
+                @Override
+                public Object fill(Object[] elements) {
+                    WeakConcurrentMap<Object, Boolean> map = new WeakConcurrentMap<Object, Boolean>(false, backing);
+                    for (Object element : elements) {
+                        map.put(element, Boolean.TRUE);
+                    }
+                    return map;
+                }
+            });
+        }
+    }
+
+    private static void measure(String name, Object[] elements, Target target) throws Exception {
+        long before = usedHeap();
+        reachable = target.fill(elements); // the filled structure must not be collected before measuring
+        long after = usedHeap();
+        reachable = null;
+        System.out.printf("%s: %.1f bytes/element%n", name, (after - before) / (double) elements.length);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int index = 0; index < 3; index++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private interface Target {
+
+        Object fill(Object[] elements);
+    }
+}
@@ -2,12 +2,24 @@ package com.blogspot.mydailyjava.weaklockfree;
 
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * <p>
@@ -16,256 +28,1833 @@ import java.util.concurrent.ConcurrentMap;
  * </p>
  * This class does not implement the {@link Map} interface because this implementation is incompatible
  * with the map contract. While iterating over a map's entries, any key that has not passed iteration is referenced non-weakly.
+ * A map that is backed by a {@link Backing#WEAK_HASH_TABLE} can instead be {@linkplain #scan(long, int, EntryConsumer) scanned}
+ * in chunks without referencing any key between two chunks.
  */
-public abstract class AbstractWeakConcurrentMap<K, V, L> extends ReferenceQueue<K> implements Runnable, Iterable<Map.Entry<K, V>> {
+public abstract class AbstractWeakConcurrentMap<K, V, L> extends ReferenceQueue<K> implements Runnable, Iterable<Map.Entry<K, V>>, WeakCleaner.Cleanable {
 
     final ConcurrentMap<WeakKey<K>, V> target;
 
+    final WeakHashTable<K, WeakEntry<K, V>> table;
+
+    private final Strength keyStrength, valueStrength;
+
+    private final StatisticsCounter statistics;
+
+    private final RemovalListener<? super V> listener;
+
+    private final IdentityHasher<? super K> hasher;
+
+    private final ReferenceQueue<K>[] queues;
+
+    private int stripe; // rotates the queue that is polled first by a limited expunction, races are benign
+
+    private static final int BATCH = 256;
+
+    private static final int SAMPLE = 256;
+
+    private static final long IDLE_TIMEOUT = 100L;
+
+    static final boolean BULK_TRAVERSAL = isBulkTraversalAvailable();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractWeakConcurrentMap, ConcurrentMap> COMPUTATIONS = AtomicReferenceFieldUpdater.newUpdater(AbstractWeakConcurrentMap.class, ConcurrentMap.class, "computations");
+
+    private volatile ConcurrentMap<Computation, Computation> computations;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractWeakConcurrentMap, ConcurrentMap> LOADS = AtomicReferenceFieldUpdater.newUpdater(AbstractWeakConcurrentMap.class, ConcurrentMap.class, "loads");
+
+    private volatile ConcurrentMap<Loading, Load> loads;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AbstractWeakConcurrentMap> DRAINERS = AtomicIntegerFieldUpdater.newUpdater(AbstractWeakConcurrentMap.class, "drainers");
+
+    private volatile int drainers;
+
+    private static boolean isBulkTraversalAvailable() {
+        try {
+            Class.forName("java.util.Spliterator");
+            return true;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
+
     protected AbstractWeakConcurrentMap() {
         this(new ConcurrentHashMap<WeakKey<K>, V>());
     }
 
     /**
-     * @param target ConcurrentMap implementation that this class wraps.
+     * @param target ConcurrentMap implementation that this class wraps.
+     */
+    protected AbstractWeakConcurrentMap(ConcurrentMap<WeakKey<K>, V> target) {
+        this.target = target;
+        table = null;
+        keyStrength = Strength.WEAK;
+        valueStrength = Strength.STRONG;
+        statistics = null;
+        listener = null;
+        hasher = null;
+        queues = queues(1);
+    }
+
+    /**
+     * @param backing The data structure that backs this map.
+     */
+    protected AbstractWeakConcurrentMap(Backing backing) {
+        this(new WeakConcurrentMap.Builder().backing(backing));
+    }
+
+    /**
+     * Creates a map with the backing, the reference strengths, the statistics counter, the removal listener, the number
+     * of reference queues and the hasher that a builder configures. How stale entries are removed is determined by the
+     * subclass, and a builder's configuration of a cache is not applied by this map. If the builder configures several
+     * reference queues, stale entries of different queues can be removed concurrently by several threads where each
+     * thread that {@linkplain #run() runs} this map drains another queue. If the builder configures a hasher, a subclass
+     * that implements a lookup key must compute the lookup key's hash code by {@link #identityHashCode(Object)}.
+     *
+     * @param builder The builder that configures this map.
+     */
+    @SuppressWarnings("unchecked")
+    protected AbstractWeakConcurrentMap(WeakConcurrentMap.Builder builder) {
+        Backing backing = builder.resolveBacking();
+        if (builder.keyStrength == Strength.STRONG) {
+            throw new IllegalArgumentException("Keys cannot be referenced strongly");
+        } else if (backing == Backing.CONCURRENT_HASH_MAP && (builder.keyStrength != Strength.WEAK || builder.valueStrength != Strength.STRONG)) {
+            throw new IllegalArgumentException("Reference strengths other than weak keys and strong values require a weak hash table");
+        }
+        switch (backing) {
+            case CONCURRENT_HASH_MAP:
+                target = new ConcurrentHashMap<WeakKey<K>, V>();
+                table = null;
+                break;
+            case WEAK_HASH_TABLE:
+                target = null;
+                table = new WeakHashTable<K, WeakEntry<K, V>>();
+                break;
+            default:
+                throw new AssertionError();
+        }
+        keyStrength = builder.keyStrength;
+        valueStrength = builder.valueStrength;
+        statistics = builder.resolveStatistics();
+        listener = (RemovalListener<? super V>) builder.listener();
+        hasher = (IdentityHasher<? super K>) builder.hasher;
+        queues = queues(builder.referenceQueues);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReferenceQueue<K>[] queues(int count) {
+        ReferenceQueue<K>[] queues = (ReferenceQueue<K>[]) new ReferenceQueue<?>[count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1];
+        queues[0] = this;
+        for (int index = 1; index < queues.length; index++) {
+            queues[index] = new ReferenceQueue<K>();
+        }
+        return queues;
+    }
+
+    /**
+     * @param hash The key's hash as it is stored within an entry of the weak hash table.
+     * @return The reference queue of the key.
+     */
+    ReferenceQueue<K> queue(int hash) {
+        return queues[hash & (queues.length - 1)];
+    }
+
+    private WeakKey<K> newKey(K key) {
+        int hashCode = identityHashCode(key);
+        return new WeakKey<K>(key, hashCode, queues.length == 1 ? this : queue(WeakHashTable.spread(hashCode)));
+    }
+
+    /**
+     * Returns the hash code of a key as it is used by this map, which is the key's system hash code unless this map was
+     * created with an {@link IdentityHasher}. A lookup key must return this hash code.
+     *
+     * @param key The key to hash.
+     * @return The key's hash code.
+     */
+    protected final int identityHashCode(K key) {
+        return hasher == null ? System.identityHashCode(key) : hasher.hash(key);
+    }
+
+    /**
+     * @param key The key to hash.
+     * @return The key's hash code as it is stored within an entry of the weak hash table.
+     */
+    private int hash(K key) {
+        return hasher == null ? WeakHashTable.hash(key) : WeakHashTable.spread(hasher.hash(key));
+    }
+
+    /**
+     * Override with care as it can cause lookup failures if done incorrectly. The result must have
+     * the same {@link Object#hashCode()} as the input and be {@link Object#equals(Object) equal to}
+     * a weak reference of the key. When overriding this, also override {@link #resetLookupKey}.
+     */
+    protected abstract L getLookupKey(K key);
+
+    /**
+     * Resets any reusable state in the {@linkplain #getLookupKey lookup key}.
+     */
+    protected abstract void resetLookupKey(L lookupKey);
+
+    /**
+     * Binds a {@linkplain #getLookupKey lookup key} to another key when looking up several keys in a batch. By default,
+     * the lookup key is reset and a new lookup key is acquired. Override this to reuse a lookup key for all keys of a batch.
+     *
+     * @param lookupKey The lookup key that was used for the previous key of the batch.
+     * @param key       The next key of the batch.
+     * @return A lookup key for the supplied key.
+     */
+    protected L updateLookupKey(L lookupKey, K key) {
+        resetLookupKey(lookupKey);
+        return getLookupKey(key);
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The value of the entry or the default value if it did not exist.
+     */
+    public V get(K key) {
+        beforeAccess();
+        if (key == null) throw new NullPointerException();
+        V value = recordLookup(lookup(key));
+        return value == null ? insertDefaultValue(key) : value;
+    }
+
+    private V insertDefaultValue(K key) {
+        V value = defaultValue(key);
+        if (value != null) {
+            V previousValue = table != null
+                    ? insertIfAbsent(key, value)
+                    : target.putIfAbsent(newKey(key), value);
+            if (previousValue != null) {
+                value = previousValue;
+            }
+            if (statistics != null) {
+                statistics.recordDefaultValue(previousValue != null);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Looks up the values of several keys as if calling {@link #get(Object)} for each key, but with setting up any
+     * lookup state only once for the entire batch.
+     *
+     * @param keys   The keys of the entries.
+     * @param values An array to store the values of the entries or their default values in, by the keys' index.
+     * @return The number of keys that already defined a value.
+     */
+    public int getAll(K[] keys, V[] values) {
+        return getAll(Arrays.asList(keys), values);
+    }
+
+    /**
+     * Looks up the values of several keys as if calling {@link #get(Object)} for each key, but with setting up any
+     * lookup state only once for the entire batch.
+     *
+     * @param keys   The keys of the entries.
+     * @param values An array to store the values of the entries or their default values in, in the keys' iteration order.
+     * @return The number of keys that already defined a value.
+     */
+    public int getAll(Iterable<? extends K> keys, V[] values) {
+        beforeAccess();
+        int index = 0, hits = 0;
+        L lookupKey = null;
+        try {
+            for (K key : keys) {
+                if (key == null) throw new NullPointerException();
+                V value;
+                if (table != null) {
+                    value = WeakEntry.valueOf(onLookup(table.find(key, hash(key)), true));
+                } else {
+                    // the lookup key is rebound for every key as a default value might look up other keys
+                    lookupKey = lookupKey == null ? getLookupKey(key) : updateLookupKey(lookupKey, key);
+                    value = target.get(lookupKey);
+                }
+                if (value == null) {
+                    value = insertDefaultValue(key);
+                } else {
+                    hits++;
+                }
+                values[index++] = value;
+            }
+        } finally {
+            if (lookupKey != null) {
+                resetLookupKey(lookupKey);
+            }
+            if (statistics != null) {
+                statistics.recordHits(hits);
+                statistics.recordMisses(index - hits);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The value of the entry or null if it did not exist.
+     */
+    public V getIfPresent(K key) {
+        if (key == null) throw new NullPointerException();
+        return recordLookup(lookup(key));
+    }
+
+    private V lookup(K key) {
+        if (table != null) {
+            return WeakEntry.valueOf(onLookup(table.find(key, hash(key)), true));
+        }
+        L lookupKey = getLookupKey(key);
+        try {
+            return target.get(lookupKey);
+        } finally {
+            resetLookupKey(lookupKey);
+        }
+    }
+
+    /**
+     * Invoked for an entry of the weak hash table that was found for a key. If an entry is no longer valid, it must be
+     * removed from the table before this method returns.
+     *
+     * @param entry  The entry that was found or {@code null} if no entry was found.
+     * @param access {@code true} if the entry's value is read.
+     * @return The supplied entry or {@code null} if the entry is no longer valid.
+     */
+    WeakEntry<K, V> onLookup(WeakEntry<K, V> entry, boolean access) {
+        return entry;
+    }
+
+    private V recordLookup(V value) {
+        if (statistics != null) {
+            if (value == null) {
+                statistics.recordMisses(1);
+            } else {
+                statistics.recordHits(1);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return {@code true} if the key already defines a value.
+     */
+    public boolean containsKey(K key) {
+        beforeAccess();
+        if (key == null) throw new NullPointerException();
+        if (table != null) {
+            return WeakEntry.valueOf(onLookup(table.find(key, hash(key)), false)) != null;
+        }
+        L lookupKey = getLookupKey(key);
+        try {
+            return target.containsKey(lookupKey);
+        } finally {
+            resetLookupKey(lookupKey);
+        }
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous entry or {@code null} if it does not exist.
+     */
+    public V put(K key, V value) {
+        beforeAccess();
+        if (key == null || value == null) throw new NullPointerException();
+        return recordPut(insert(key, value));
+    }
+
+    private V insert(K key, V value) {
+        if (table != null) {
+            int hash = hash(key);
+            WeakEntry<K, V> entry = onLookup(table.find(key, hash), false);
+            while (true) {
+                if (entry == null) {
+                    WeakEntry<K, V> inserted = newEntry(key, hash, value);
+                    entry = table.insert(key, inserted);
+                    if (entry == null) {
+                        onWrite(inserted, null, value);
+                        return null;
+                    } else if ((entry = onLookup(entry, false)) == null) {
+                        continue;
+                    }
+                }
+                V previous = entry.replace(value, queue(hash));
+                if (previous != null) {
+                    onWrite(entry, previous, value);
+                    return previous;
+                }
+                entry = null;
+            }
+        }
+        V previous = replaceTarget(key, value);
+        return previous == null ? target.put(newKey(key), value) : previous;
+    }
+
+    /**
+     * Replaces the value of a key of the target map by a lookup key such that no weak key is allocated if the key is
+     * already contained. As a lookup key equals the weak key of its key, the target never stores the lookup key.
+     *
+     * @param key   The key of the entry.
+     * @param value The value to set.
+     * @return The replaced value or {@code null} if the target does not contain the key.
+     */
+    @SuppressWarnings("unchecked")
+    private V replaceTarget(K key, V value) {
+        L lookupKey = getLookupKey(key);
+        try {
+            return ((ConcurrentMap<Object, V>) (ConcurrentMap<?, V>) target).replace(lookupKey, value);
+        } finally {
+            resetLookupKey(lookupKey);
+        }
+    }
+
+    /**
+     * Replaces the value of a key only if the key already defines a value. Neither a weak reference to the key nor an
+     * entry is allocated by a replacement.
+     *
+     * @param key   The key of the entry.
+     * @param value The value to set.
+     * @return The replaced value or {@code null} if the key did not define a value.
+     */
+    public V replace(K key, V value) {
+        beforeAccess();
+        if (key == null || value == null) throw new NullPointerException();
+        V previous;
+        if (table != null) {
+            int hash = hash(key);
+            WeakEntry<K, V> entry = onLookup(table.find(key, hash), false);
+            previous = entry == null ? null : entry.replace(value, queue(hash));
+            if (previous != null) {
+                onWrite(entry, previous, value);
+            }
+        } else {
+            previous = replaceTarget(key, value);
+        }
+        if (statistics != null && previous != null) {
+            statistics.recordPuts(1);
+        }
+        return previous;
+    }
+
+    /**
+     * Sets the values of several entries as if calling {@link #put(Object, Object)} for each entry.
+     *
+     * @param entries The entries to set.
+     * @return The number of keys that did not define a value before.
+     */
+    public int putAll(Map<? extends K, ? extends V> entries) {
+        beforeAccess();
+        int count = 0, inserted = 0;
+        try {
+            for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                K key = entry.getKey();
+                V value = entry.getValue();
+                if (key == null || value == null) throw new NullPointerException();
+                if (insert(key, value) == null) {
+                    inserted++;
+                }
+                count++;
+            }
+        } finally {
+            if (statistics != null) {
+                statistics.recordPuts(count);
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Sets the same value for several keys as if calling {@link #put(Object, Object)} for each key.
+     *
+     * @param keys  The keys of the entries.
+     * @param value The value to set for each key.
+     * @return The number of keys that did not define a value before.
+     */
+    public int putAll(Iterable<? extends K> keys, V value) {
+        beforeAccess();
+        if (value == null) throw new NullPointerException();
+        int count = 0, inserted = 0;
+        try {
+            for (K key : keys) {
+                if (key == null) throw new NullPointerException();
+                if (insert(key, value) == null) {
+                    inserted++;
+                }
+                count++;
+            }
+        } finally {
+            if (statistics != null) {
+                statistics.recordPuts(count);
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Invoked after a value was set for a key of the weak hash table.
+     *
+     * @param entry    The entry of the key.
+     * @param previous The value that was replaced or {@code null} if the entry was inserted.
+     * @param value    The value that was set.
+     */
+    void onWrite(WeakEntry<K, V> entry, V previous, V value) {
+        // do nothing
+    }
+
+    private V recordPut(V previous) {
+        if (statistics != null) {
+            statistics.recordPuts(1);
+        }
+        return previous;
+    }
+
+    private V recordInsertion(V previous) {
+        if (statistics != null && previous == null) {
+            statistics.recordPuts(1);
+        }
+        return previous;
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous entry or {@code null} if it does not exist.
+     */
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        V previous = lookup(key);
+        if (previous != null) {
+            return previous;
+        }
+        return recordInsertion(table != null ? insertIfAbsent(key, value) : target.putIfAbsent(newKey(key), value));
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous entry or {@code null} if it does not exist.
+     */
+    public V putIfProbablyAbsent(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return recordInsertion(table != null ? insertIfAbsent(key, value) : target.putIfAbsent(newKey(key), value));
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The removed entry or {@code null} if it does not exist.
+     */
+    public V remove(K key) {
+        beforeAccess();
+        if (key == null) throw new NullPointerException();
+        if (table != null) {
+            WeakEntry<K, V> entry = table.find(key, hash(key));
+            if (entry == null) {
+                return null;
+            }
+            V value = entry.retireValue();
+            table.remove(entry); // the entry might not define a value if it references a collected value
+            return recordRemoval(value);
+        }
+        V value;
+        L lookupKey = getLookupKey(key);
+        try {
+            value = target.remove(lookupKey);
+        } finally {
+            resetLookupKey(lookupKey);
+        }
+        return recordRemoval(value);
+    }
+
+    /**
+     * Removes several keys as if calling {@link #remove(Object)} for each key, but with setting up any lookup state
+     * only once for the entire batch.
+     *
+     * @param keys The keys of the entries to remove.
+     * @return The number of keys that defined a value.
+     */
+    public int removeAll(Iterable<? extends K> keys) {
+        beforeAccess();
+        int removed = 0;
+        L lookupKey = null;
+        try {
+            for (K key : keys) {
+                if (key == null) throw new NullPointerException();
+                V value;
+                if (table != null) {
+                    WeakEntry<K, V> entry = table.find(key, hash(key));
+                    if (entry == null) {
+                        continue;
+                    }
+                    value = entry.retireValue();
+                    table.remove(entry);
+                } else {
+                    lookupKey = lookupKey == null ? getLookupKey(key) : updateLookupKey(lookupKey, key);
+                    value = target.remove(lookupKey);
+                }
+                if (recordRemoval(value) != null) {
+                    removed++;
+                }
+            }
+        } finally {
+            if (lookupKey != null) {
+                resetLookupKey(lookupKey);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all entries that match a predicate within a single sweep over this map. An entry is only removed if it
+     * still references the value that was tested by the predicate.
+     *
+     * @param predicate The predicate that determines if an entry is removed.
+     * @return The number of removed entries.
+     */
+    public int removeIf(EntryPredicate<? super K, ? super V> predicate) {
+        beforeAccess();
+        int removed = 0;
+        if (table != null) {
+            WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor = table.cursor();
+            while (cursor.advance()) {
+                WeakEntry<K, V> entry = cursor.entry();
+                V value = entry.value();
+                if (value != null && predicate.test(cursor.key(), value) && entry.retireValue(value)) {
+                    table.remove(entry);
+                    recordRemoval(value);
+                    removed++;
+                }
+            }
+        } else {
+            for (Map.Entry<WeakKey<K>, V> entry : target.entrySet()) {
+                K key = entry.getKey().get();
+                if (key != null && predicate.test(key, entry.getValue()) && target.remove(entry.getKey(), entry.getValue())) {
+                    recordRemoval(entry.getValue());
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private V recordRemoval(V previous) {
+        if (previous != null) {
+            if (statistics != null) {
+                statistics.recordRemovals(1);
+            }
+            if (listener != null) {
+                listener.onRemoval(previous, RemovalListener.Cause.EXPLICIT);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Clears the entire map.
+     */
+    public void clear() {
+        if (listener == null) {
+            if (table != null) {
+                table.clear();
+            } else {
+                target.clear();
+            }
+        } else if (table != null) {
+            WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor = table.cursor();
+            while (cursor.advance()) {
+                WeakEntry<K, V> entry = cursor.entry();
+                V value = entry.retireValue();
+                table.remove(entry);
+                if (value != null) {
+                    listener.onRemoval(value, RemovalListener.Cause.CLEARED);
+                }
+            }
+        } else {
+            for (Map.Entry<WeakKey<K>, V> entry : target.entrySet()) {
+                // stale entries are not removed such that their values are delivered once their keys are polled
+                if (!References.refersTo(entry.getKey(), null) && target.remove(entry.getKey(), entry.getValue())) {
+                    listener.onRemoval(entry.getValue(), RemovalListener.Cause.CLEARED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an entry of the weak hash table.
+     *
+     * @param key   The key of the entry.
+     * @param hash  The key's hash as it is stored within an entry of the weak hash table.
+     * @param value The value of the entry.
+     * @return An entry that references its key and value with this map's reference strengths.
+     */
+    WeakEntry<K, V> newEntry(K key, int hash, V value) {
+        switch (valueStrength) {
+            case STRONG:
+                return keyStrength == Strength.SOFT
+                        ? new SoftKeyEntry<K, V>(key, hash, queue(hash), value)
+                        : new WeakEntry<K, V>(key, hash, queue(hash), value);
+            case WEAK:
+            case SOFT:
+                return new ReferenceValueEntry<K, V>(key, hash, queue(hash), value, keyStrength == Strength.SOFT, valueStrength == Strength.SOFT);
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    /**
+     * Inserts a value for a key unless a value is already present without looking up the key first.
+     *
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The present value or {@code null} if the value was inserted.
+     */
+    private V insertIfAbsent(K key, V value) {
+        int hash = hash(key);
+        while (true) {
+            WeakEntry<K, V> inserted = newEntry(key, hash, value), entry = table.insert(key, inserted);
+            if (entry == null) {
+                onWrite(inserted, null, value);
+                return null;
+            } else if (onLookup(entry, false) == null) {
+                continue;
+            }
+            V previous = entry.value();
+            if (previous != null) {
+                return previous;
+            }
+            entry.clear(); // help completing a concurrent removal
+        }
+    }
+
+    /**
+     * Returns the value of a key or computes the value if the key does not define a value. The value of a key is computed
+     * at most once at a time, even if it is requested concurrently by multiple threads where any thread that requests a value
+     * of a key that is currently computed awaits the computation's result. If a computation fails, any awaiting thread attempts
+     * to compute the value itself. The computed value is only set if no value was set for the key during the computation.
+     *
+     * @param key    The key of the entry.
+     * @param loader The loader that computes the value if the key does not define a value.
+     * @return The value of the entry or the computed value, if the key did not define a value.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public V computeIfAbsent(K key, Loader<? super K, ? extends V> loader) {
+        beforeAccess();
+        if (key == null || loader == null) throw new NullPointerException();
+        return (V) compute(key, loader, (ArgumentLoader) LoaderAdapter.INSTANCE);
+    }
+
+    /**
+     * Returns the value of a key or computes the value if the key does not define a value. The argument is supplied to the
+     * loader such that a loader does not need to capture any state. The value of a key is computed at most once at a time,
+     * even if it is requested concurrently by multiple threads where any thread that requests a value of a key that is currently
+     * computed awaits the computation's result. If a computation fails, any awaiting thread attempts to compute the value itself.
+     * The computed value is only set if no value was set for the key during the computation.
+     *
+     * @param key      The key of the entry.
+     * @param argument The argument to supply to the loader.
+     * @param loader   The loader that computes the value if the key does not define a value.
+     * @param <T>      The type of the argument.
+     * @return The value of the entry or the computed value, if the key did not define a value.
+     */
+    public <T> V computeIfAbsent(K key, T argument, ArgumentLoader<? super K, ? super T, ? extends V> loader) {
+        beforeAccess();
+        if (key == null || loader == null) throw new NullPointerException();
+        return compute(key, argument, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> V compute(K key, T argument, ArgumentLoader<? super K, ? super T, ? extends V> loader) {
+        V value = recordLookup(lookup(key));
+        while (true) {
+            if (value != null) {
+                return value;
+            }
+            ConcurrentMap<Computation, Computation> computations = this.computations;
+            if (computations == null) {
+                COMPUTATIONS.compareAndSet(this, null, new ConcurrentHashMap<Computation, Computation>());
+                computations = this.computations;
+            }
+            Computation computation = new Computation(key, identityHashCode(key)), previous = computations.putIfAbsent(computation, computation);
+            if (previous != null) {
+                if (previous.thread == computation.thread) {
+                    throw new IllegalStateException("Recursive computation of value for " + key);
+                } else if (previous.await()) {
+                    return (V) previous.value;
+                }
+                value = lookup(key);
+                continue;
+            }
+            boolean completed = false;
+            try {
+                value = lookup(key);
+                if (value == null) {
+                    value = loader.load(key, argument);
+                    if (value != null) {
+                        V previousValue = putIfAbsent(key, value);
+                        if (previousValue != null) {
+                            value = previousValue;
+                        }
+                    }
+                }
+                computation.value = value;
+                completed = true;
+                return value;
+            } finally {
+                computations.remove(computation);
+                computation.complete(completed);
+            }
+        }
+    }
+
+    /**
+     * Returns a future of the value of a key. If the key does not define a value, its default value is created by
+     * {@link #defaultValue(Object)} on the supplied executor and is set for the key unless another value was set in the
+     * meantime. Concurrent requests for a key of which the default value is currently loaded share the future of this
+     * load such that a default value is loaded at most once at a time. If a load fails, its future fails and the next
+     * request for the key starts another load. A pending load references its key only weakly and is dropped without
+     * creating a default value if the key is collected before the load starts, in which case its future yields {@code null}.
+     *
+     * @param key      The key of the entry.
+     * @param executor The executor that creates the default value if the key does not define a value.
+     * @return A future of the value of the entry or of the default value, if the key did not define a value.
+     */
+    public Future<V> getAsync(K key, Executor executor) {
+        beforeAccess();
+        if (key == null || executor == null) throw new NullPointerException();
+        V value = recordLookup(lookup(key));
+        if (value != null) {
+            return new CompletedFuture<V>(value);
+        }
+        ConcurrentMap<Loading, Load> loads = this.loads;
+        if (loads == null) {
+            LOADS.compareAndSet(this, null, new ConcurrentHashMap<Loading, Load>());
+            loads = this.loads;
+        }
+        Loading loading = new Loading(key);
+        Load load = new Load(loading), previous = loads.putIfAbsent(loading, load);
+        if (previous != null) {
+            return previous;
+        }
+        try {
+            executor.execute(load);
+        } catch (RuntimeException exception) {
+            load.cancel(false);
+            throw exception;
+        }
+        return load;
+    }
+
+    /**
+     * Creates a default value. There is no guarantee that the requested value will be set as a once it is created
+     * in case that another thread requests a value for a key concurrently. To compute a value at most once, use
+     * {@link #computeIfAbsent(Object, Loader)}.
+     *
+     * @param key The key for which to create a default value.
+     * @return The default value for a key without value or {@code null} for not defining a default value.
+     */
+    protected V defaultValue(K key) {
+        return null;
+    }
+
+    /**
+     * Invoked before an operation looks up, updates or removes entries of this map or before it traverses the entries of
+     * this map. A map that removes stale entries as a side effect of interacting with it removes them when this method is
+     * invoked. By default, this method does nothing.
+     */
+    void beforeAccess() {
+        // do nothing
+    }
+
+    /**
+     * Cleans all unused references.
+     */
+    public void expungeStaleEntries() {
+        int expunged = 0;
+        for (ReferenceQueue<K> queue : queues) {
+            int batch;
+            do {
+                batch = expunge(queue.poll(), queue, BATCH);
+                expunged += batch;
+            } while (batch == BATCH);
+        }
+        if (statistics != null && expunged > 0) {
+            statistics.recordExpunctions(expunged);
+        }
+        expire(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Cleans unused references up to a maximum number of references. If this map stripes its references across several
+     * reference queues, the queues are polled in turns, starting with another queue on each invocation.
+     *
+     * @param maximum The maximum number of references to clean.
+     * @return The number of cleaned references.
+     */
+    @Override
+    public int expungeStaleEntries(int maximum) {
+        int expunged = 0;
+        if (maximum > 0) {
+            int stripe = this.stripe++;
+            for (int index = 0; index < queues.length && expunged < maximum; index++) {
+                ReferenceQueue<K> queue = queues[(stripe + index) & (queues.length - 1)];
+                expunged += expunge(queue.poll(), queue, maximum - expunged);
+            }
+        }
+        if (statistics != null && expunged > 0) {
+            statistics.recordDrain(expunged);
+        }
+        return expunged + (expunged < maximum ? expire(maximum - expunged) : 0);
+    }
+
+    /**
+     * Removes entries that are no longer valid for other reasons than a collected key or value. This method is invoked
+     * whenever this map removes stale entries, by a cleaner thread, a {@link WeakCleaner} or by an explicit invocation.
+     *
+     * @param maximum The maximum number of entries to remove.
+     * @return The number of removed entries.
+     */
+    int expire(int maximum) {
+        return 0;
+    }
+
+    /**
+     * @return The maximum time in milliseconds that a thread that {@linkplain #run() runs} this map should wait for a stale
+     * entry before {@linkplain #expire(int) expiring} entries, or {@code 0} if the thread should wait indefinitely.
+     */
+    long expirationInterval() {
+        return 0L;
+    }
+
+    /**
+     * Removes the stale entry of a reference and of further references that are polled from the reference's queue. The
+     * values of removed entries are delivered to the removal listener once all entries of the batch are removed.
+     *
+     * @param reference The first reference to remove or {@code null} if no reference is available.
+     * @param queue     The queue from which the reference was polled.
+     * @param maximum   The maximum number of references to remove.
+     * @return The number of removed references.
+     */
+    private int expunge(Reference<?> reference, ReferenceQueue<K> queue, int maximum) {
+        if (reference == null) {
+            return 0;
+        }
+        List<Object> values = listener == null ? null : new ArrayList<Object>();
+        int expunged = 0;
+        do {
+            Object value = removeStale(reference);
+            if (values != null && value != null) {
+                values.add(value);
+            }
+            expunged++;
+        } while (expunged < maximum && (reference = queue.poll()) != null);
+        if (values != null) {
+            deliver(values);
+        }
+        return expunged;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(List<Object> values) {
+        for (Object value : values) {
+            try {
+                listener.onRemoval((V) value, RemovalListener.Cause.COLLECTED);
+            } catch (RuntimeException ignored) {
+                // a failing listener must not prevent the delivery of other values or terminate a cleaner thread
+            }
+        }
+    }
+
+    /**
+     * @param reference The reference of a stale entry.
+     * @return The value of the removed entry or {@code null} if the value is unknown or should not be delivered.
+     */
+    private Object removeStale(Reference<?> reference) {
+        if (table != null) {
+            if (reference instanceof ValueReference) {
+                WeakEntry<?, ?> entry = ((ValueReference) reference).entry();
+                if (entry.retireReference(reference)) {
+                    table.remove(entry);
+                }
+                return null;
+            }
+            WeakEntry<?, ?> entry = (WeakEntry<?, ?>) reference;
+            Object value = listener == null ? null : entry.retireValue();
+            table.remove(entry);
+            return value;
+        }
+        return target.remove(reference);
+    }
+
+    /**
+     * Returns the approximate size of this map where the returned number is at least as big as the actual number of entries.
+     * The size is tracked by a counter that is updated when an entry is added or removed, such that entries of collected
+     * keys or values are counted until they are removed. Those entries are estimated by {@link #approximateStaleBacklog()}.
+     * Reading the size never removes stale entries and does not contend with concurrent updates of this map.
+     *
+     * @return The minimum size of this map.
+     */
+    public int approximateSize() {
+        return table != null ? table.size() : target.size();
+    }
+
+    /**
+     * Returns a snapshot of this map's statistics. The stale backlog of the snapshot is estimated by
+     * {@link #approximateStaleBacklog()}.
+     *
+     * @return A snapshot of this map's statistics.
+     * @throws IllegalStateException If this map does not record statistics.
+     */
+    public Statistics getStatistics() {
+        if (statistics == null) {
+            throw new IllegalStateException("Statistics are not recorded by this map");
+        }
+        return statistics.snapshot().withStaleBacklog(approximateStaleBacklog());
+    }
+
+    /**
+     * Returns an estimate of the number of entries of collected keys or values that were not yet removed from this map.
+     * The estimate is extrapolated from a sample of a bounded number of entries, where every invocation samples other
+     * entries than the previous one. The stale entries of a map that is not larger than the sample are counted exactly.
+     * Estimating the backlog neither polls a reference queue nor removes any entry and does not require this map to
+     * record statistics.
+     *
+     * @return The estimated number of stale entries.
+     */
+    public int approximateStaleBacklog() {
+        if (table != null) {
+            return table.estimateStale(SAMPLE);
+        }
+        int sampled = 0, stale = 0;
+        for (WeakKey<K> key : target.keySet()) {
+            if (References.refersTo(key, null)) {
+                stale++;
+            }
+            if (++sampled == SAMPLE) {
+                break;
+            }
+        }
+        int size = target.size();
+        return stale == 0 || sampled >= size ? stale : (int) ((long) stale * size / sampled);
+    }
+
+    /**
+     * @return The number of reference queues across which this map stripes the references of its keys and values.
+     */
+    public int getReferenceQueueCount() {
+        return queues.length;
+    }
+
+    /**
+     * Removes stale entries until the running thread is interrupted. If this map stripes its references across several
+     * reference queues, every thread that runs this map drains another queue, such that as many threads as there are
+     * queues drain this map in parallel. As long as fewer threads than queues run this map, a thread whose queue remains
+     * empty for a while helps draining the other queues. Otherwise, an idle thread blocks until a reference is enqueued
+     * or until entries are due for expiration.
+     */
+    @Override
+    public void run() {
+        ReferenceQueue<K> queue = queues[DRAINERS.getAndIncrement(this) & (queues.length - 1)];
+        long interval = expirationInterval();
+        try {
+            while (!Thread.interrupted()) {
+                long timeout = interval;
+                if (drainers < queues.length && (timeout == 0L || timeout > IDLE_TIMEOUT)) {
+                    timeout = IDLE_TIMEOUT; // some queue is not yet drained by a thread of its own
+                }
+                Reference<? extends K> reference = timeout == 0L ? queue.remove() : queue.remove(timeout);
+                int expunged = expunge(reference, queue, BATCH);
+                if (reference == null && queues.length > 1) {
+                    for (ReferenceQueue<K> other : queues) {
+                        expunged += expunge(other.poll(), other, BATCH);
+                    }
+                }
+                if (statistics != null && expunged > 0) {
+                    statistics.recordExpunctions(expunged);
+                }
+                while (expire(BATCH) == BATCH) {
+                    // continue until all expired entries are removed
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // do nothing
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        beforeAccess();
+        return table != null
+                ? new TableIterator(table.cursor())
+                : new EntryIterator(target.entrySet().iterator());
+    }
+
+    /**
+     * Applies a consumer to each entry of this map where entries of collected keys are skipped. On Java 8 or later,
+     * the entries are traversed in parallel by the common fork join pool if this map contains at least as many entries
+     * as the parallelism threshold. A map that is backed by a custom concurrent map is always traversed sequentially.
+     *
+     * @param parallelismThreshold The approximate number of entries that are required for traversing in parallel or
+     *                             {@link Long#MAX_VALUE} for always traversing sequentially.
+     * @param consumer             The consumer to apply.
+     */
+    public void forEach(long parallelismThreshold, final EntryConsumer<? super K, ? super V> consumer) {
+        if (consumer == null) throw new NullPointerException();
+        reduce(parallelismThreshold, new EntryFunction<K, V, Object>() {
+            @Override
+            public Object apply(K key, V value) {
+                consumer.accept(key, value);
+                return null;
+            }
+        }, new Reducer<Object>() {
+            @Override
+            public Object reduce(Object left, Object right) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Accumulates the transformations of this map's entries where entries of collected keys are skipped. On Java 8 or
+     * later, the entries are traversed in parallel by the common fork join pool if this map contains at least as many
+     * entries as the parallelism threshold. A map that is backed by a custom concurrent map is always traversed sequentially.
+     *
+     * @param parallelismThreshold The approximate number of entries that are required for traversing in parallel or
+     *                             {@link Long#MAX_VALUE} for always traversing sequentially.
+     * @param transformer          The transformation of an entry or {@code null} if an entry should be ignored.
+     * @param reducer              The reducer for combining two transformations.
+     * @param <U>                  The type of the transformations.
+     * @return The accumulated transformations or {@code null} if no entry was transformed.
+     */
+    @SuppressWarnings("unchecked")
+    public <U> U reduce(long parallelismThreshold, EntryFunction<? super K, ? super V, ? extends U> transformer, Reducer<U> reducer) {
+        beforeAccess();
+        if (transformer == null || reducer == null) throw new NullPointerException();
+        if (table != null) {
+            return BULK_TRAVERSAL
+                    ? BulkTraversal.reduce(table, parallelismThreshold, transformer, reducer)
+                    : reduce(table.cursor(), transformer, reducer);
+        } else if (BULK_TRAVERSAL && target instanceof ConcurrentHashMap<?, ?>) {
+            return ParallelTraversal.reduce((ConcurrentHashMap<WeakKey<K>, V>) target, parallelismThreshold, transformer, reducer);
+        }
+        U result = null;
+        for (Map.Entry<WeakKey<K>, V> entry : target.entrySet()) {
+            K key = entry.getKey().get();
+            if (key != null) {
+                result = combine(result, transformer.apply(key, entry.getValue()), reducer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies a consumer to a chunk of this map's entries, starting from a position that was returned by a previous chunk.
+     * A scan begins at position {@code 0} and is complete once {@code 0} is returned. No key is referenced by a scan
+     * between two chunks such that a map can be scanned incrementally, for example by a background thread, without
+     * delaying the collection of any key. A scan visits every entry that is contained throughout the scan at least once,
+     * even if this map grows in between two chunks. Entries of collected keys are skipped. Scanning requires a map that
+     * is backed by a {@link Backing#WEAK_HASH_TABLE}.
+     *
+     * @param position The position to resume the scan from or {@code 0} to start a new scan.
+     * @param count    The approximate number of entries to visit where a chunk might contain slightly more entries.
+     * @param consumer The consumer to apply.
+     * @return The position to resume the scan from or {@code 0} if the scan is complete.
+     * @throws UnsupportedOperationException If this map is not backed by a weak hash table.
+     */
+    public long scan(long position, int count, EntryConsumer<? super K, ? super V> consumer) {
+        beforeAccess();
+        if (consumer == null) throw new NullPointerException();
+        if (position < 0L || position > 0xFFFFFFFFL || count < 1) throw new IllegalArgumentException();
+        if (table == null) {
+            throw new UnsupportedOperationException("Scanning requires a map that is backed by a weak hash table");
+        }
+        List<WeakHashTable.Entry<?>> buffer = new ArrayList<WeakHashTable.Entry<?>>();
+        int next = table.scan((int) position, count, buffer);
+        for (WeakHashTable.Entry<?> element : buffer) {
+            @SuppressWarnings("unchecked")
+            WeakEntry<K, V> entry = (WeakEntry<K, V>) element;
+            K key = entry.get();
+            V value = key == null ? null : entry.value();
+            if (value != null) {
+                consumer.accept(key, value);
+            }
+        }
+        return next & 0xFFFFFFFFL;
+    }
+
+    private static <K, V, U> U reduce(WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor,
+                                      EntryFunction<? super K, ? super V, ? extends U> transformer,
+                                      Reducer<U> reducer) {
+        U result = null;
+        while (cursor.advance()) {
+            V value = cursor.entry().value();
+            if (value != null) {
+                result = combine(result, transformer.apply(cursor.key(), value), reducer);
+            }
+        }
+        return result;
+    }
+
+    static <U> U combine(U result, U element, Reducer<U> reducer) {
+        if (element == null) {
+            return result;
+        }
+        return result == null ? element : reducer.reduce(result, element);
+    }
+
+    @Override
+    public String toString() {
+        if (table != null) {
+            StringBuilder builder = new StringBuilder().append('{');
+            WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor = table.cursor();
+            boolean first = true;
+            while (cursor.advance()) {
+                V value = cursor.entry().value();
+                if (value != null) {
+                    builder.append(first ? "" : ", ").append(cursor.key()).append('=').append(value);
+                    first = false;
+                }
+            }
+            return builder.append('}').toString();
+        }
+        return target.toString();
+    }
+
+    /*
+     * Why this works:
+     * ---------------
+     *
+     * Note that this map only supports reference equality for keys and uses system hash codes. Also, for the
+     * WeakKey instances to function correctly, we are voluntarily breaking the Java API contract for
+     * hashCode/equals of these instances.
+     *
+     * System hash codes are immutable and can therefore be computed prematurely and are stored explicitly
+     * within the WeakKey instances. This way, we always know the correct hash code of a key and always
+     * end up in the correct bucket of our target map. This remains true even after the weakly referenced
+     * key is collected.
+     *
+     * If we are looking up the value of the current key via WeakConcurrentMap::get or any other public
+     * API method, we know that any value associated with this key must still be in the map as the mere
+     * existence of this key makes it ineligible for garbage collection. Therefore, looking up a value
+     * using another WeakKey wrapper guarantees a correct result.
+     *
+     * If we are looking up the map entry of a WeakKey after polling it from the reference queue, we know
+     * that the actual key was already collected and calling WeakKey::get returns null for both the polled
+     * instance and the instance within the map. Since we explicitly stored the identity hash code for the
+     * referenced value, it is however trivial to identify the correct bucket. From this bucket, the first
+     * weak key with a null reference is removed. Due to hash collision, we do not know if this entry
+     * represents the weak key. However, we do know that the reference queue polls at least as many weak
+     * keys as there are stale map entries within the target map. If no key is ever removed from the map
+     * explicitly, the reference queue eventually polls exactly as many weak keys as there are stale entries.
+     *
+     * Therefore, we can guarantee that there is no memory leak.
+     *
+     * It is the responsibility of the actual map implementation to implement a lookup key that is used for
+     * lookups. The lookup key must supply the same semantics as the weak key with regards to hash code.
+     * The weak key invokes the latent key's equality method upon evaluation.
+     */
+
+    public static final class WeakKey<K> extends WeakReference<K> {
+
+        private final int hashCode;
+
+        WeakKey(K key, int hashCode, ReferenceQueue<? super K> queue) {
+            super(key, queue);
+            this.hashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof WeakKey<?>) {
+                return other == this || References.refersTo((WeakKey<?>) other, get());
+            } else {
+                return other.equals(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(get());
+        }
+    }
+
+    /**
+     * Determines the data structure that backs a weak concurrent map. A map can either wrap a {@link ConcurrentHashMap}
+     * where each key is wrapped by a {@link WeakKey} ({@link Backing#CONCURRENT_HASH_MAP}) or it can be backed by a
+     * lock-free hash table where each entry is itself the weak reference to its key that also holds the key's
+     * system hash code and the entry's value ({@link Backing#WEAK_HASH_TABLE}). The latter requires less memory per
+     * entry and does not require a lookup key for looking up an entry.
+     */
+    public enum Backing {
+        CONCURRENT_HASH_MAP, WEAK_HASH_TABLE
+    }
+
+    /**
+     * A predicate that determines if an entry is removed by {@link #removeIf(EntryPredicate)}.
+     *
+     * @param <K> The type of the key.
+     * @param <V> The type of the value.
+     */
+    public interface EntryPredicate<K, V> {
+
+        /**
+         * @param key   The key of the entry.
+         * @param value The value of the entry.
+         * @return {@code true} if the entry should be removed.
+         */
+        boolean test(K key, V value);
+    }
+
+    /**
+     * A consumer of the entries of a map that is applied by {@link #forEach(long, EntryConsumer)}.
+     *
+     * @param <K> The type of the key.
+     * @param <V> The type of the value.
+     */
+    public interface EntryConsumer<K, V> {
+
+        /**
+         * @param key   The key of the entry.
+         * @param value The value of the entry.
+         */
+        void accept(K key, V value);
+    }
+
+    /**
+     * A transformation of the entries of a map that is applied by {@link #reduce(long, EntryFunction, Reducer)}.
+     *
+     * @param <K> The type of the key.
+     * @param <V> The type of the value.
+     * @param <U> The type of the transformation.
+     */
+    public interface EntryFunction<K, V, U> {
+
+        /**
+         * @param key   The key of the entry.
+         * @param value The value of the entry.
+         * @return The transformation of the entry or {@code null} if the entry should be ignored.
+         */
+        U apply(K key, V value);
+    }
+
+    /**
+     * A reducer that combines two transformations that were computed by an {@link EntryFunction}.
+     *
+     * @param <U> The type of the transformations.
+     */
+    public interface Reducer<U> {
+
+        /**
+         * @param left  The first transformation.
+         * @param right The second transformation.
+         * @return The combination of both transformations.
+         */
+        U reduce(U left, U right);
+    }
+
+    /**
+     * A loader that computes the value of a key.
+     *
+     * @param <K> The type of the key.
+     * @param <V> The type of the value.
+     */
+    public interface Loader<K, V> {
+
+        /**
+         * @param key The key for which to compute a value.
+         * @return The computed value or {@code null} if no value should be set.
+         */
+        V load(K key);
+    }
+
+    /**
+     * A loader that computes the value of a key using an additional argument.
+     *
+     * @param <K> The type of the key.
+     * @param <T> The type of the argument.
+     * @param <V> The type of the value.
+     */
+    public interface ArgumentLoader<K, T, V> {
+
+        /**
+         * @param key      The key for which to compute a value.
+         * @param argument The argument that was supplied together with the key.
+         * @return The computed value or {@code null} if no value should be set.
+         */
+        V load(K key, T argument);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private enum LoaderAdapter implements ArgumentLoader<Object, Loader, Object> {
+
+        INSTANCE;
+
+        @Override
+        public Object load(Object key, Loader loader) {
+            return loader.load(key);
+        }
+    }
+
+    /**
+     * The loading of a key's default value that references the key weakly. Loadings are equal if they load the value
+     * of the same key by reference equality.
+     */
+    private final class Loading extends WeakReference<K> implements Callable<V> {
+
+        private final int hashCode;
+
+        private Loading(K key) {
+            super(key);
+            hashCode = identityHashCode(key);
+        }
+
+        @Override
+        public V call() {
+            K key = get();
+            if (key == null) {
+                return null; // the key was collected while the load was pending
+            }
+            V value = lookup(key); // a previous load might have completed after the lookup that triggered this load
+            return value == null ? insertDefaultValue(key) : value;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other == this || other instanceof AbstractWeakConcurrentMap<?, ?, ?>.Loading
+                    && References.refersTo((AbstractWeakConcurrentMap<?, ?, ?>.Loading) other, get());
+        }
+    }
+
+    /**
+     * A load of a key's default value that is pending or in progress and that is dropped from the map's pending loads
+     * once it completes, fails or is cancelled.
+     */
+    private final class Load extends FutureTask<V> {
+
+        private final Loading loading;
+
+        private Load(Loading loading) {
+            super(loading);
+            this.loading = loading;
+        }
+
+        @Override
+        protected void done() {
+            loads.remove(loading, this);
+        }
+    }
+
+    /**
+     * A future of a value that is already known.
+     */
+    private static final class CompletedFuture<V> implements Future<V> {
+
+        private final V value;
+
+        private CompletedFuture(V value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public V get() {
+            return value;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) {
+            return value;
+        }
+    }
+
+    /**
+     * A computation of a key's value that is currently in progress. Computations are equal if they compute the value of
+     * the same key by reference equality.
+     */
+    private static final class Computation {
+
+        private final Object key;
+
+        private final int hashCode;
+
+        private final Thread thread = Thread.currentThread();
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile boolean completed;
+
+        private volatile Object value;
+
+        private Computation(Object key, int hashCode) {
+            this.key = key;
+            this.hashCode = hashCode;
+        }
+
+        private void complete(boolean completed) {
+            this.completed = completed;
+            latch.countDown();
+        }
+
+        /**
+         * @return {@code true} if the computation completed normally.
+         */
+        private boolean await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        latch.await();
+                        return completed;
+                    } catch (InterruptedException ignored) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Computation && ((Computation) other).key == key;
+        }
+    }
+
+    /**
+     * Determines how a map references its keys or values. A {@link Strength#WEAK} reference allows the referenced object to
+     * be collected once it is no longer strongly referenced elsewhere and a {@link Strength#SOFT} reference additionally retains
+     * the referenced object until the JVM runs low on memory. An entry is removed once its key or its value is collected.
+     * Keys can never be referenced {@link Strength#STRONG}ly.
      */
-    protected AbstractWeakConcurrentMap(ConcurrentMap<WeakKey<K>, V> target) {
-        this.target = target;
+    public enum Strength {
+        STRONG, SOFT, WEAK
     }
 
     /**
-     * Override with care as it can cause lookup failures if done incorrectly. The result must have
-     * the same {@link Object#hashCode()} as the input and be {@link Object#equals(Object) equal to}
-     * a weak reference of the key. When overriding this, also override {@link #resetLookupKey}.
+     * An entry of a map that is backed by a {@link WeakHashTable}. An entry that is removed explicitly has its
+     * value set to a marker before it is unlinked such that concurrent updates of its value cannot get lost.
      */
-    protected abstract L getLookupKey(K key);
+    static class WeakEntry<K, V> extends WeakHashTable.Entry<K> {
 
-    /**
-     * Resets any reusable state in the {@linkplain #getLookupKey lookup key}.
-     */
-    protected abstract void resetLookupKey(L lookupKey);
+        static final Object REMOVED = new Object();
 
-    /**
-     * @param key The key of the entry.
-     * @return The value of the entry or the default value if it did not exist.
-     */
-    public V get(K key) {
-        if (key == null) throw new NullPointerException();
-        V value;
-        L lookupKey = getLookupKey(key);
-        try {
-            value = target.get(lookupKey);
-        } finally {
-            resetLookupKey(lookupKey);
+        @SuppressWarnings("rawtypes")
+        static final AtomicReferenceFieldUpdater<WeakEntry, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(WeakEntry.class, Object.class, "value");
+
+        volatile Object value;
+
+        WeakEntry(K key, int hash, ReferenceQueue<? super K> queue, V value) {
+            super(key, hash, queue);
+            this.value = value;
         }
-        if (value == null) {
-            value = defaultValue(key);
-            if (value != null) {
-                V previousValue = target.putIfAbsent(new WeakKey<K>(key, this), value);
-                if (previousValue != null) {
-                    value = previousValue;
+
+        static <V> V valueOf(WeakEntry<?, V> entry) {
+            return entry == null ? null : entry.value();
+        }
+
+        /**
+         * @return The value of this entry or {@code null} if this entry was removed.
+         */
+        @SuppressWarnings("unchecked")
+        V value() {
+            Object value = this.value;
+            return value == REMOVED ? null : (V) value;
+        }
+
+        /**
+         * @param value The value to set.
+         * @param queue The queue to register any reference to the value with.
+         * @return The replaced value or {@code null} if this entry was removed such that the value was not set.
+         */
+        @SuppressWarnings("unchecked")
+        V replace(V value, ReferenceQueue<? super K> queue) {
+            while (true) {
+                Object previous = this.value;
+                if (previous == REMOVED) {
+                    clear(); // help completing a concurrent removal
+                    return null;
+                } else if (VALUE.compareAndSet(this, previous, value)) {
+                    return (V) previous;
                 }
             }
         }
-        return value;
-    }
 
-    /**
-     * @param key The key of the entry.
-     * @return The value of the entry or null if it did not exist.
-     */
-    public V getIfPresent(K key) {
-        if (key == null) throw new NullPointerException();
-        L lookupKey = getLookupKey(key);
-        try {
-            return target.get(lookupKey);
-        } finally {
-            resetLookupKey(lookupKey);
+        /**
+         * Marks this entry as removed and clears its reference.
+         *
+         * @return The value of this entry or {@code null} if this entry was already removed.
+         */
+        @SuppressWarnings("unchecked")
+        V retireValue() {
+            Object value = VALUE.getAndSet(this, REMOVED);
+            clear();
+            return value == REMOVED ? null : (V) value;
         }
-    }
 
-    /**
-     * @param key The key of the entry.
-     * @return {@code true} if the key already defines a value.
-     */
-    public boolean containsKey(K key) {
-        if (key == null) throw new NullPointerException();
-        L lookupKey = getLookupKey(key);
-        try {
-            return target.containsKey(lookupKey);
-        } finally {
-            resetLookupKey(lookupKey);
+        /**
+         * Marks this entry as removed if it still references the expected value.
+         *
+         * @param expected The value that this entry is expected to reference.
+         * @return {@code true} if this entry was marked as removed.
+         */
+        boolean retireValue(V expected) {
+            if (VALUE.compareAndSet(this, expected, REMOVED)) {
+                clear();
+                return true;
+            }
+            return false;
         }
-    }
 
-    /**
-     * @param key   The key of the entry.
-     * @param value The value of the entry.
-     * @return The previous entry or {@code null} if it does not exist.
-     */
-    public V put(K key, V value) {
-        if (key == null || value == null) throw new NullPointerException();
-        return target.put(new WeakKey<K>(key, this), value);
-    }
+        /**
+         * Marks this entry as removed if it still references a collected value.
+         *
+         * @param reference The reference to the collected value.
+         * @return {@code true} if this entry was marked as removed.
+         */
+        boolean retireReference(Reference<?> reference) {
+            if (VALUE.compareAndSet(this, reference, REMOVED)) {
+                clear();
+                return true;
+            }
+            return false;
+        }
 
-    /**
-     * @param key   The key of the entry.
-     * @param value The value of the entry.
-     * @return The previous entry or {@code null} if it does not exist.
-     */
-    public V putIfAbsent(K key, V value) {
-        if (key == null || value == null) throw new NullPointerException();
-        V previous;
-        L lookupKey = getLookupKey(key);
-        try {
-            previous = target.get(lookupKey);
-        } finally {
-            resetLookupKey(lookupKey);
+        @Override
+        void retire() {
+            retireValue();
         }
-        return previous == null ? target.putIfAbsent(new WeakKey<K>(key, this), value) : previous;
     }
 
     /**
-     * @param key   The key of the entry.
-     * @param value The value of the entry.
-     * @return The previous entry or {@code null} if it does not exist.
+     * An entry with a strongly referenced value that additionally references its key softly such that the key
+     * is only collected when the JVM runs low on memory.
      */
-    public V putIfProbablyAbsent(K key, V value) {
-        if (key == null || value == null) throw new NullPointerException();
-        return target.putIfAbsent(new WeakKey<K>(key, this), value);
-    }
+    static final class SoftKeyEntry<K, V> extends WeakEntry<K, V> {
 
-    /**
-     * @param key The key of the entry.
-     * @return The removed entry or {@code null} if it does not exist.
-     */
-    public V remove(K key) {
-        if (key == null) throw new NullPointerException();
-        L lookupKey = getLookupKey(key);
-        try {
-            return target.remove(lookupKey);
-        } finally {
-            resetLookupKey(lookupKey);
+        @SuppressWarnings("unused")
+        private final SoftReference<K> key; // retains the key softly
+
+        SoftKeyEntry(K key, int hash, ReferenceQueue<? super K> queue, V value) {
+            super(key, hash, queue, value);
+            this.key = new SoftReference<K>(key);
         }
     }
 
     /**
-     * Clears the entire map.
+     * An entry that references its value weakly or softly. If the value is collected, the reference to the value is enqueued
+     * in the map's reference queue such that the entry is removed the same way as an entry of a collected key.
      */
-    public void clear() {
-        target.clear();
+    static final class ReferenceValueEntry<K, V> extends WeakEntry<K, V> {
+
+        @SuppressWarnings("unused")
+        private final SoftReference<K> key; // retains the key softly, if not null
+
+        private final boolean soft;
+
+        ReferenceValueEntry(K key, int hash, ReferenceQueue<? super K> queue, V value, boolean softKey, boolean softValue) {
+            super(key, hash, queue, null);
+            this.key = softKey ? new SoftReference<K>(key) : null;
+            soft = softValue;
+            this.value = reference(value, queue);
+        }
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private Reference<V> reference(V value, ReferenceQueue<? super K> queue) {
+            return soft
+                    ? new SoftValueReference<V>(value, (ReferenceQueue) queue, this)
+                    : new WeakValueReference<V>(value, (ReferenceQueue) queue, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V value() {
+            Object value = this.value;
+            return value == REMOVED ? null : ((Reference<V>) value).get();
+        }
+
+        @Override
+        boolean isStale() {
+            Object value = this.value;
+            return super.isStale() || value != REMOVED && References.refersTo((Reference<?>) value, null);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V replace(V value, ReferenceQueue<? super K> queue) {
+            Reference<V> reference = reference(value, queue);
+            while (true) {
+                Object previous = this.value;
+                V previousValue = previous == REMOVED ? null : ((Reference<V>) previous).get();
+                if (previousValue == null) {
+                    clear(); // the entry is removed or its value was collected such that the entry is removed eventually
+                    return null;
+                } else if (VALUE.compareAndSet(this, previous, reference)) {
+                    return previousValue;
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V retireValue() {
+            Object value = VALUE.getAndSet(this, REMOVED);
+            clear();
+            return value == REMOVED ? null : ((Reference<V>) value).get();
+        }
+
+        @Override
+        boolean retireValue(V expected) {
+            while (true) {
+                Object value = this.value;
+                if (value == REMOVED || !References.refersTo((Reference<?>) value, expected)) {
+                    return false;
+                } else if (VALUE.compareAndSet(this, value, REMOVED)) {
+                    clear();
+                    return true;
+                }
+            }
+        }
     }
 
     /**
-     * Creates a default value. There is no guarantee that the requested value will be set as a once it is created
-     * in case that another thread requests a value for a key concurrently.
-     *
-     * @param key The key for which to create a default value.
-     * @return The default value for a key without value or {@code null} for not defining a default value.
+     * A reference to a value of a {@link ReferenceValueEntry}.
      */
-    protected V defaultValue(K key) {
-        return null;
+    interface ValueReference {
+
+        /**
+         * @return The entry that references this value reference.
+         */
+        WeakEntry<?, ?> entry();
     }
 
-    /**
-     * Cleans all unused references.
-     */
-    public void expungeStaleEntries() {
-        Reference<?> reference;
-        while ((reference = poll()) != null) {
-            target.remove(reference);
+    private static final class WeakValueReference<V> extends WeakReference<V> implements ValueReference {
+
+        private final WeakEntry<?, ?> entry;
+
+        private WeakValueReference(V value, ReferenceQueue<? super V> queue, WeakEntry<?, ?> entry) {
+            super(value, queue);
+            this.entry = entry;
+        }
+
+        @Override
+        public WeakEntry<?, ?> entry() {
+            return entry;
         }
     }
 
-    /**
-     * Returns the approximate size of this map where the returned number is at least as big as the actual number of entries.
-     *
-     * @return The minimum size of this map.
-     */
-    public int approximateSize() {
-        return target.size();
+    private static final class SoftValueReference<V> extends SoftReference<V> implements ValueReference {
+
+        private final WeakEntry<?, ?> entry;
+
+        private SoftValueReference(V value, ReferenceQueue<? super V> queue, WeakEntry<?, ?> entry) {
+            super(value, queue);
+            this.entry = entry;
+        }
+
+        @Override
+        public WeakEntry<?, ?> entry() {
+            return entry;
+        }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (!Thread.interrupted()) {
-                target.remove(remove());
+    private class TableIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor;
+
+        private boolean advanced;
+
+        private TableIterator(WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor) {
+            this.cursor = cursor;
+            advanced = advance();
+        }
+
+        private boolean advance() {
+            while (cursor.advance()) {
+                if (cursor.entry().value() != null) {
+                    return true;
+                }
             }
-        } catch (InterruptedException ignored) {
-            // do nothing
+            return false;
         }
-    }
 
-    @Override
-    public Iterator<Map.Entry<K, V>> iterator() {
-        return new EntryIterator(target.entrySet().iterator());
-    }
+        @Override
+        public boolean hasNext() {
+            return advanced;
+        }
 
-    @Override
-    public String toString() {
-        return target.toString();
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!advanced) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return new TableEntry(cursor.key(), cursor.entry());
+            } finally {
+                advanced = advance();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
-    /*
-     * Why this works:
-     * ---------------
-     *
-     * Note that this map only supports reference equality for keys and uses system hash codes. Also, for the
-     * WeakKey instances to function correctly, we are voluntarily breaking the Java API contract for
-     * hashCode/equals of these instances.
-     *
-     * System hash codes are immutable and can therefore be computed prematurely and are stored explicitly
-     * within the WeakKey instances. This way, we always know the correct hash code of a key and always
-     * end up in the correct bucket of our target map. This remains true even after the weakly referenced
-     * key is collected.
-     *
-     * If we are looking up the value of the current key via WeakConcurrentMap::get or any other public
-     * API method, we know that any value associated with this key must still be in the map as the mere
-     * existence of this key makes it ineligible for garbage collection. Therefore, looking up a value
-     * using another WeakKey wrapper guarantees a correct result.
-     *
-     * If we are looking up the map entry of a WeakKey after polling it from the reference queue, we know
-     * that the actual key was already collected and calling WeakKey::get returns null for both the polled
-     * instance and the instance within the map. Since we explicitly stored the identity hash code for the
-     * referenced value, it is however trivial to identify the correct bucket. From this bucket, the first
-     * weak key with a null reference is removed. Due to hash collision, we do not know if this entry
-     * represents the weak key. However, we do know that the reference queue polls at least as many weak
-     * keys as there are stale map entries within the target map. If no key is ever removed from the map
-     * explicitly, the reference queue eventually polls exactly as many weak keys as there are stale entries.
-     *
-     * Therefore, we can guarantee that there is no memory leak.
-     *
-     * It is the responsibility of the actual map implementation to implement a lookup key that is used for
-     * lookups. The lookup key must supply the same semantics as the weak key with regards to hash code.
-     * The weak key invokes the latent key's equality method upon evaluation.
-     */
+    class TableEntry implements Map.Entry<K, V> {
 
-    public static final class WeakKey<K> extends WeakReference<K> {
+        private final K key;
 
-        private final int hashCode;
+        private final WeakEntry<K, V> entry;
 
-        WeakKey(K key, ReferenceQueue<? super K> queue) {
-            super(key, queue);
-            hashCode = System.identityHashCode(key);
+        TableEntry(K key, WeakEntry<K, V> entry) {
+            this.key = key;
+            this.entry = entry;
         }
 
         @Override
-        public int hashCode() {
-            return hashCode;
+        public K getKey() {
+            return key;
         }
 
         @Override
-        public boolean equals(Object other) {
-            if (other instanceof WeakKey<?>) {
-                return ((WeakKey<?>) other).get() == get();
-            } else {
-                return other.equals(this);
-            }
+        public V getValue() {
+            return entry.value();
         }
 
         @Override
-        public String toString() {
-            return String.valueOf(get());
+        public V setValue(V value) {
+            return put(key, value);
         }
     }
 
@@ -317,13 +1906,13 @@ public abstract class AbstractWeakConcurrentMap<K, V, L> extends ReferenceQueue<
         }
     }
 
-    private class SimpleEntry implements Map.Entry<K, V> {
+    class SimpleEntry implements Map.Entry<K, V> {
 
         private final K key;
 
         final Map.Entry<WeakKey<K>, V> entry;
 
-        private SimpleEntry(K key, Map.Entry<WeakKey<K>, V> entry) {
+        SimpleEntry(K key, Map.Entry<WeakKey<K>, V> entry) {
             this.key = key;
             this.entry = entry;
         }
@@ -344,4 +1933,22 @@ public abstract class AbstractWeakConcurrentMap<K, V, L> extends ReferenceQueue<
             return entry.setValue(value);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Traverses a map in parallel by splitting its weak hash table. This class is only loaded on Java 8 or later.
+     */
+    private static final class BulkTraversal {
+
+        static <K, V, U> U reduce(WeakHashTable<K, WeakEntry<K, V>> table,
+                                  long parallelismThreshold,
+                                  final EntryFunction<? super K, ? super V, ? extends U> transformer,
+                                  final Reducer<U> reducer) {
+            return ParallelTraversal.reduce(table, parallelismThreshold, new ParallelTraversal.Reduction<K, WeakEntry<K, V>, U>() {
+                @Override
+                public U reduce(WeakHashTable.Cursor<K, WeakEntry<K, V>> cursor) {
+                    return AbstractWeakConcurrentMap.reduce(cursor, transformer, reducer);
+                }
+            }, reducer);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <p>
+ * A thread-safe map with weak keys and numeric values that are stored as {@code long} values within the map's entries
+ * without boxing. Entries are based on a key's system hash code and keys are considered equal only by reference equality.
+ * A key without a value behaves as if it was mapped to a value of zero.
+ * </p>
+ * <p>
+ * An explicitly removed entry is marked as removed before it is unlinked. An update that finds a removed entry is retried
+ * for the entry that replaces it such that an update is never applied to an entry after its removal completed. An update
+ * that is concurrent to a removal is ordered before the removal and is discarded together with the removed entry.
+ * </p>
+ * This class offers the base implementation for {@link WeakConcurrentLongMap} and {@link WeakConcurrentIntMap}.
+ *
+ * @param <K> The type of the map's keys.
+ * @param <N> The boxed type of the map's values.
+ */
+abstract class AbstractWeakNumberMap<K, N extends Number> extends AbstractWeakPrimitiveMap<K, AbstractWeakNumberMap.NumberEntry<K>> implements Iterable<Map.Entry<K, N>> {
+
+    /**
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     */
+    AbstractWeakNumberMap(boolean cleanerThread) {
+        super(cleanerThread);
+    }
+
+    /**
+     * @param cleaner The cleaner that removes stale entries of this map.
+     */
+    AbstractWeakNumberMap(WeakCleaner cleaner) {
+        super(cleaner);
+    }
+
+    /**
+     * Truncates a value to the range of this map's values.
+     *
+     * @param value The value to truncate.
+     * @return The truncated value.
+     */
+    abstract long narrow(long value);
+
+    /**
+     * @param value A value of this map.
+     * @return The boxed value.
+     */
+    abstract N box(long value);
+
+    /**
+     * @param key The key of the entry.
+     * @return The value of the entry or zero if it did not exist.
+     */
+    long getValue(K key) {
+        NumberEntry<K> entry = entry(key);
+        return entry == null ? 0L : entry.value();
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous value or zero if it did not exist.
+     */
+    long setValue(K key, long value) {
+        return update(key, value, false);
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param delta The delta to add.
+     * @return The updated value.
+     */
+    long addValue(K key, long delta) {
+        return update(key, delta, true);
+    }
+
+    private long update(K key, long operand, boolean add) {
+        NumberEntry<K> entry = entry(key);
+        while (true) {
+            if (entry == null) {
+                long value = add ? narrow(operand) : operand;
+                entry = table.insert(key, new NumberEntry<K>(key, this, value));
+                if (entry == null) {
+                    return add ? value : 0L;
+                }
+            }
+            long current = entry.value;
+            if (entry.removed) {
+                entry = entry(key); // retry for the entry that replaces the removed entry
+                continue;
+            }
+            long updated = add ? narrow(current + operand) : operand;
+            if (NumberEntry.VALUE.compareAndSet(entry, current, updated)) {
+                return add ? updated : current;
+            }
+        }
+    }
+
+    /**
+     * @param key    The key of the entry.
+     * @param expect The expected value.
+     * @param update The value to set.
+     * @return {@code true} if the value was updated.
+     */
+    boolean compareAndSetValue(K key, long expect, long update) {
+        NumberEntry<K> entry = entry(key);
+        while (entry != null) {
+            long current = entry.value;
+            if (entry.removed) {
+                entry = entry(key);
+            } else if (current != expect) {
+                return false;
+            } else if (NumberEntry.VALUE.compareAndSet(entry, expect, update)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    void appendValue(StringBuilder builder, NumberEntry<K> entry) {
+        builder.append(entry.value());
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, N>> iterator() {
+        return new EntryIterator(table.cursor());
+    }
+
+    static final class NumberEntry<K> extends WeakHashTable.Entry<K> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<NumberEntry> VALUE = AtomicLongFieldUpdater.newUpdater(NumberEntry.class, "value");
+
+        private volatile long value;
+
+        private volatile boolean removed;
+
+        private NumberEntry(K key, ReferenceQueue<? super K> queue, long value) {
+            super(key, WeakHashTable.hash(key), queue);
+            this.value = value;
+        }
+
+        /**
+         * @return The value of this entry or zero if this entry was removed.
+         */
+        long value() {
+            long value = this.value;
+            return removed ? 0L : value;
+        }
+
+        @Override
+        void retire() {
+            clear(); // the cleared key is visible to any thread that observes the marker
+            removed = true;
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, N>> {
+
+        private final WeakHashTable.Cursor<K, NumberEntry<K>> cursor;
+
+        private boolean advanced;
+
+        private EntryIterator(WeakHashTable.Cursor<K, NumberEntry<K>> cursor) {
+            this.cursor = cursor;
+            advanced = cursor.advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return advanced;
+        }
+
+        @Override
+        public Map.Entry<K, N> next() {
+            if (!advanced) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return new AbstractMap.SimpleImmutableEntry<K, N>(cursor.key(), box(cursor.entry().value()));
+            } finally {
+                advanced = cursor.advance();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
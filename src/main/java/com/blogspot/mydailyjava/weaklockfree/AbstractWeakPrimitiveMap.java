@@ -0,0 +1,195 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A thread-safe map with weak keys and primitive values that are stored within the map's entries without boxing. Entries
+ * are based on a key's system hash code and keys are considered equal only by reference equality. A key without a value
+ * behaves as if it was mapped to a value of zero.
+ * </p>
+ * <p>
+ * An explicitly removed entry is retired before it is unlinked such that an entry can mark itself as removed for any
+ * concurrent update of its value.
+ * </p>
+ * This class offers the base implementation for {@link WeakConcurrentLongMap} and {@link WeakConcurrentIntMap}, which share
+ * the implementation of {@link AbstractWeakNumberMap}, for {@link WeakConcurrentRecordMap} and for {@link WeakConcurrentTable}
+ * whose entries hold several object values.
+ */
+abstract class AbstractWeakPrimitiveMap<K, E extends WeakHashTable.Entry<K>> extends ReferenceQueue<K> implements Runnable, WeakCleaner.Cleanable {
+
+    private static final AtomicLong ID = new AtomicLong();
+
+    final WeakHashTable<K, E> table = new WeakHashTable<K, E>();
+
+    private final Thread thread;
+
+    private final WeakCleaner.Registration registration;
+
+    /**
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     */
+    AbstractWeakPrimitiveMap(boolean cleanerThread) {
+        if (cleanerThread) {
+            thread = new Thread(this);
+            thread.setName("weak-ref-cleaner-primitive-" + ID.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            thread = null;
+        }
+        registration = null;
+    }
+
+    /**
+     * @param cleaner The cleaner that removes stale entries of this map.
+     */
+    AbstractWeakPrimitiveMap(WeakCleaner cleaner) {
+        thread = null;
+        registration = cleaner.register(this);
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The entry of the key or {@code null} if no such entry exists.
+     */
+    E entry(K key) {
+        if (key == null) throw new NullPointerException();
+        return table.find(key, WeakHashTable.hash(key));
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return {@code true} if the key already defines a value.
+     */
+    public boolean containsKey(K key) {
+        return entry(key) != null;
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return {@code true} if the key defined a value that was removed.
+     */
+    public boolean remove(K key) {
+        E entry = entry(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.retire();
+        if (table.remove(entry)) {
+            removed(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Clears the entire map.
+     */
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * Cleans all unused references.
+     */
+    public void expungeStaleEntries() {
+        Reference<?> reference;
+        while ((reference = poll()) != null) {
+            expunge(reference);
+        }
+    }
+
+    @Override
+    public int expungeStaleEntries(int maximum) {
+        int expunged = 0;
+        Reference<?> reference;
+        while (expunged < maximum && (reference = poll()) != null) {
+            expunge(reference);
+            expunged++;
+        }
+        return expunged;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expunge(Reference<?> reference) {
+        if (table.remove((WeakHashTable.Entry<?>) reference)) {
+            removed((E) reference);
+        }
+    }
+
+    /**
+     * Invoked after an entry was removed from this map, either explicitly or because its key was collected. An entry is
+     * only reported once, but entries that are removed by {@link #clear()} are not reported.
+     *
+     * @param entry The removed entry.
+     */
+    void removed(E entry) {
+        // do nothing
+    }
+
+    /**
+     * Returns the approximate size of this map where the returned number is at least as big as the actual number of entries.
+     * Entries of collected keys are counted until they are removed. Reading the size never removes stale entries.
+     *
+     * @return The minimum size of this map.
+     */
+    public int approximateSize() {
+        return table.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                expunge(remove());
+            }
+        } catch (InterruptedException ignored) {
+            // do nothing
+        }
+    }
+
+    /**
+     * @return The cleaner thread or {@code null} if no such thread was set.
+     */
+    public Thread getCleanerThread() {
+        return thread;
+    }
+
+    /**
+     * Stops this map's cleaner thread or unregisters this map from its {@link WeakCleaner}. After closing this map,
+     * stale entries are only removed if {@link #expungeStaleEntries()} is invoked explicitly.
+     */
+    public void close() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (registration != null) {
+            registration.unregister();
+        }
+    }
+
+    /**
+     * Appends the value of an entry to a string representation of this map.
+     *
+     * @param builder The builder to append to.
+     * @param entry   The entry to append.
+     */
+    abstract void appendValue(StringBuilder builder, E entry);
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append('{');
+        WeakHashTable.Cursor<K, E> cursor = table.cursor();
+        boolean first = true;
+        while (cursor.advance()) {
+            builder.append(first ? "" : ", ").append(cursor.key()).append('=');
+            appendValue(builder, cursor.entry());
+            first = false;
+        }
+        return builder.append('}').toString();
+    }
+}
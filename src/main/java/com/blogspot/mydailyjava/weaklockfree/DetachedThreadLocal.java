@@ -11,32 +11,98 @@ public class DetachedThreadLocal<T> implements Runnable {
 
     final WeakConcurrentMap<Thread, T> map;
 
+    private final boolean computeOnce;
+
     public DetachedThreadLocal(Cleaner cleaner) {
+        this(cleaner, false);
+    }
+
+    /**
+     * @param cleaner     The cleaning format of this thread local.
+     * @param computeOnce {@code true} if the {@linkplain #initialValue(Thread) initial value} of a thread should be computed
+     *                    at most once, even if it is requested concurrently. This adds overhead to every lookup of a thread
+     *                    that does not define a value.
+     */
+    public DetachedThreadLocal(Cleaner cleaner, boolean computeOnce) {
+        this(cleaner, computeOnce, false);
+    }
+
+    /**
+     * @param cleaner     The cleaning format of this thread local.
+     * @param computeOnce {@code true} if the {@linkplain #initialValue(Thread) initial value} of a thread should be computed
+     *                    at most once, even if it is requested concurrently. This adds overhead to every lookup of a thread
+     *                    that does not define a value.
+     * @param compact     {@code true} if this thread local should be optimized for a large number of short-lived threads,
+     *                    such as virtual threads. A compact thread local is backed by a
+     *                    {@link AbstractWeakConcurrentMap.Backing#WEAK_HASH_TABLE} where every entry is itself the weak
+     *                    reference to its thread and where an {@link Cleaner#INLINE} cleaner removes stale entries in
+     *                    batches of a bounded size rather than with every interaction.
+     */
+    public DetachedThreadLocal(Cleaner cleaner, boolean computeOnce, boolean compact) {
+        this(cleaner, computeOnce, compact, null);
+    }
+
+    /**
+     * @param cleaner     The cleaning format of this thread local.
+     * @param computeOnce {@code true} if the {@linkplain #initialValue(Thread) initial value} of a thread should be computed
+     *                    at most once, even if it is requested concurrently.
+     * @param compact     {@code true} if this thread local should be optimized for a large number of short-lived threads.
+     * @param statistics  The counter that records the statistics of this thread local's backing map or {@code null} if no
+     *                    statistics should be recorded.
+     */
+    public DetachedThreadLocal(Cleaner cleaner, boolean computeOnce, boolean compact, StatisticsCounter statistics) {
+        this.computeOnce = computeOnce;
+        WeakConcurrentMap.Builder builder = new WeakConcurrentMap.Builder().backing(compact
+                ? AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE
+                : AbstractWeakConcurrentMap.Backing.CONCURRENT_HASH_MAP);
+        if (statistics != null) {
+            builder.recordStatistics(statistics);
+        }
         switch (cleaner) {
             case THREAD:
-            case MANUAL:
-                map = new WeakConcurrentMap<Thread, T>(cleaner == Cleaner.THREAD) {
-                    @Override
-                    protected T defaultValue(Thread key) {
-                        return DetachedThreadLocal.this.initialValue(key);
-                    }
-                };
+                builder.cleanerThread();
+                break;
+            case SHARED:
+                builder.cleaner(WeakCleaner.shared());
                 break;
             case INLINE:
-                map = new WeakConcurrentMap.WithInlinedExpunction<Thread, T>() {
-                    @Override
-                    protected T defaultValue(Thread key) {
-                        return DetachedThreadLocal.this.initialValue(key);
-                    }
-                };
+                if (compact) {
+                    builder.amortizedExpunction(64, 256);
+                } else {
+                    builder.inlinedExpunction();
+                }
+                break;
+            case MANUAL:
                 break;
             default:
                 throw new AssertionError();
         }
+        if (cleaner != Cleaner.INLINE) {
+            map = new WeakConcurrentMap<Thread, T>(builder) {
+                @Override
+                protected T defaultValue(Thread key) {
+                    return DetachedThreadLocal.this.retainedInitialValue(key);
+                }
+            };
+        } else if (compact) {
+            map = new WeakConcurrentMap.WithAmortizedExpunction<Thread, T>(builder) {
+                @Override
+                protected T defaultValue(Thread key) {
+                    return DetachedThreadLocal.this.retainedInitialValue(key);
+                }
+            };
+        } else {
+            map = new WeakConcurrentMap.WithInlinedExpunction<Thread, T>(builder) {
+                @Override
+                protected T defaultValue(Thread key) {
+                    return DetachedThreadLocal.this.retainedInitialValue(key);
+                }
+            };
+        }
     }
 
     public T get() {
-        return map.get(Thread.currentThread());
+        return get(Thread.currentThread());
     }
 
     public T getIfPresent() {
@@ -75,7 +141,7 @@ public class DetachedThreadLocal<T> implements Runnable {
      * @return The value being set.
      */
     public T fetchFrom(Thread thread) {
-        T value = map.get(thread);
+        T value = get(thread);
         if (value != null) {
             set(inheritValue(value));
         }
@@ -86,8 +152,16 @@ public class DetachedThreadLocal<T> implements Runnable {
      * @param thread The thread for which to set a thread-local value.
      * @return The value accociated with this thread.
      */
+    @SuppressWarnings({"rawtypes", "unchecked"})
     public T get(Thread thread) {
-        return map.get(thread);
+        T value = computeOnce
+                ? (T) map.computeIfAbsent(thread, this, (AbstractWeakConcurrentMap.ArgumentLoader) InitialValueLoader.INSTANCE)
+                : map.get(thread);
+        return value == null && !isInitialValueRetained(thread) ? initialValue(thread) : value;
+    }
+
+    private T retainedInitialValue(Thread thread) {
+        return isInitialValueRetained(thread) ? initialValue(thread) : null;
     }
 
     /**
@@ -106,6 +180,18 @@ public class DetachedThreadLocal<T> implements Runnable {
         return null;
     }
 
+    /**
+     * Determines if a thread's initial value is stored once it is computed. If an initial value is not retained, it is
+     * computed anew for every lookup of a thread that does not define a value but such a thread never occupies an entry
+     * of this thread local. This is meant for threads that are numerous and only read a value that is cheap to compute.
+     *
+     * @param thread The thread for which an initial value was requested.
+     * @return {@code true} if the thread's initial value should be stored by this thread local.
+     */
+    protected boolean isInitialValueRetained(Thread thread) {
+        return true;
+    }
+
     /**
      * @param value The value that is inherited.
      * @return The inherited value.
@@ -121,6 +207,21 @@ public class DetachedThreadLocal<T> implements Runnable {
         return map;
     }
 
+    /**
+     * @return A snapshot of the statistics of this thread local's backing map.
+     * @throws IllegalStateException If this thread local does not record statistics.
+     */
+    public Statistics getStatistics() {
+        return map.getStatistics();
+    }
+
+    /**
+     * Stops this thread local's cleaner thread or unregisters this thread local from the shared cleaner.
+     */
+    public void close() {
+        map.close();
+    }
+
     @Override
     public void run() {
         map.run();
@@ -128,11 +229,26 @@ public class DetachedThreadLocal<T> implements Runnable {
 
     /**
      * Determines the cleaning format. A reference is removed either by an explicitly started cleaner thread
-     * associated with this instance ({@link Cleaner#THREAD}), as a result of interacting with this thread local
+     * associated with this instance ({@link Cleaner#THREAD}), by the {@linkplain WeakCleaner#shared() shared cleaner}
+     * that removes references of many instances ({@link Cleaner#SHARED}), as a result of interacting with this thread local
      * from any thread ({@link Cleaner#INLINE} or manually by submitting the detached thread local to a thread
      * ({@link Cleaner#MANUAL}).
      */
     public enum Cleaner {
-        THREAD, INLINE, MANUAL
+        THREAD, INLINE, MANUAL, SHARED
+    }
+
+    /**
+     * A loader that computes a thread's initial value of a detached thread local.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private enum InitialValueLoader implements AbstractWeakConcurrentMap.ArgumentLoader<Thread, DetachedThreadLocal, Object> {
+
+        INSTANCE;
+
+        @Override
+        public Object load(Thread thread, DetachedThreadLocal threadLocal) {
+            return threadLocal.retainedInitialValue(thread);
+        }
     }
 }
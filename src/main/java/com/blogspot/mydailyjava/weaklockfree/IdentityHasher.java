@@ -0,0 +1,22 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * <p>
+ * Computes the hash code by which a weak concurrent map distributes its keys, instead of a key's system hash code. Keys
+ * are still considered equal only by reference equality. Computing the system hash code of an object that was not hashed
+ * before requires the JVM to install a hash code in the object's header which is comparably expensive. If keys already
+ * carry a stable identifier, a hasher can derive the hash code from this identifier instead.
+ * </p>
+ * The hash code of a key must never change while the key is contained in a map. Hash codes do not need to be unique but
+ * keys with the same hash code are distributed to the same bucket of a map.
+ *
+ * @param <K> The type of the keys to hash.
+ */
+public interface IdentityHasher<K> {
+
+    /**
+     * @param key The key to hash.
+     * @return The key's hash code.
+     */
+    int hash(K key);
+}
@@ -0,0 +1,206 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Traverses the entries of a {@link WeakHashTable} in parallel by splitting cursors over ranges of the table's bins.
+ * Ranges are reduced in the common fork join pool or are traversed by a splittable spliterator. Maps that are backed by
+ * a {@link ConcurrentHashMap} are reduced by the backing map's own bulk operation.
+ * </p>
+ * This class references types of Java 8 and must only be loaded if these types are available.
+ */
+final class ParallelTraversal {
+
+    private ParallelTraversal() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param table                The table to traverse.
+     * @param parallelismThreshold The approximate number of entries that are required for traversing in parallel.
+     * @param reduction            The reduction of a range of the table's entries.
+     * @param reducer              The reducer for combining the reductions of two ranges.
+     * @param <K>                  The type of the table's keys.
+     * @param <E>                  The type of the table's entries.
+     * @param <U>                  The type of the reductions.
+     * @return The combined reduction of all entries or {@code null} if no entry was reduced.
+     */
+    static <K, E extends WeakHashTable.Entry<K>, U> U reduce(WeakHashTable<K, E> table,
+                                                             long parallelismThreshold,
+                                                             Reduction<K, E, U> reduction,
+                                                             AbstractWeakConcurrentMap.Reducer<U> reducer) {
+        int batch = batchFor(parallelismThreshold, table.size());
+        return batch == 0
+                ? reduction.reduce(table.cursor())
+                : ForkJoinPool.commonPool().invoke(new ReduceTask<K, E, U>(table.cursor(), batch, reduction, reducer, null));
+    }
+
+    /**
+     * @param target               The concurrent hash map that backs a map.
+     * @param parallelismThreshold The approximate number of entries that are required for traversing in parallel.
+     * @param transformer          The transformation of an entry or {@code null} if an entry should be ignored.
+     * @param reducer              The reducer for combining two transformations.
+     * @param <K>                  The type of the map's keys.
+     * @param <V>                  The type of the map's values.
+     * @param <U>                  The type of the transformations.
+     * @return The accumulated transformations of all entries of live keys or {@code null} if no entry was transformed.
+     */
+    static <K, V, U> U reduce(ConcurrentHashMap<AbstractWeakConcurrentMap.WeakKey<K>, V> target,
+                              long parallelismThreshold,
+                              final AbstractWeakConcurrentMap.EntryFunction<? super K, ? super V, ? extends U> transformer,
+                              final AbstractWeakConcurrentMap.Reducer<U> reducer) {
+        return target.reduce(parallelismThreshold, new BiFunction<AbstractWeakConcurrentMap.WeakKey<K>, V, U>() {
+            @Override
+            public U apply(AbstractWeakConcurrentMap.WeakKey<K> reference, V value) {
+                K key = reference.get();
+                return key == null ? null : transformer.apply(key, value);
+            }
+        }, new BiFunction<U, U, U>() {
+            @Override
+            public U apply(U left, U right) {
+                return reducer.reduce(left, right);
+            }
+        });
+    }
+
+    /**
+     * Computes how often a traversal is split, similarly to the bulk operations of a {@link ConcurrentHashMap}.
+     */
+    private static int batchFor(long parallelismThreshold, long size) {
+        if (parallelismThreshold == Long.MAX_VALUE || size <= 1L || size < parallelismThreshold) {
+            return 0;
+        }
+        int parallelism = ForkJoinPool.getCommonPoolParallelism() << 2;
+        return parallelismThreshold <= 0L || (size /= parallelismThreshold) >= parallelism ? parallelism : (int) size;
+    }
+
+    /**
+     * A reduction of the entries that a cursor advances over.
+     *
+     * @param <K> The type of the table's keys.
+     * @param <E> The type of the table's entries.
+     * @param <U> The type of the reduction.
+     */
+    interface Reduction<K, E extends WeakHashTable.Entry<K>, U> {
+
+        /**
+         * @param cursor The cursor to advance until it is exhausted.
+         * @return The reduction of the cursor's entries or {@code null} if no entry was reduced.
+         */
+        U reduce(WeakHashTable.Cursor<K, E> cursor);
+    }
+
+    private static final class ReduceTask<K, E extends WeakHashTable.Entry<K>, U> extends RecursiveTask<U> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final WeakHashTable.Cursor<K, E> cursor;
+
+        private final int batch;
+
+        private final Reduction<K, E, U> reduction;
+
+        private final AbstractWeakConcurrentMap.Reducer<U> reducer;
+
+        private final ReduceTask<K, E, U> next;
+
+        private ReduceTask(WeakHashTable.Cursor<K, E> cursor,
+                           int batch,
+                           Reduction<K, E, U> reduction,
+                           AbstractWeakConcurrentMap.Reducer<U> reducer,
+                           ReduceTask<K, E, U> next) {
+            this.cursor = cursor;
+            this.batch = batch;
+            this.reduction = reduction;
+            this.reducer = reducer;
+            this.next = next;
+        }
+
+        @Override
+        protected U compute() {
+            ReduceTask<K, E, U> forked = null;
+            WeakHashTable.Cursor<K, E> split;
+            for (int batch = this.batch; batch > 0 && (split = cursor.split()) != null; ) {
+                batch >>>= 1;
+                forked = new ReduceTask<K, E, U>(split, batch, reduction, reducer, forked);
+                forked.fork();
+            }
+            U result = reduction.reduce(cursor);
+            for (; forked != null; forked = forked.next) {
+                result = AbstractWeakConcurrentMap.combine(result, forked.join(), reducer);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A spliterator over the elements that are derived from the live entries of a table.
+     *
+     * @param <K> The type of the table's keys.
+     * @param <E> The type of the table's entries.
+     * @param <T> The type of the elements.
+     */
+    abstract static class CursorSpliterator<K, E extends WeakHashTable.Entry<K>, T> implements Spliterator<T> {
+
+        private final WeakHashTable.Cursor<K, E> cursor;
+
+        private final int size;
+
+        /**
+         * @param cursor The cursor to advance.
+         * @param size   The size of the table when the traversal was started.
+         */
+        CursorSpliterator(WeakHashTable.Cursor<K, E> cursor, int size) {
+            this.cursor = cursor;
+            this.size = size;
+        }
+
+        /**
+         * @param cursor The cursor that points to a live entry.
+         * @return The element of the current entry or {@code null} if the entry should be skipped.
+         */
+        abstract T element(WeakHashTable.Cursor<K, E> cursor);
+
+        /**
+         * @param cursor The cursor that was split off.
+         * @param size   The size of the table when the traversal was started.
+         * @return A spliterator for the split off cursor.
+         */
+        abstract CursorSpliterator<K, E, T> split(WeakHashTable.Cursor<K, E> cursor, int size);
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (action == null) throw new NullPointerException();
+            while (cursor.advance()) {
+                T element = element(cursor);
+                if (element != null) {
+                    action.accept(element);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            WeakHashTable.Cursor<K, E> split = cursor.split();
+            return split == null ? null : split(split, size);
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) Math.ceil(size * cursor.remaining());
+        }
+
+        @Override
+        public int characteristics() {
+            return CONCURRENT | DISTINCT | NONNULL;
+        }
+    }
+}
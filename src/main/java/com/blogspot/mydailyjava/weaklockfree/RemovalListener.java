@@ -0,0 +1,57 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * <p>
+ * A listener that is notified of values that are removed from a weak concurrent map, for example to release resources that
+ * are owned by a value. A listener is notified at most once for any removed value.
+ * </p>
+ * <p>
+ * Values of stale entries are delivered by the thread that removes the stale entries, in batches. Unless a map removes
+ * stale entries as a side effect of interacting with it, a listener is therefore never notified by a thread that reads from
+ * or writes to a map. A listener is not notified of values that were collected themselves.
+ * </p>
+ *
+ * @param <V> The type of the removed values.
+ */
+public interface RemovalListener<V> {
+
+    /**
+     * Notifies this listener of a removed value. Any exception that is thrown when a stale entry's value is delivered is
+     * suppressed such that the remaining values of a batch are still delivered.
+     *
+     * @param value The removed value.
+     * @param cause The cause of the removal.
+     */
+    void onRemoval(V value, Cause cause);
+
+    /**
+     * Determines why a value was removed from a map.
+     */
+    enum Cause {
+
+        /**
+         * The value's key was garbage collected.
+         */
+        COLLECTED,
+
+        /**
+         * The value was removed explicitly.
+         */
+        EXPLICIT,
+
+        /**
+         * The value was removed as the map was cleared.
+         */
+        CLEARED,
+
+        /**
+         * The value was evicted as the map exceeded its maximum size or weight.
+         */
+        EVICTED,
+
+        /**
+         * The value was removed as it was not written or accessed for longer than the map's expiration time.
+         */
+        EXPIRED
+    }
+}
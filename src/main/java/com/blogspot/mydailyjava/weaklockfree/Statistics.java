@@ -0,0 +1,167 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * An immutable snapshot of the statistics of a weak concurrent map as recorded by a {@link StatisticsCounter}.
+ */
+public final class Statistics {
+
+    private final long hitCount, missCount, defaultValueCount, discardedDefaultValueCount, putCount, removalCount, expungedCount, drainCount, staleBacklog;
+
+    /**
+     * @param hitCount                   The number of lookups of keys that defined a value.
+     * @param missCount                  The number of lookups of keys that did not define a value.
+     * @param defaultValueCount          The number of created default values.
+     * @param discardedDefaultValueCount The number of created default values that were discarded due to a race.
+     * @param putCount                   The number of values that were set.
+     * @param removalCount               The number of values that were removed explicitly.
+     * @param expungedCount              The number of stale entries that were removed.
+     * @param drainCount                 The number of batches in which stale entries were removed.
+     * @param staleBacklog               The approximate number of stale entries that are not yet removed.
+     */
+    public Statistics(long hitCount,
+                      long missCount,
+                      long defaultValueCount,
+                      long discardedDefaultValueCount,
+                      long putCount,
+                      long removalCount,
+                      long expungedCount,
+                      long drainCount,
+                      long staleBacklog) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.defaultValueCount = defaultValueCount;
+        this.discardedDefaultValueCount = discardedDefaultValueCount;
+        this.putCount = putCount;
+        this.removalCount = removalCount;
+        this.expungedCount = expungedCount;
+        this.drainCount = drainCount;
+        this.staleBacklog = staleBacklog;
+    }
+
+    /**
+     * @return The number of lookups of keys that defined a value.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of lookups of keys that did not define a value.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of created default values, including discarded values.
+     */
+    public long getDefaultValueCount() {
+        return defaultValueCount;
+    }
+
+    /**
+     * @return The number of created default values that were discarded in favor of a value that was set concurrently.
+     */
+    public long getDiscardedDefaultValueCount() {
+        return discardedDefaultValueCount;
+    }
+
+    /**
+     * @return The number of values that were set.
+     */
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return The number of values that were removed explicitly.
+     */
+    public long getRemovalCount() {
+        return removalCount;
+    }
+
+    /**
+     * @return The number of stale entries that were removed, including entries that were removed in batches.
+     */
+    public long getExpungedCount() {
+        return expungedCount;
+    }
+
+    /**
+     * @return The number of batches in which stale entries were removed by a {@link WeakCleaner} or by amortized expunction.
+     */
+    public long getDrainCount() {
+        return drainCount;
+    }
+
+    /**
+     * @return The approximate number of stale entries at the time of the snapshot that were not yet removed.
+     */
+    public long getStaleBacklog() {
+        return staleBacklog;
+    }
+
+    /**
+     * @param staleBacklog The approximate number of stale entries that are not yet removed.
+     * @return A copy of this snapshot with the given stale backlog.
+     */
+    public Statistics withStaleBacklog(long staleBacklog) {
+        return new Statistics(hitCount,
+                missCount,
+                defaultValueCount,
+                discardedDefaultValueCount,
+                putCount,
+                removalCount,
+                expungedCount,
+                drainCount,
+                staleBacklog);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        } else if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        Statistics statistics = (Statistics) other;
+        return hitCount == statistics.hitCount
+                && missCount == statistics.missCount
+                && defaultValueCount == statistics.defaultValueCount
+                && discardedDefaultValueCount == statistics.discardedDefaultValueCount
+                && putCount == statistics.putCount
+                && removalCount == statistics.removalCount
+                && expungedCount == statistics.expungedCount
+                && drainCount == statistics.drainCount
+                && staleBacklog == statistics.staleBacklog;
+    }
+
+    @Override
+    public int hashCode() {
+        long result = hitCount;
+        result = 31 * result + missCount;
+        result = 31 * result + defaultValueCount;
+        result = 31 * result + discardedDefaultValueCount;
+        result = 31 * result + putCount;
+        result = 31 * result + removalCount;
+        result = 31 * result + expungedCount;
+        result = 31 * result + drainCount;
+        result = 31 * result + staleBacklog;
+        return (int) (result ^ (result >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "Statistics{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", defaultValueCount=" + defaultValueCount +
+                ", discardedDefaultValueCount=" + discardedDefaultValueCount +
+                ", putCount=" + putCount +
+                ", removalCount=" + removalCount +
+                ", expungedCount=" + expungedCount +
+                ", drainCount=" + drainCount +
+                ", staleBacklog=" + staleBacklog +
+                '}';
+    }
+}
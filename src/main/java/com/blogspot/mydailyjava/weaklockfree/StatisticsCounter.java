@@ -0,0 +1,70 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * <p>
+ * A counter of the operations of a weak concurrent map. A counter is invoked on the hot path of a map's operations and
+ * should therefore neither block nor contend. A counter can be implemented to bridge a map's statistics to a metrics
+ * system where {@link StripedStatisticsCounter} offers a default implementation.
+ * </p>
+ * <p>
+ * A map only records statistics if it is created with a counter. Otherwise, a map does not record any statistics.
+ * </p>
+ */
+public interface StatisticsCounter {
+
+    /**
+     * Records lookups of keys that defined a value.
+     *
+     * @param count The number of lookups.
+     */
+    void recordHits(int count);
+
+    /**
+     * Records lookups of keys that did not define a value.
+     *
+     * @param count The number of lookups.
+     */
+    void recordMisses(int count);
+
+    /**
+     * Records the creation of a default value.
+     *
+     * @param discarded {@code true} if the created value was discarded in favor of a value that was set concurrently.
+     */
+    void recordDefaultValue(boolean discarded);
+
+    /**
+     * Records that values were set.
+     *
+     * @param count The number of values that were set.
+     */
+    void recordPuts(int count);
+
+    /**
+     * Records that values were removed explicitly.
+     *
+     * @param count The number of values that were removed.
+     */
+    void recordRemovals(int count);
+
+    /**
+     * Records the removal of stale entries outside of a batch, for example by a map's own cleaner thread.
+     *
+     * @param count The number of removed stale entries.
+     */
+    void recordExpunctions(int count);
+
+    /**
+     * Records a batch of stale entries that was removed by a {@link WeakCleaner} or by amortized expunction.
+     *
+     * @param count The number of stale entries that were removed within the batch.
+     */
+    void recordDrain(int count);
+
+    /**
+     * Returns a snapshot of the recorded statistics. The stale backlog is not known to a counter and is added by the map.
+     *
+     * @return A snapshot of the recorded statistics.
+     */
+    Statistics snapshot();
+}
@@ -0,0 +1,62 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>
+ * A counter that is updated by a compare-and-swap of a single base value until two threads contend on an update. After
+ * that, updates are applied to stripes that are selected by the updating thread's system hash code where each stripe
+ * is padded to avoid false sharing. This way, a counter does not require additional memory unless it is contended.
+ * </p>
+ * A sum is computed without locking such that a sum that is read during concurrent updates is not necessarily exact.
+ */
+final class StripedCounter {
+
+    private static final int PADDING = 16;
+
+    private static final AtomicLongFieldUpdater<StripedCounter> BASE = AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+
+    private static final AtomicReferenceFieldUpdater<StripedCounter, AtomicLongArray> CELLS = AtomicReferenceFieldUpdater.newUpdater(StripedCounter.class, AtomicLongArray.class, "cells");
+
+    private volatile long base;
+
+    private volatile AtomicLongArray cells;
+
+    /**
+     * @param delta The delta to add to this counter.
+     */
+    void add(long delta) {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            long base = this.base;
+            if (BASE.compareAndSet(this, base, base + delta)) {
+                return;
+            }
+            cells = inflate();
+        }
+        int stripes = cells.length() / PADDING;
+        cells.getAndAdd((System.identityHashCode(Thread.currentThread()) & (stripes - 1)) * PADDING, delta);
+    }
+
+    private AtomicLongArray inflate() {
+        int stripes = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors() * 2) * 2 - 1);
+        CELLS.compareAndSet(this, null, new AtomicLongArray(stripes * PADDING));
+        return cells;
+    }
+
+    /**
+     * @return The sum of all updates of this counter.
+     */
+    long sum() {
+        long sum = base;
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int index = 0; index < cells.length(); index += PADDING) {
+                sum += cells.get(index);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,86 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * <p>
+ * A {@link StatisticsCounter} that records every count in a {@link StripedCounter}. A count is updated in a single value
+ * until concurrent recordings contend, after which its recordings are spread over padded stripes that are selected by the
+ * recording thread's system hash code.
+ * </p>
+ * <p>
+ * A snapshot sums all stripes without locking such that a snapshot that is taken during concurrent recordings is not
+ * necessarily consistent among its counts.
+ * </p>
+ */
+public class StripedStatisticsCounter implements StatisticsCounter {
+
+    private static final int HITS = 0, MISSES = 1, DEFAULT_VALUES = 2, DISCARDED_DEFAULT_VALUES = 3, PUTS = 4, REMOVALS = 5, EXPUNCTIONS = 6, DRAINS = 7, COUNTS = 8;
+
+    private final StripedCounter[] counters;
+
+    public StripedStatisticsCounter() {
+        counters = new StripedCounter[COUNTS];
+        for (int index = 0; index < COUNTS; index++) {
+            counters[index] = new StripedCounter();
+        }
+    }
+
+    private void add(int counter, int delta) {
+        counters[counter].add(delta);
+    }
+
+    private long sum(int counter) {
+        return counters[counter].sum();
+    }
+
+    @Override
+    public void recordHits(int count) {
+        add(HITS, count);
+    }
+
+    @Override
+    public void recordMisses(int count) {
+        add(MISSES, count);
+    }
+
+    @Override
+    public void recordDefaultValue(boolean discarded) {
+        add(DEFAULT_VALUES, 1);
+        if (discarded) {
+            add(DISCARDED_DEFAULT_VALUES, 1);
+        }
+    }
+
+    @Override
+    public void recordPuts(int count) {
+        add(PUTS, count);
+    }
+
+    @Override
+    public void recordRemovals(int count) {
+        add(REMOVALS, count);
+    }
+
+    @Override
+    public void recordExpunctions(int count) {
+        add(EXPUNCTIONS, count);
+    }
+
+    @Override
+    public void recordDrain(int count) {
+        add(EXPUNCTIONS, count);
+        add(DRAINS, 1);
+    }
+
+    @Override
+    public Statistics snapshot() {
+        return new Statistics(sum(HITS),
+                sum(MISSES),
+                sum(DEFAULT_VALUES),
+                sum(DISCARDED_DEFAULT_VALUES),
+                sum(PUTS),
+                sum(REMOVALS),
+                sum(EXPUNCTIONS),
+                sum(DRAINS),
+                0);
+    }
+}
@@ -0,0 +1,178 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * A cleaner that removes stale entries of any number of registered weak concurrent maps using a fixed number
+ * of threads instead of starting a cleaner thread per map.
+ * </p>
+ * <p>
+ * The cleaner's threads visit the registered maps in turn and remove a limited batch of stale entries from each
+ * map before moving on to the next map. If no stale entries were found during a full round over all registered maps,
+ * a thread pauses for the configured interval. Maps are only referenced weakly by this cleaner such that a map that
+ * is not {@linkplain Registration#unregister() unregistered} explicitly is unregistered once it is garbage collected.
+ * </p>
+ */
+public class WeakCleaner {
+
+    private static final AtomicLong ID = new AtomicLong();
+
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Thread[] threads;
+
+    private final int batch;
+
+    private final long interval;
+
+    /**
+     * Creates a cleaner with a single thread that removes up to 1024 stale entries per map at once and that pauses for
+     * 100 milliseconds if no map contains stale entries.
+     */
+    public WeakCleaner() {
+        this(1, 1024, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param threads  The number of threads that remove stale entries.
+     * @param batch    The maximum number of stale entries that are removed from a map before visiting the next map.
+     * @param interval The time a thread pauses if no registered map contains stale entries which must be positive.
+     * @param timeUnit The time unit of the interval.
+     */
+    public WeakCleaner(int threads, int batch, long interval, TimeUnit timeUnit) {
+        if (threads < 1 || batch < 1 || interval < 1) throw new IllegalArgumentException();
+        this.batch = batch;
+        this.interval = timeUnit.toNanos(interval);
+        long id = ID.getAndIncrement();
+        this.threads = new Thread[threads];
+        for (int index = 0; index < threads; index++) {
+            Thread thread = new Thread(new Worker());
+            thread.setName("weak-ref-cleaner-shared-" + id + "-" + index);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            thread.start();
+            this.threads[index] = thread;
+        }
+    }
+
+    /**
+     * @return A cleaner with a single thread that is shared by all maps of this library that use a shared cleaner.
+     */
+    public static WeakCleaner shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Registers a map for the removal of its stale entries.
+     *
+     * @param cleanable The map to register.
+     * @return A registration that allows to unregister the map.
+     */
+    public Registration register(Cleanable cleanable) {
+        if (cleanable == null) throw new NullPointerException();
+        Registration registration = new Registration(cleanable);
+        size.incrementAndGet();
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * @return The approximate number of maps that are currently registered with this cleaner.
+     */
+    public int approximateSize() {
+        return size.get();
+    }
+
+    /**
+     * Stops all threads of this cleaner. Registered maps are no longer cleaned after this cleaner is closed.
+     */
+    public void close() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return The threads of this cleaner.
+     */
+    public Thread[] getCleanerThreads() {
+        return threads.clone();
+    }
+
+    /**
+     * A data structure with stale entries that can be removed by a {@link WeakCleaner}.
+     */
+    public interface Cleanable {
+
+        /**
+         * Cleans unused references up to a maximum number of references.
+         *
+         * @param maximum The maximum number of references to clean.
+         * @return The number of cleaned references.
+         */
+        int expungeStaleEntries(int maximum);
+    }
+
+    /**
+     * A registration of a map with a {@link WeakCleaner}.
+     */
+    public static final class Registration extends WeakReference<Cleanable> {
+
+        private volatile boolean unregistered;
+
+        private Registration(Cleanable cleanable) {
+            super(cleanable);
+        }
+
+        /**
+         * Unregisters the map such that its stale entries are no longer removed by the cleaner.
+         */
+        public void unregister() {
+            unregistered = true;
+            clear();
+        }
+    }
+
+    private static class Shared {
+
+        private static final WeakCleaner INSTANCE = new WeakCleaner();
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (!Thread.interrupted()) {
+                Registration registration = registrations.poll();
+                if (registration == null) {
+                    LockSupport.parkNanos(interval);
+                    continue;
+                }
+                Cleanable cleanable = registration.get();
+                if (cleanable == null || registration.unregistered) {
+                    size.decrementAndGet();
+                    continue;
+                }
+                int expunged = cleanable.expungeStaleEntries(batch);
+                cleanable = null; // do not retain the map while pausing
+                registrations.add(registration);
+                if (expunged > 0) {
+                    idle = 0;
+                } else if (++idle >= size.get()) {
+                    idle = 0;
+                    LockSupport.parkNanos(interval);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A {@link WeakConcurrentMap} that evicts entries once it contains more than a maximum number of entries or once the
+ * total weight of its values exceeds a maximum weight, and that expires entries that were not written or accessed for
+ * a given time. Entries of collected keys are removed as by any weak concurrent map and are removed before any entry is
+ * evicted. Keys are referenced weakly and values are referenced strongly.
+ * </p>
+ * <p>
+ * Entries are evicted by a CLOCK policy which approximates evicting the least recently used entries: Looking up a key
+ * marks its entry as referenced by a volatile flag that is only written if it is not already set, such that reads never
+ * lock or contend on shared state. Once a cache exceeds its bounds, the writing thread sweeps over the cache's entries,
+ * unmarking referenced entries and evicting unreferenced entries until the cache is within its bounds again. Only a
+ * single thread sweeps at a time where other writers do not wait for the sweep to complete. Inserted entries are not
+ * marked as referenced such that entries that are never looked up are evicted before entries that are looked up.
+ * </p>
+ * <p>
+ * Entries are expired by a timing wheel where each entry is scheduled in the bucket of the tick in which it expires.
+ * Writing or accessing an entry only updates its time stamps where an entry that is found in an elapsed bucket without
+ * being expired is scheduled anew. Elapsed buckets are processed by the threads that remove stale entries of the cache,
+ * namely a cleaner thread, a {@link WeakCleaner} or a thread that invokes {@link #expungeStaleEntries()}, and by threads
+ * that write to the cache. An expired entry that is looked up before it is removed is removed by the looking up thread.
+ * Until it is removed, an expired entry might however still be visited by an iteration.
+ * </p>
+ * <p>
+ * A cache is created by {@link WeakConcurrentMap.Builder#maximumSize(long)},
+ * {@link WeakConcurrentMap.Builder#maximumWeight(long, Weigher)}, {@link WeakConcurrentMap.Builder#expireAfterWrite(long, TimeUnit)}
+ * or by {@link WeakConcurrentMap.Builder#expireAfterAccess(long, TimeUnit)}. Evicted values are delivered to a removal
+ * listener with the cause {@link RemovalListener.Cause#EVICTED} and expired values with the cause
+ * {@link RemovalListener.Cause#EXPIRED}.
+ * </p>
+ *
+ * @param <K> The type of the cache's keys.
+ * @param <V> The type of the cache's values.
+ */
+public class WeakConcurrentCache<K, V> extends WeakConcurrentMap<K, V> {
+
+    private static final int SWEEP = 16, BUDGET = 64;
+
+    private final Policy<V> policy;
+
+    private final Expiration<K, V> expiration;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private int hand; // only accessed by the evicting thread
+
+    /**
+     * @param maximumSize The maximum number of entries of this cache.
+     */
+    public WeakConcurrentCache(long maximumSize) {
+        this(new Builder().maximumSize(maximumSize));
+    }
+
+    /**
+     * Creates a cache as it is configured by a builder that defines a maximum size or weight or an expiration time.
+     *
+     * @param builder The builder that configures this cache.
+     */
+    @SuppressWarnings("unchecked")
+    public WeakConcurrentCache(Builder builder) {
+        this(builder, new Policy<V>(builder.maximumSize,
+                builder.maximumWeight,
+                (Weigher<? super V>) builder.weigher,
+                (RemovalListener<? super V>) builder.listener()));
+    }
+
+    private WeakConcurrentCache(Builder builder, Policy<V> policy) {
+        super(builder.forCache(policy));
+        this.policy = policy;
+        expiration = builder.expireAfterWrite < 0L && builder.expireAfterAccess < 0L
+                ? null
+                : new Expiration<K, V>(builder.ticker == null ? Ticker.SYSTEM : builder.ticker, builder.expireAfterWrite, builder.expireAfterAccess);
+        startCleanerThreads(); // the threads must observe the expiration
+    }
+
+    @Override
+    WeakEntry<K, V> newEntry(K key, int hash, V value) {
+        return new CacheEntry<K, V>(key, hash, queue(hash), value, expiration == null ? 0L : expiration.ticker.read());
+    }
+
+    @Override
+    WeakEntry<K, V> onLookup(WeakEntry<K, V> entry, boolean access) {
+        if (entry != null) {
+            CacheEntry<K, V> cacheEntry = (CacheEntry<K, V>) entry;
+            if (expiration != null) {
+                long now = expiration.ticker.read();
+                if (expiration.isExpired(cacheEntry, now)) {
+                    expire(cacheEntry);
+                    return null;
+                } else if (access) {
+                    expiration.access(cacheEntry, now);
+                }
+            }
+            if (access) {
+                cacheEntry.access();
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    void onWrite(WeakEntry<K, V> entry, V previous, V value) {
+        policy.acquire(value);
+        if (previous != null) {
+            policy.release(previous);
+        }
+        if (expiration != null) {
+            if (previous == null) {
+                expiration.schedule((CacheEntry<K, V>) entry);
+            } else {
+                expiration.write((CacheEntry<K, V>) entry, expiration.ticker.read());
+            }
+            expire(BUDGET);
+        }
+        if (policy.exceeds(this)) {
+            evict();
+        }
+    }
+
+    @Override
+    int expire(int maximum) {
+        if (expiration == null || maximum <= 0) {
+            return 0;
+        }
+        long now = expiration.ticker.read(), current = expiration.tickOf(now);
+        if (expiration.processed >= current || !expiration.advancing.compareAndSet(false, true)) {
+            return 0;
+        }
+        int expired = 0;
+        try {
+            // buckets that elapsed more than half a revolution ago are processed once their bucket is reached again
+            long next = Math.max(expiration.processed, current - Expiration.BUCKETS / 2);
+            while (next < current) {
+                Queue<CacheEntry<K, V>> bucket = expiration.bucket(next);
+                CacheEntry<K, V> entry;
+                while (expired < maximum && (entry = bucket.poll()) != null) {
+                    if (entry.value() == null) {
+                        continue; // the entry was already removed
+                    } else if (expiration.isExpired(entry, now)) {
+                        if (expire(entry)) {
+                            expired++;
+                        }
+                    } else {
+                        expiration.schedule(entry);
+                    }
+                }
+                if (expired == maximum) {
+                    break;
+                }
+                next++;
+            }
+            expiration.processed = next;
+        } finally {
+            expiration.advancing.set(false);
+        }
+        return expired;
+    }
+
+    @Override
+    long expirationInterval() {
+        return expiration == null ? 0L : Math.max(1L, TimeUnit.NANOSECONDS.toMillis(expiration.tick));
+    }
+
+    private boolean expire(CacheEntry<K, V> entry) {
+        V value = entry.retireValue();
+        table.remove(entry);
+        if (value == null) {
+            return false;
+        }
+        policy.deliver(value, RemovalListener.Cause.EXPIRED);
+        return true;
+    }
+
+    /**
+     * @return The approximate total weight of this cache's values or its approximate size if no weigher is used.
+     */
+    public long approximateWeight() {
+        return policy.weigher == null ? approximateSize() : policy.weight.sum();
+    }
+
+    /**
+     * Evicts entries until this cache is within its bounds, unless another thread is already evicting entries. A limited
+     * number of stale and expired entries is removed first such that a writer does not pay for removing the entire backlog
+     * of stale entries. A single invocation sweeps over all entries at most twice.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            expungeStaleEntries(BUDGET);
+            List<WeakHashTable.Entry<?>> buffer = new ArrayList<WeakHashTable.Entry<?>>();
+            int laps = 0;
+            while (laps < 2 && policy.exceeds(this)) {
+                buffer.clear();
+                hand = table.scan(hand, SWEEP, buffer);
+                if (hand == 0) {
+                    laps++;
+                }
+                for (WeakHashTable.Entry<?> element : buffer) {
+                    if (!policy.exceeds(this)) {
+                        break;
+                    }
+                    @SuppressWarnings("unchecked")
+                    CacheEntry<K, V> entry = (CacheEntry<K, V>) element;
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else {
+                        V value = entry.retireValue();
+                        if (value != null) {
+                            table.remove(entry);
+                            policy.deliver(value, RemovalListener.Cause.EVICTED);
+                        }
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * A source of time stamps in nanoseconds that can be replaced to control a cache's time.
+     */
+    interface Ticker {
+
+        /**
+         * A ticker that reads the system's nano time.
+         */
+        Ticker SYSTEM = new Ticker() {
+            @Override
+            public long read() {
+                return System.nanoTime();
+            }
+        };
+
+        /**
+         * @return The current time stamp in nanoseconds.
+         */
+        long read();
+    }
+
+    /**
+     * An entry of a cache that carries the reference flag of the CLOCK policy and the time stamps of its last write and
+     * of its last access.
+     */
+    static final class CacheEntry<K, V> extends WeakEntry<K, V> {
+
+        volatile boolean referenced;
+
+        volatile long written, accessed;
+
+        CacheEntry(K key, int hash, ReferenceQueue<? super K> queue, V value, long now) {
+            super(key, hash, queue, value);
+            written = now;
+            accessed = now;
+        }
+
+        void access() {
+            if (!referenced) { // avoids invalidating the cache line of a frequently read entry
+                referenced = true;
+            }
+        }
+    }
+
+    /**
+     * The expiration times of a cache and a timing wheel of buckets of entries that expire within the same tick. As no
+     * entry expires later than the longest expiration time from now, a single wheel that spans four times this time
+     * suffices such that an entry is never scheduled in a bucket that is currently processed.
+     */
+    private static final class Expiration<K, V> {
+
+        static final int BUCKETS = 64;
+
+        final Ticker ticker;
+
+        final long afterWrite, afterAccess, tick;
+
+        private final long origin;
+
+        private final Queue<CacheEntry<K, V>>[] buckets;
+
+        final AtomicBoolean advancing = new AtomicBoolean();
+
+        volatile long processed; // the first tick of which the bucket was not yet processed
+
+        private Expiration(Ticker ticker, long afterWrite, long afterAccess) {
+            this.ticker = ticker;
+            this.afterWrite = Math.min(afterWrite, Long.MAX_VALUE >> 2);
+            this.afterAccess = Math.min(afterAccess, Long.MAX_VALUE >> 2);
+            tick = Math.max(TimeUnit.MILLISECONDS.toNanos(1L), Math.max(this.afterWrite, this.afterAccess) / (BUCKETS / 4));
+            origin = ticker.read();
+            @SuppressWarnings("unchecked")
+            Queue<CacheEntry<K, V>>[] buckets = (Queue<CacheEntry<K, V>>[]) new Queue<?>[BUCKETS];
+            for (int index = 0; index < BUCKETS; index++) {
+                buckets[index] = new ConcurrentLinkedQueue<CacheEntry<K, V>>();
+            }
+            this.buckets = buckets;
+        }
+
+        long tickOf(long time) {
+            return (time - origin) / tick;
+        }
+
+        Queue<CacheEntry<K, V>> bucket(long tick) {
+            return buckets[(int) (tick & (BUCKETS - 1))];
+        }
+
+        boolean isExpired(CacheEntry<K, V> entry, long now) {
+            return afterWrite >= 0L && now - entry.written >= afterWrite
+                    || afterAccess >= 0L && now - entry.accessed >= afterAccess;
+        }
+
+        void schedule(CacheEntry<K, V> entry) {
+            long deadline = Long.MAX_VALUE;
+            if (afterWrite >= 0L) {
+                deadline = entry.written + afterWrite;
+            }
+            if (afterAccess >= 0L) {
+                deadline = Math.min(deadline, entry.accessed + afterAccess);
+            }
+            bucket(tickOf(deadline)).add(entry);
+        }
+
+        void write(CacheEntry<K, V> entry, long now) {
+            entry.written = now;
+            entry.accessed = now;
+        }
+
+        void access(CacheEntry<K, V> entry, long now) {
+            if (afterAccess >= 0L && now - entry.accessed > tick >>> 4) { // avoids a write on every read
+                entry.accessed = now;
+            }
+        }
+    }
+
+    /**
+     * The bounds of a cache that tracks the total weight of the cache's values and that delivers removed values to the
+     * cache's removal listener.
+     */
+    private static final class Policy<V> implements RemovalListener<V> {
+
+        private final long maximumSize, maximumWeight;
+
+        private final Weigher<? super V> weigher;
+
+        private final RemovalListener<? super V> listener;
+
+        private final StripedCounter weight = new StripedCounter();
+
+        private Policy(long maximumSize, long maximumWeight, Weigher<? super V> weigher, RemovalListener<? super V> listener) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            this.listener = listener;
+        }
+
+        boolean exceeds(WeakConcurrentCache<?, ?> cache) {
+            // stale entries retain their values until removed and are bounded as well, such that they are expunged first
+            return maximumSize >= 0L && cache.table.size() > maximumSize
+                    || weigher != null && weight.sum() > maximumWeight;
+        }
+
+        void acquire(V value) {
+            if (weigher != null) {
+                weight.add(weigher.weigh(value));
+            }
+        }
+
+        void release(V value) {
+            if (weigher != null) {
+                weight.add(-weigher.weigh(value));
+            }
+        }
+
+        void deliver(V value, Cause cause) {
+            try {
+                onRemoval(value, cause);
+            } catch (RuntimeException ignored) {
+                // a failing listener must not prevent the removal of other entries
+            }
+        }
+
+        @Override
+        public void onRemoval(V value, Cause cause) {
+            release(value);
+            if (listener != null) {
+                listener.onRemoval(value, cause);
+            }
+        }
+    }
+}
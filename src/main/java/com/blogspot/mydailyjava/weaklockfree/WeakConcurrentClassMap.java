@@ -0,0 +1,383 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>
+ * A thread-safe map with weak {@link Class} keys. If the current VM supports {@code java.lang.ClassValue}, a value is
+ * stored within the class that it is mapped to such that a lookup does neither compute a hash code nor dereference any
+ * weak reference. Otherwise, this map is backed by a {@link WeakConcurrentMap}. In both cases, a class loader is never
+ * retained by this map where a class's value is however retained as long as the class itself.
+ * </p>
+ * <p>
+ * When using a {@code ClassValue}, a holder for a value is allocated once per class that is looked up, even if the
+ * class does not define a value. Additionally, the classes with a value are registered in a {@link WeakConcurrentSet} to
+ * allow for iterating over this map's entries.
+ * </p>
+ * This class does not implement the {@link java.util.Map} interface because this implementation is incompatible
+ * with the map contract. While iterating over a map's entries, any key that has not passed iteration is referenced non-weakly.
+ */
+public class WeakConcurrentClassMap<V> implements Runnable, Iterable<Map.Entry<Class<?>, V>> {
+
+    private static final boolean CLASS_VALUE = isClassValueAvailable();
+
+    final WeakConcurrentMap<Class<?>, V> target;
+
+    final WeakConcurrentSet<Class<?>> types;
+
+    private final Holders<V> holders;
+
+    /**
+     * @param cleaner The cleaning format of this map.
+     */
+    public WeakConcurrentClassMap(Cleaner cleaner) {
+        this(cleaner, CLASS_VALUE);
+    }
+
+    /**
+     * @param cleaner    The cleaning format of this map.
+     * @param classValue {@code true} if this map should store its values using a {@code ClassValue}.
+     */
+    WeakConcurrentClassMap(Cleaner cleaner, boolean classValue) {
+        if (classValue) {
+            target = null;
+            types = new WeakConcurrentSet<Class<?>>(WeakConcurrentSet.Cleaner.valueOf(cleaner.name()));
+            holders = new Holders<V>();
+        } else {
+            switch (cleaner) {
+                case INLINE:
+                    target = new WeakConcurrentMap.WithInlinedExpunction<Class<?>, V>();
+                    break;
+                case THREAD:
+                case MANUAL:
+                    target = new WeakConcurrentMap<Class<?>, V>(cleaner == Cleaner.THREAD);
+                    break;
+                case SHARED:
+                    target = new WeakConcurrentMap<Class<?>, V>(WeakCleaner.shared());
+                    break;
+                default:
+                    throw new AssertionError();
+            }
+            types = null;
+            holders = null;
+        }
+    }
+
+    private static boolean isClassValueAvailable() {
+        try {
+            Class.forName("java.lang.ClassValue");
+            return true;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * @param type The key of the entry.
+     * @return The value of the entry or the default value if it did not exist.
+     */
+    public V get(Class<?> type) {
+        V value = getIfPresent(type);
+        if (value == null) {
+            value = defaultValue(type);
+            if (value != null) {
+                V previousValue = putIfAbsent(type, value);
+                if (previousValue != null) {
+                    value = previousValue;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param type The key of the entry.
+     * @return The value of the entry or null if it did not exist.
+     */
+    public V getIfPresent(Class<?> type) {
+        if (type == null) throw new NullPointerException();
+        if (holders != null) {
+            return holders.get(type).value;
+        }
+        return target.getIfPresent(type);
+    }
+
+    /**
+     * @param type The key of the entry.
+     * @return {@code true} if the key already defines a value.
+     */
+    public boolean containsKey(Class<?> type) {
+        return getIfPresent(type) != null;
+    }
+
+    /**
+     * @param type  The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous entry or {@code null} if it does not exist.
+     */
+    public V put(Class<?> type, V value) {
+        if (type == null || value == null) throw new NullPointerException();
+        if (holders != null) {
+            V previous = Holder.<V>getAndSet(holders.get(type), value);
+            if (previous == null) {
+                types.add(type);
+            }
+            return previous;
+        }
+        return target.put(type, value);
+    }
+
+    /**
+     * @param type  The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous entry or {@code null} if it does not exist.
+     */
+    public V putIfAbsent(Class<?> type, V value) {
+        if (type == null || value == null) throw new NullPointerException();
+        if (holders != null) {
+            Holder<V> holder = holders.get(type);
+            while (true) {
+                V previous = holder.value;
+                if (previous != null) {
+                    return previous;
+                } else if (Holder.compareAndSet(holder, null, value)) {
+                    types.add(type);
+                    return null;
+                }
+            }
+        }
+        return target.putIfAbsent(type, value);
+    }
+
+    /**
+     * @param type The key of the entry.
+     * @return The removed entry or {@code null} if it does not exist.
+     */
+    public V remove(Class<?> type) {
+        if (type == null) throw new NullPointerException();
+        if (holders != null) {
+            Holder<V> holder = holders.get(type);
+            V previous = Holder.<V>getAndSet(holder, null);
+            if (previous != null) {
+                types.remove(type);
+                if (holder.value != null) {
+                    types.add(type); // a value was set concurrently and must remain registered
+                }
+            }
+            return previous;
+        }
+        return target.remove(type);
+    }
+
+    /**
+     * Clears the entire map.
+     */
+    public void clear() {
+        if (holders != null) {
+            for (Class<?> type : types) {
+                remove(type);
+            }
+        } else {
+            target.clear();
+        }
+    }
+
+    /**
+     * Creates a default value. There is no guarantee that the requested value will be set as a once it is created
+     * in case that another thread requests a value for a key concurrently.
+     *
+     * @param type The key for which to create a default value.
+     * @return The default value for a key without value or {@code null} for not defining a default value.
+     */
+    protected V defaultValue(Class<?> type) {
+        return null;
+    }
+
+    /**
+     * Cleans all unused references.
+     */
+    public void expungeStaleEntries() {
+        if (holders != null) {
+            types.expungeStaleEntries();
+        } else {
+            target.expungeStaleEntries();
+        }
+    }
+
+    /**
+     * Returns the approximate size of this map where the returned number is at least as big as the actual number of entries.
+     *
+     * @return The minimum size of this map.
+     */
+    public int approximateSize() {
+        return holders != null ? types.approximateSize() : target.approximateSize();
+    }
+
+    @Override
+    public void run() {
+        if (holders != null) {
+            types.run();
+        } else {
+            target.run();
+        }
+    }
+
+    /**
+     * @return The cleaner thread or {@code null} if no such thread was set.
+     */
+    public Thread getCleanerThread() {
+        return holders != null ? types.getCleanerThread() : target.getCleanerThread();
+    }
+
+    /**
+     * Stops this map's cleaner thread or unregisters this map from the shared cleaner.
+     */
+    public void close() {
+        if (holders != null) {
+            types.close();
+        } else {
+            target.close();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Class<?>, V>> iterator() {
+        return holders != null ? new HolderIterator() : target.iterator();
+    }
+
+    @Override
+    public String toString() {
+        if (holders == null) {
+            return target.toString();
+        }
+        StringBuilder builder = new StringBuilder().append('{');
+        boolean first = true;
+        for (Map.Entry<Class<?>, V> entry : this) {
+            builder.append(first ? "" : ", ").append(entry.getKey()).append('=').append(entry.getValue());
+            first = false;
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Determines the cleaning format. A reference is removed either by an explicitly started cleaner thread
+     * associated with this instance ({@link Cleaner#THREAD}), by the {@linkplain WeakCleaner#shared() shared cleaner}
+     * that removes references of many instances ({@link Cleaner#SHARED}), as a result of interacting with this map
+     * from any thread ({@link Cleaner#INLINE} or manually by submitting the map to a thread ({@link Cleaner#MANUAL}).
+     */
+    public enum Cleaner {
+        THREAD, INLINE, MANUAL, SHARED
+    }
+
+    /**
+     * A mutable holder of a class's value that is stored within the class. This class must never reference the class
+     * or the map it belongs to.
+     */
+    static final class Holder<V> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Holder, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(Holder.class, Object.class, "value");
+
+        volatile V value;
+
+        @SuppressWarnings("unchecked")
+        static <V> V getAndSet(Holder<V> holder, V value) {
+            return (V) VALUE.getAndSet(holder, value);
+        }
+
+        static <V> boolean compareAndSet(Holder<V> holder, V expected, V value) {
+            return VALUE.compareAndSet(holder, expected, value);
+        }
+    }
+
+    /**
+     * A class value that creates an empty holder for any class. This class is only loaded if {@code java.lang.ClassValue}
+     * is available.
+     */
+    private static final class Holders<V> extends ClassValue<Holder<V>> {
+
+        @Override
+        protected Holder<V> computeValue(Class<?> type) {
+            return new Holder<V>();
+        }
+    }
+
+    private class HolderIterator implements Iterator<Map.Entry<Class<?>, V>> {
+
+        private final Iterator<Class<?>> iterator = types.iterator();
+
+        private Class<?> nextKey;
+
+        private V nextValue;
+
+        private HolderIterator() {
+            findNext();
+        }
+
+        private void findNext() {
+            while (iterator.hasNext()) {
+                nextKey = iterator.next();
+                nextValue = holders.get(nextKey).value;
+                if (nextValue != null) {
+                    return;
+                }
+            }
+            nextKey = null;
+            nextValue = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        @Override
+        public Map.Entry<Class<?>, V> next() {
+            if (nextKey == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return new HolderEntry(nextKey, nextValue);
+            } finally {
+                findNext();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class HolderEntry implements Map.Entry<Class<?>, V> {
+
+        private final Class<?> type;
+
+        private V value;
+
+        private HolderEntry(Class<?> type, V value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public Class<?> getKey() {
+            return type;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            this.value = value;
+            return put(type, value);
+        }
+    }
+}
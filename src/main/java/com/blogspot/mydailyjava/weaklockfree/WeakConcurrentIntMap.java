@@ -0,0 +1,140 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>
+ * A thread-safe map with weak keys and {@code int} values that are stored without boxing. Entries are based on a key's
+ * system hash code and keys are considered equal only by reference equality. A key without a value behaves as if it was
+ * mapped to a value of zero.
+ * </p>
+ * This class does not implement the {@link java.util.Map} interface because this implementation is incompatible
+ * with the map contract. While iterating over a map's entries, any key that has not passed iteration is referenced non-weakly.
+ */
+public class WeakConcurrentIntMap<K> extends AbstractWeakNumberMap<K, Integer> {
+
+    /**
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     */
+    public WeakConcurrentIntMap(boolean cleanerThread) {
+        super(cleanerThread);
+    }
+
+    /**
+     * @param cleaner The cleaner that removes stale entries of this map.
+     */
+    public WeakConcurrentIntMap(WeakCleaner cleaner) {
+        super(cleaner);
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The value of the entry or zero if it did not exist.
+     */
+    public int get(K key) {
+        return (int) getValue(key);
+    }
+
+    /**
+     * @param key   The key of the entry.
+     * @param value The value of the entry.
+     * @return The previous value or zero if it did not exist.
+     */
+    public int put(K key, int value) {
+        return (int) setValue(key, value);
+    }
+
+    /**
+     * Adds a delta to the value of a key where a key without a value is added with the delta as its value.
+     *
+     * @param key   The key of the entry.
+     * @param delta The delta to add.
+     * @return The updated value.
+     */
+    public int addAndGet(K key, int delta) {
+        return (int) addValue(key, delta);
+    }
+
+    /**
+     * @param key The key of the entry.
+     * @return The incremented value.
+     */
+    public int incrementAndGet(K key) {
+        return addAndGet(key, 1);
+    }
+
+    /**
+     * Sets a key's value if it currently equals the expected value. A key without a value is never updated.
+     *
+     * @param key    The key of the entry.
+     * @param expect The expected value.
+     * @param update The value to set.
+     * @return {@code true} if the value was updated.
+     */
+    public boolean compareAndSet(K key, int expect, int update) {
+        return compareAndSetValue(key, expect, update);
+    }
+
+    @Override
+    long narrow(long value) {
+        return (int) value;
+    }
+
+    @Override
+    Integer box(long value) {
+        return (int) value;
+    }
+
+    /**
+     * A {@link WeakConcurrentIntMap} where stale entries are removed as a side effect of interacting with this map.
+     */
+    public static class WithInlinedExpunction<K> extends WeakConcurrentIntMap<K> {
+
+        public WithInlinedExpunction() {
+            super(false);
+        }
+
+        @Override
+        public int get(K key) {
+            expungeStaleEntries();
+            return super.get(key);
+        }
+
+        @Override
+        public boolean containsKey(K key) {
+            expungeStaleEntries();
+            return super.containsKey(key);
+        }
+
+        @Override
+        public int put(K key, int value) {
+            expungeStaleEntries();
+            return super.put(key, value);
+        }
+
+        @Override
+        public int addAndGet(K key, int delta) {
+            expungeStaleEntries();
+            return super.addAndGet(key, delta);
+        }
+
+        @Override
+        public boolean compareAndSet(K key, int expect, int update) {
+            expungeStaleEntries();
+            return super.compareAndSet(key, expect, update);
+        }
+
+        @Override
+        public boolean remove(K key) {
+            expungeStaleEntries();
+            return super.remove(key);
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, Integer>> iterator() {
+            expungeStaleEntries();
+            return super.iterator();
+        }
+    }
+}
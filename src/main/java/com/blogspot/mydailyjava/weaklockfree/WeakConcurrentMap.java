@@ -1,9 +1,10 @@
 package com.blogspot.mydailyjava.weaklockfree;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -30,7 +31,9 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
 
     private static final AtomicLong ID = new AtomicLong();
 
-    private final Thread thread;
+    private final Thread[] threads;
+
+    private final WeakCleaner.Registration registration;
 
     private final boolean reuseKeys;
 
@@ -82,14 +85,77 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
     public WeakConcurrentMap(boolean cleanerThread, boolean reuseKeys, ConcurrentMap<WeakKey<K>, V> target) {
         super(target);
         this.reuseKeys = reuseKeys;
-        if (cleanerThread) {
-            thread = new Thread(this);
-            thread.setName("weak-ref-cleaner-" + ID.getAndIncrement());
+        threads = cleanerThread ? newCleanerThreads(true) : null;
+        registration = null;
+    }
+
+    /**
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     * @param backing       The data structure that backs this map.
+     */
+    public WeakConcurrentMap(boolean cleanerThread, Backing backing) {
+        super(backing);
+        reuseKeys = isPersistentClassLoader(LookupKey.class.getClassLoader());
+        threads = cleanerThread ? newCleanerThreads(true) : null;
+        registration = null;
+    }
+
+    /**
+     * @param cleaner The cleaner that removes stale entries of this map.
+     */
+    public WeakConcurrentMap(WeakCleaner cleaner) {
+        this(cleaner, Backing.CONCURRENT_HASH_MAP);
+    }
+
+    /**
+     * @param cleaner The cleaner that removes stale entries of this map.
+     * @param backing The data structure that backs this map.
+     */
+    public WeakConcurrentMap(WeakCleaner cleaner, Backing backing) {
+        super(backing);
+        reuseKeys = isPersistentClassLoader(LookupKey.class.getClassLoader());
+        threads = null;
+        registration = cleaner.register(this);
+    }
+
+    /**
+     * Creates a map as it is configured by a builder, ignoring if the builder is configured for inlined or amortized expunction.
+     * A builder that configures a cache must create a {@link WeakConcurrentCache} instead.
+     *
+     * @param builder The builder that configures this map.
+     */
+    public WeakConcurrentMap(Builder builder) {
+        super(builder.forMap());
+        reuseKeys = isPersistentClassLoader(LookupKey.class.getClassLoader());
+        threads = builder.cleanerThread ? newCleanerThreads(!builder.deferCleanerThreads) : null;
+        registration = builder.cleaner == null ? null : builder.cleaner.register(this);
+    }
+
+    private Thread[] newCleanerThreads(boolean start) {
+        long id = ID.getAndIncrement();
+        Thread[] threads = new Thread[getReferenceQueueCount()];
+        for (int index = 0; index < threads.length; index++) {
+            Thread thread = new Thread(this);
+            thread.setName(threads.length == 1 ? "weak-ref-cleaner-" + id : "weak-ref-cleaner-" + id + "-" + index);
             thread.setPriority(Thread.MIN_PRIORITY);
             thread.setDaemon(true);
-            thread.start();
-        } else {
-            thread = null;
+            if (start) {
+                thread.start();
+            }
+            threads[index] = thread;
+        }
+        return threads;
+    }
+
+    /**
+     * Starts the cleaner threads of a map that was built by a builder that deferred starting them until a subclass
+     * completed its construction.
+     */
+    void startCleanerThreads() {
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.start();
+            }
         }
     }
 
@@ -102,7 +168,7 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
         } else {
             lookupKey = new LookupKey<K>();
         }
-        return lookupKey.withValue(key);
+        return lookupKey.withValue(key, identityHashCode(key));
     }
 
     @Override
@@ -110,11 +176,39 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
         lookupKey.reset();
     }
 
+    @Override
+    protected LookupKey<K> updateLookupKey(LookupKey<K> lookupKey, K key) {
+        return lookupKey.withValue(key, identityHashCode(key));
+    }
+
     /**
-     * @return The cleaner thread or {@code null} if no such thread was set.
+     * @return The cleaner thread or {@code null} if no such thread was set. If this map stripes its references across
+     * several reference queues, the thread that drains the first queue is returned.
      */
     public Thread getCleanerThread() {
-        return thread;
+        return threads == null ? null : threads[0];
+    }
+
+    /**
+     * @return The cleaner threads of this map, one per reference queue, or an empty array if no such threads were set.
+     */
+    public Thread[] getCleanerThreads() {
+        return threads == null ? new Thread[0] : threads.clone();
+    }
+
+    /**
+     * Stops this map's cleaner thread or unregisters this map from its {@link WeakCleaner}. After closing this map,
+     * stale entries are only removed if {@link #expungeStaleEntries()} is invoked explicitly.
+     */
+    public void close() {
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        if (registration != null) {
+            registration.unregister();
+        }
     }
 
     /*
@@ -129,9 +223,9 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
         private K key;
         private int hashCode;
 
-        LookupKey<K> withValue(K key) {
+        LookupKey<K> withValue(K key, int hashCode) {
             this.key = key;
-            hashCode = System.identityHashCode(key);
+            this.hashCode = hashCode;
             return this;
         }
 
@@ -148,7 +242,7 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
             if (other instanceof WeakConcurrentMap.LookupKey<?>) {
                 return ((LookupKey<?>) other).key == key;
             } else {
-                return ((WeakKey<?>) other).get() == key;
+                return References.refersTo((WeakKey<?>) other, key);
             }
         }
 
@@ -158,6 +252,363 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
         }
     }
 
+    /**
+     * <p>
+     * A builder for a {@link WeakConcurrentMap}. By default, a map references its keys weakly and its values strongly,
+     * it is backed by a {@link ConcurrentHashMap} and stale entries are only removed when they are expunged explicitly.
+     * </p>
+     * <p>
+     * If any other reference strength is configured, the map is backed by a {@link Backing#WEAK_HASH_TABLE} unless
+     * specified otherwise.
+     * </p>
+     */
+    public static class Builder {
+
+        private Backing backing;
+
+        Strength keyStrength = Strength.WEAK, valueStrength = Strength.STRONG;
+
+        private boolean cleanerThread, inlinedExpunction, recordStatistics;
+
+        private int interval, budget;
+
+        int referenceQueues = 1;
+
+        private WeakCleaner cleaner;
+
+        private StatisticsCounter statistics;
+
+        private RemovalListener<?> listener;
+
+        IdentityHasher<?> hasher;
+
+        long maximumSize = -1L, maximumWeight = -1L;
+
+        Weigher<?> weigher;
+
+        long expireAfterWrite = -1L, expireAfterAccess = -1L;
+
+        WeakConcurrentCache.Ticker ticker;
+
+        private boolean deferCleanerThreads, cache;
+
+        /**
+         * @param backing The data structure that backs the map.
+         * @return This builder.
+         */
+        public Builder backing(Backing backing) {
+            if (backing == null) throw new NullPointerException();
+            this.backing = backing;
+            return this;
+        }
+
+        /**
+         * @param keyStrength The strength of the references to the map's keys which must be weak or soft.
+         * @return This builder.
+         */
+        public Builder keyStrength(Strength keyStrength) {
+            if (keyStrength == null) throw new NullPointerException();
+            this.keyStrength = keyStrength;
+            return this;
+        }
+
+        /**
+         * @param valueStrength The strength of the references to the map's values.
+         * @return This builder.
+         */
+        public Builder valueStrength(Strength valueStrength) {
+            if (valueStrength == null) throw new NullPointerException();
+            this.valueStrength = valueStrength;
+            return this;
+        }
+
+        /**
+         * Configures the map to start a thread that removes stale entries.
+         *
+         * @return This builder.
+         */
+        public Builder cleanerThread() {
+            cleanerThread = true;
+            inlinedExpunction = false;
+            interval = budget = 0;
+            cleaner = null;
+            return this;
+        }
+
+        /**
+         * Configures the map to be registered with a cleaner that removes stale entries.
+         *
+         * @param cleaner The cleaner that removes stale entries of the map.
+         * @return This builder.
+         */
+        public Builder cleaner(WeakCleaner cleaner) {
+            if (cleaner == null) throw new NullPointerException();
+            this.cleaner = cleaner;
+            cleanerThread = false;
+            inlinedExpunction = false;
+            interval = budget = 0;
+            return this;
+        }
+
+        /**
+         * Configures the map to remove stale entries as a side effect of interacting with it.
+         *
+         * @return This builder.
+         */
+        public Builder inlinedExpunction() {
+            inlinedExpunction = true;
+            cleanerThread = false;
+            interval = budget = 0;
+            cleaner = null;
+            return this;
+        }
+
+        /**
+         * Configures the map to remove a limited number of stale entries with a fixed interval of interactions with it.
+         *
+         * @param interval The number of interactions of a thread after which the reference queue is polled.
+         * @param budget   The maximum number of stale entries that are removed by a single interaction.
+         * @return This builder.
+         * @see WithAmortizedExpunction
+         */
+        public Builder amortizedExpunction(int interval, int budget) {
+            if (interval < 1 || budget < 1) throw new IllegalArgumentException();
+            this.interval = interval;
+            this.budget = budget;
+            inlinedExpunction = false;
+            cleanerThread = false;
+            cleaner = null;
+            return this;
+        }
+
+        /**
+         * Configures the map to stripe the references of its keys and values across several reference queues, based on
+         * the keys' system hash codes. If the map starts a cleaner thread, it starts one thread per queue such that stale
+         * entries are removed in parallel. This avoids that a single, internally synchronized queue limits the throughput
+         * of removing stale entries after many keys are collected at once.
+         *
+         * @param referenceQueues The number of reference queues which is rounded up to the next power of two.
+         * @return This builder.
+         */
+        public Builder referenceQueues(int referenceQueues) {
+            if (referenceQueues < 1 || referenceQueues > 1 << 16) throw new IllegalArgumentException();
+            this.referenceQueues = referenceQueues;
+            return this;
+        }
+
+        /**
+         * Configures the map to record its statistics using a {@link StripedStatisticsCounter}.
+         *
+         * @return This builder.
+         */
+        public Builder recordStatistics() {
+            recordStatistics = true;
+            statistics = null;
+            return this;
+        }
+
+        /**
+         * Configures the map to record its statistics using the given counter.
+         *
+         * @param statistics The counter that records the map's statistics.
+         * @return This builder.
+         */
+        public Builder recordStatistics(StatisticsCounter statistics) {
+            if (statistics == null) throw new NullPointerException();
+            this.statistics = statistics;
+            recordStatistics = false;
+            return this;
+        }
+
+        /**
+         * Configures the map to notify a listener of removed values. The listener must accept the values of the map
+         * that is built.
+         *
+         * @param listener The listener to notify of removed values.
+         * @return This builder.
+         */
+        public Builder removalListener(RemovalListener<?> listener) {
+            if (listener == null) throw new NullPointerException();
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Configures the map to distribute its keys by the hash codes of a hasher rather than by the keys' system hash
+         * codes, for example if keys carry a stable identifier. Keys are still compared by reference. The hasher must
+         * accept the keys of the map that is built.
+         *
+         * @param hasher The hasher that computes the hash codes of the map's keys.
+         * @return This builder.
+         */
+        public Builder hasher(IdentityHasher<?> hasher) {
+            if (hasher == null) throw new NullPointerException();
+            this.hasher = hasher;
+            return this;
+        }
+
+        /**
+         * Configures the map to be a {@link WeakConcurrentCache} that evicts entries once it contains more than the given
+         * number of entries. A cache references its keys weakly and its values strongly and is backed by a weak hash table.
+         *
+         * @param maximumSize The maximum number of entries of the cache.
+         * @return This builder.
+         */
+        public Builder maximumSize(long maximumSize) {
+            if (maximumSize < 0L) throw new IllegalArgumentException();
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Configures the map to be a {@link WeakConcurrentCache} that evicts entries once the total weight of its values
+         * exceeds the given maximum. The weigher must accept the values of the map that is built.
+         *
+         * @param maximumWeight The maximum total weight of the cache's values.
+         * @param weigher       The weigher that determines the weight of a value.
+         * @return This builder.
+         */
+        public Builder maximumWeight(long maximumWeight, Weigher<?> weigher) {
+            if (maximumWeight < 0L) throw new IllegalArgumentException();
+            if (weigher == null) throw new NullPointerException();
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * Configures the map to be a {@link WeakConcurrentCache} that expires entries once the given duration elapsed
+         * after an entry was inserted or after its value was last replaced.
+         *
+         * @param duration The duration after which an entry expires.
+         * @param unit     The unit of the duration.
+         * @return This builder.
+         */
+        public Builder expireAfterWrite(long duration, TimeUnit unit) {
+            if (duration < 0L) throw new IllegalArgumentException();
+            this.expireAfterWrite = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Configures the map to be a {@link WeakConcurrentCache} that expires entries once the given duration elapsed
+         * after an entry was inserted, after its value was last replaced or after it was last looked up.
+         *
+         * @param duration The duration after which an entry expires.
+         * @param unit     The unit of the duration.
+         * @return This builder.
+         */
+        public Builder expireAfterAccess(long duration, TimeUnit unit) {
+            if (duration < 0L) throw new IllegalArgumentException();
+            this.expireAfterAccess = unit.toNanos(duration);
+            return this;
+        }
+
+        Builder ticker(WeakConcurrentCache.Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        /**
+         * @param <K> The type of the map's keys.
+         * @param <V> The type of the map's values.
+         * @return A new map as configured by this builder.
+         */
+        public <K, V> WeakConcurrentMap<K, V> build() {
+            if (isCache()) {
+                return new WeakConcurrentCache<K, V>(this);
+            } else if (inlinedExpunction) {
+                return new WithInlinedExpunction<K, V>(this);
+            } else if (interval > 0) {
+                return new WithAmortizedExpunction<K, V>(this);
+            } else {
+                return new WeakConcurrentMap<K, V>(this);
+            }
+        }
+
+        Builder copy() {
+            Builder builder = new Builder();
+            builder.backing = backing;
+            builder.keyStrength = keyStrength;
+            builder.valueStrength = valueStrength;
+            builder.cleanerThread = cleanerThread;
+            builder.inlinedExpunction = inlinedExpunction;
+            builder.cleaner = cleaner;
+            builder.interval = interval;
+            builder.budget = budget;
+            builder.referenceQueues = referenceQueues;
+            builder.recordStatistics = recordStatistics;
+            builder.statistics = statistics;
+            builder.listener = listener;
+            builder.hasher = hasher;
+            builder.maximumSize = maximumSize;
+            builder.maximumWeight = maximumWeight;
+            builder.weigher = weigher;
+            builder.expireAfterWrite = expireAfterWrite;
+            builder.expireAfterAccess = expireAfterAccess;
+            builder.ticker = ticker;
+            return builder;
+        }
+
+        /**
+         * Validates that this builder configures a cache and returns a copy that is backed by a weak hash table and that
+         * notifies the cache's policy of removed values.
+         *
+         * @param policy The listener that maintains the cache's bounds and that notifies this builder's listener.
+         * @return A copy of this builder for creating the cache.
+         */
+        Builder forCache(RemovalListener<?> policy) {
+            if (!isCache()) {
+                throw new IllegalArgumentException("A cache requires a maximum size or weight or an expiration");
+            } else if (keyStrength != Strength.WEAK || valueStrength != Strength.STRONG) {
+                throw new IllegalArgumentException("A cache requires weak keys and strong values");
+            } else if (backing == Backing.CONCURRENT_HASH_MAP) {
+                throw new IllegalArgumentException("A cache requires a weak hash table");
+            } else if (inlinedExpunction || interval > 0) {
+                throw new IllegalArgumentException("A cache removes stale entries by a cleaner thread, a cleaner or explicitly");
+            }
+            Builder builder = copy();
+            builder.backing = Backing.WEAK_HASH_TABLE;
+            builder.listener = policy;
+            builder.deferCleanerThreads = true;
+            builder.cache = true;
+            return builder;
+        }
+
+        /**
+         * Validates that this builder does not configure a cache unless it is a copy that was created for a cache.
+         *
+         * @return This builder.
+         */
+        Builder forMap() {
+            if (isCache() && !cache) {
+                throw new IllegalArgumentException("A map with a maximum size or weight or an expiration must be a cache");
+            }
+            return this;
+        }
+
+        private boolean isCache() {
+            return maximumSize >= 0L || maximumWeight >= 0L || expireAfterWrite >= 0L || expireAfterAccess >= 0L;
+        }
+
+        RemovalListener<?> listener() {
+            return listener;
+        }
+
+        StatisticsCounter resolveStatistics() {
+            return statistics == null && recordStatistics ? new StripedStatisticsCounter() : statistics;
+        }
+
+        Backing resolveBacking() {
+            if (backing != null) {
+                return backing;
+            }
+            return keyStrength == Strength.WEAK && valueStrength == Strength.STRONG
+                    ? Backing.CONCURRENT_HASH_MAP
+                    : Backing.WEAK_HASH_TABLE;
+        }
+    }
+
     /**
      * A {@link WeakConcurrentMap} where stale entries are removed as a side effect of interacting with this map.
      */
@@ -167,40 +618,113 @@ public class WeakConcurrentMap<K, V> extends AbstractWeakConcurrentMap<K, V, Wea
             super(false);
         }
 
-        @Override
-        public V get(K key) {
-            expungeStaleEntries();
-            return super.get(key);
+        /**
+         * @param backing The data structure that backs this map.
+         */
+        public WithInlinedExpunction(Backing backing) {
+            super(false, backing);
         }
 
-        @Override
-        public boolean containsKey(K key) {
-            expungeStaleEntries();
-            return super.containsKey(key);
+        /**
+         * @param builder The builder that configures this map where any configured cleaner is ignored.
+         */
+        public WithInlinedExpunction(Builder builder) {
+            super(builder.copy().inlinedExpunction());
         }
 
         @Override
-        public V put(K key, V value) {
+        void beforeAccess() {
             expungeStaleEntries();
-            return super.put(key, value);
         }
+    }
 
-        @Override
-        public V remove(K key) {
-            expungeStaleEntries();
-            return super.remove(key);
+    /**
+     * <p>
+     * A {@link WeakConcurrentMap} where stale entries are removed as a side effect of interacting with this map but where
+     * the reference queue is only polled by every n-th interaction of a thread and by a single thread at a time. A thread
+     * that polls the queue removes at most a given number of stale entries such that no single interaction pays for removing
+     * a large number of stale entries.
+     * </p>
+     * <p>
+     * Stale entries are removed eventually as long as this map is interacted with. Interactions are counted in stripes that are
+     * selected by the interacting thread's system hash code what avoids contention while requiring no thread-local storage.
+     * </p>
+     */
+    public static class WithAmortizedExpunction<K, V> extends WeakConcurrentMap<K, V> {
+
+        private static final int PADDING = 16;
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<WithAmortizedExpunction> DRAINING = AtomicIntegerFieldUpdater.newUpdater(WithAmortizedExpunction.class, "draining");
+
+        private final AtomicIntegerArray interactions;
+
+        private final int mask, interval, budget;
+
+        private volatile int draining;
+
+        /**
+         * Creates a map that polls its reference queue every 64th interaction of a thread and that removes
+         * at most 64 stale entries at once.
+         */
+        public WithAmortizedExpunction() {
+            this(64, 64);
         }
 
-        @Override
-        public Iterator<Map.Entry<K, V>> iterator() {
-            expungeStaleEntries();
-            return super.iterator();
+        /**
+         * @param interval The number of interactions of a thread after which the reference queue is polled.
+         * @param budget   The maximum number of stale entries that are removed by a single interaction.
+         */
+        public WithAmortizedExpunction(int interval, int budget) {
+            this(interval, budget, Backing.CONCURRENT_HASH_MAP);
+        }
+
+        /**
+         * @param interval The number of interactions of a thread after which the reference queue is polled.
+         * @param budget   The maximum number of stale entries that are removed by a single interaction.
+         * @param backing  The data structure that backs this map.
+         */
+        public WithAmortizedExpunction(int interval, int budget, Backing backing) {
+            this(new Builder().backing(backing).amortizedExpunction(interval, budget));
+        }
+
+        /**
+         * @param builder The builder that configures this map where any configured cleaner is ignored. If the builder does
+         *                not configure amortized expunction, the reference queue is polled every 64th interaction of a thread
+         *                and at most 64 stale entries are removed at once.
+         */
+        public WithAmortizedExpunction(Builder builder) {
+            super(builder.interval > 0 ? builder : builder.copy().amortizedExpunction(64, 64));
+            interval = builder.interval > 0 ? builder.interval : 64;
+            budget = builder.budget > 0 ? builder.budget : 64;
+            int stripes = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors() * 2) * 2 - 1);
+            mask = stripes - 1;
+            interactions = new AtomicIntegerArray(stripes * PADDING);
+        }
+
+        /**
+         * Counts an interaction of the current thread and removes stale entries if it is this thread's turn
+         * and no other thread is currently removing stale entries.
+         */
+        protected void expungeStaleEntriesAmortized() {
+            int index = (System.identityHashCode(Thread.currentThread()) & mask) * PADDING, count = interactions.get(index) + 1;
+            if (count < interval) {
+                interactions.lazySet(index, count); // lost updates only delay the removal of stale entries
+                return;
+            }
+            interactions.lazySet(index, 0);
+            if (draining == 0 && DRAINING.compareAndSet(this, 0, 1)) {
+                try {
+                    expungeStaleEntries(budget);
+                } finally {
+                    draining = 0;
+                }
+            }
         }
 
         @Override
-        public int approximateSize() {
-            expungeStaleEntries();
-            return super.approximateSize();
+        void beforeAccess() {
+            expungeStaleEntriesAmortized();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,326 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A thread-safe map with weak keys where each key is mapped to a record of a fixed number of {@code long} fields. The
+ * records are stored in slots of direct byte buffers, so-called slabs, outside of the heap where each entry of the map
+ * only holds the index of its record's slot. This way, attaching a record to an object does not allocate an array that
+ * the garbage collector needs to trace. Entries are based on a key's system hash code and keys are considered equal only
+ * by reference equality. A key without a record behaves as if it was mapped to a record where every field is zero.
+ * </p>
+ * <p>
+ * A record's slot is recycled once its entry is removed explicitly, once the entry of a collected key is removed by
+ * {@link #expungeStaleEntries()}, by a cleaner thread or by a {@link WeakCleaner}, and once the map is cleared. A slot
+ * that is recycled is zeroed before it is assigned to another key. Slabs are allocated when all slots are assigned
+ * and their memory is only released when the map itself is collected.
+ * </p>
+ * <p>
+ * Fields are read and written with the memory semantics of the elements of a {@code long} array. A record's fields are
+ * visible to any thread that looks up the record's key after the record was created, but concurrent updates of the same
+ * field are not atomic. A key's record must not be updated concurrently to the key's explicit removal or concurrently
+ * to clearing the map as the update might otherwise be applied to the slot after it was assigned to another key. This
+ * does not apply to a collected key as a key cannot be collected while its record is updated.
+ * </p>
+ * This class does not implement the {@link java.util.Map} interface because this implementation is incompatible
+ * with the map contract.
+ */
+public class WeakConcurrentRecordMap<K> extends AbstractWeakPrimitiveMap<K, WeakConcurrentRecordMap.RecordEntry<K>> {
+
+    private static final int SLAB_SHIFT = 12, SLAB_RECORDS = 1 << SLAB_SHIFT, SWEEP = 64;
+
+    private final int fields;
+
+    private final Slabs slabs;
+
+    /**
+     * @param fields        The number of {@code long} fields of each record.
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     */
+    public WeakConcurrentRecordMap(int fields, boolean cleanerThread) {
+        super(cleanerThread);
+        this.fields = fields;
+        slabs = new Slabs(fields);
+    }
+
+    /**
+     * @param fields  The number of {@code long} fields of each record.
+     * @param cleaner The cleaner that removes stale entries of this map.
+     */
+    public WeakConcurrentRecordMap(int fields, WeakCleaner cleaner) {
+        super(cleaner);
+        this.fields = fields;
+        slabs = new Slabs(fields);
+    }
+
+    /**
+     * @return The number of {@code long} fields of each record.
+     */
+    public int getFieldCount() {
+        return fields;
+    }
+
+    /**
+     * @param key   The key of the record.
+     * @param field The index of the field.
+     * @return The value of the field or zero if the key has no record.
+     */
+    public long get(K key, int field) {
+        checkField(field);
+        RecordEntry<K> entry = entry(key);
+        return entry == null ? 0L : slabs.get(entry.slot, field);
+    }
+
+    /**
+     * Sets the field of a key's record where a record is created for a key without a record.
+     *
+     * @param key   The key of the record.
+     * @param field The index of the field.
+     * @param value The value to set.
+     */
+    public void set(K key, int field, long value) {
+        checkField(field);
+        slabs.set(record(key).slot, field, value);
+    }
+
+    /**
+     * Copies the fields of a key's record into an array starting at its first element.
+     *
+     * @param key    The key of the record.
+     * @param values The array to copy the fields to which must have at least as many elements as a record has fields.
+     * @return {@code true} if the key has a record, otherwise all copied fields are zero.
+     */
+    public boolean get(K key, long[] values) {
+        if (values.length < fields) throw new IndexOutOfBoundsException("Expected at least " + fields + " elements");
+        RecordEntry<K> entry = entry(key);
+        for (int field = 0; field < fields; field++) {
+            values[field] = entry == null ? 0L : slabs.get(entry.slot, field);
+        }
+        return entry != null;
+    }
+
+    /**
+     * Returns the slot of a key's record, for example for accessing several fields of a record by
+     * {@link #getLong(int, int)} and {@link #putLong(int, int, long)} without looking up the key for each field. A slot
+     * only remains assigned to the key while the key is strongly reachable and not removed from this map.
+     *
+     * @param key The key of the record.
+     * @return The slot of the key's record or {@code -1} if the key has no record.
+     */
+    public int slotOf(K key) {
+        RecordEntry<K> entry = entry(key);
+        return entry == null ? -1 : entry.slot;
+    }
+
+    /**
+     * Returns the slot of a key's record where a record is created for a key without a record. A slot only remains
+     * assigned to the key while the key is strongly reachable and not removed from this map.
+     *
+     * @param key The key of the record.
+     * @return The slot of the key's record.
+     */
+    public int slotOrCreate(K key) {
+        return record(key).slot;
+    }
+
+    /**
+     * @param slot  The slot of a record as returned by {@link #slotOf(Object)} or {@link #slotOrCreate(Object)}.
+     * @param field The index of the field.
+     * @return The value of the field.
+     */
+    public long getLong(int slot, int field) {
+        checkField(field);
+        slabs.checkSlot(slot);
+        return slabs.get(slot, field);
+    }
+
+    /**
+     * @param slot  The slot of a record as returned by {@link #slotOf(Object)} or {@link #slotOrCreate(Object)}.
+     * @param field The index of the field.
+     * @param value The value to set.
+     */
+    public void putLong(int slot, int field, long value) {
+        checkField(field);
+        slabs.checkSlot(slot);
+        slabs.set(slot, field, value);
+    }
+
+    /**
+     * @return The number of bytes that are allocated outside of the heap for the records of this map.
+     */
+    public long getAllocatedBytes() {
+        return slabs.allocatedBytes();
+    }
+
+    private RecordEntry<K> record(K key) {
+        RecordEntry<K> entry = entry(key);
+        while (entry == null) {
+            int slot = slabs.allocate();
+            RecordEntry<K> inserted = new RecordEntry<K>(key, this, slot);
+            entry = table.insert(key, inserted);
+            if (entry == null) {
+                return inserted;
+            }
+            slabs.release(slot);
+        }
+        return entry;
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fields) throw new IndexOutOfBoundsException("Field " + field + " of " + fields);
+    }
+
+    @Override
+    void removed(RecordEntry<K> entry) {
+        slabs.release(entry.slot);
+    }
+
+    /**
+     * Removes all records and recycles their slots. A recycled slot can be assigned to another key immediately such that
+     * no record must be updated concurrently to clearing this map, neither by its key nor by its slot.
+     */
+    @Override
+    public void clear() {
+        List<WeakHashTable.Entry<?>> buffer = new ArrayList<WeakHashTable.Entry<?>>();
+        int position = 0;
+        do {
+            buffer.clear();
+            position = table.scan(position, SWEEP, buffer);
+            for (WeakHashTable.Entry<?> element : buffer) {
+                @SuppressWarnings("unchecked")
+                RecordEntry<K> entry = (RecordEntry<K>) element;
+                entry.clear();
+                if (table.remove(entry)) {
+                    removed(entry);
+                }
+            }
+        } while (position != 0);
+    }
+
+    @Override
+    void appendValue(StringBuilder builder, RecordEntry<K> entry) {
+        builder.append('[');
+        for (int field = 0; field < fields; field++) {
+            builder.append(field == 0 ? "" : ", ").append(slabs.get(entry.slot, field));
+        }
+        builder.append(']');
+    }
+
+    static final class RecordEntry<K> extends WeakHashTable.Entry<K> {
+
+        final int slot;
+
+        private RecordEntry(K key, ReferenceQueue<? super K> queue, int slot) {
+            super(key, WeakHashTable.hash(key), queue);
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The slabs of a map that are divided into slots of equally sized records. Recycled slots are kept on a lock-free
+     * stack where the first field of a recycled slot links the slot that was recycled before it. The head of the stack
+     * carries a stamp that is incremented by every update to avoid that a slot that is concurrently popped and pushed
+     * again is mistaken for an unchanged head.
+     */
+    private static final class Slabs {
+
+        private final int recordSize;
+
+        private final AtomicInteger allocated = new AtomicInteger();
+
+        private final AtomicLong recycled = new AtomicLong(); // stamp in the high bits, slot + 1 in the low bits
+
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+        private Slabs(int fields) {
+            if (fields < 1 || fields >= 1 << 16) throw new IllegalArgumentException("Fields must be within 1 and 65535: " + fields);
+            recordSize = fields << 3;
+        }
+
+        int allocate() {
+            int slot;
+            while (true) {
+                long head = recycled.get();
+                slot = (int) head - 1;
+                if (slot == -1) {
+                    slot = allocated.getAndIncrement();
+                    if (slot < 0) {
+                        allocated.decrementAndGet();
+                        throw new IllegalStateException("Cannot allocate more than " + Integer.MAX_VALUE + " records");
+                    }
+                    ensureSlab(slot >>> SLAB_SHIFT);
+                    break;
+                }
+                long next = slab(slot).getLong(offset(slot)) & 0xFFFFFFFFL;
+                if (recycled.compareAndSet(head, ((head >>> 32) + 1) << 32 | next)) {
+                    break;
+                }
+            }
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            for (int position = 0; position < recordSize; position += 8) {
+                slab.putLong(offset + position, 0L);
+            }
+            return slot;
+        }
+
+        void release(int slot) {
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            while (true) {
+                long head = recycled.get();
+                slab.putLong(offset, head & 0xFFFFFFFFL);
+                if (recycled.compareAndSet(head, ((head >>> 32) + 1) << 32 | (slot + 1L))) {
+                    return;
+                }
+            }
+        }
+
+        long get(int slot, int field) {
+            return slab(slot).getLong(offset(slot) + (field << 3));
+        }
+
+        void set(int slot, int field, long value) {
+            slab(slot).putLong(offset(slot) + (field << 3), value);
+        }
+
+        void checkSlot(int slot) {
+            if (slot < 0 || slot >= allocated.get()) throw new IndexOutOfBoundsException("Slot " + slot + " is not allocated");
+        }
+
+        long allocatedBytes() {
+            return (long) slabs.length * SLAB_RECORDS * recordSize;
+        }
+
+        private ByteBuffer slab(int slot) {
+            return slabs[slot >>> SLAB_SHIFT];
+        }
+
+        private int offset(int slot) {
+            return (slot & (SLAB_RECORDS - 1)) * recordSize;
+        }
+
+        private void ensureSlab(int index) {
+            if (index >= slabs.length) {
+                synchronized (this) {
+                    ByteBuffer[] slabs = this.slabs;
+                    if (index >= slabs.length) {
+                        ByteBuffer[] resized = new ByteBuffer[index + 1];
+                        System.arraycopy(slabs, 0, resized, 0, slabs.length);
+                        for (int slab = slabs.length; slab < resized.length; slab++) {
+                            resized[slab] = ByteBuffer.allocateDirect(SLAB_RECORDS * recordSize).order(ByteOrder.nativeOrder());
+                        }
+                        this.slabs = resized;
+                    }
+                }
+            }
+        }
+    }
+}
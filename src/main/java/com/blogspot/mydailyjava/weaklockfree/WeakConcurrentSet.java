@@ -1,28 +1,72 @@
 package com.blogspot.mydailyjava.weaklockfree;
 
-import java.util.Collections;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
  * A thread-safe set with weak values. Entries are based on a key's system hash code and keys are considered equal only by reference equality.
  * </p>
+ * <p>
+ * The values of this set are stored in a weak hash table where each entry is itself the weak reference to its value such that
+ * no value slot, lookup key or additional weak reference is allocated per element. Looking up a value never allocates and adding
+ * a value only allocates if the value is not yet contained.
+ * </p>
  * This class does not implement the {@link java.util.Set} interface because this implementation is incompatible
  * with the set contract. While iterating over a set's entries, any value that has not passed iteration is referenced non-weakly.
  */
-public class WeakConcurrentSet<V> implements Runnable, Iterable<V> {
+public class WeakConcurrentSet<V> implements Runnable, Iterable<V>, WeakCleaner.Cleanable {
+
+    private static final AtomicLong ID = new AtomicLong();
+
+    private static final int BATCH = 256;
+
+    private static final int SAMPLE = 256;
+
+    final WeakHashTable<V, WeakHashTable.Entry<V>> table = new WeakHashTable<V, WeakHashTable.Entry<V>>();
+
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
 
-    final WeakConcurrentMap<V, Boolean> target;
+    private final boolean inline;
+
+    private final Thread thread;
+
+    private final WeakCleaner.Registration registration;
+
+    private final StatisticsCounter statistics;
 
     public WeakConcurrentSet(Cleaner cleaner) {
+        this(cleaner, null);
+    }
+
+    /**
+     * @param cleaner    The cleaning format of this set.
+     * @param statistics The counter that records the statistics of this set or {@code null} if no statistics
+     *                   should be recorded.
+     */
+    public WeakConcurrentSet(Cleaner cleaner, StatisticsCounter statistics) {
+        this.statistics = statistics;
+        inline = cleaner == Cleaner.INLINE;
         switch (cleaner) {
             case INLINE:
-                target = new WeakConcurrentMap.WithInlinedExpunction<V, Boolean>();
+            case MANUAL:
+                thread = null;
+                registration = null;
                 break;
             case THREAD:
-            case MANUAL:
-                target = new WeakConcurrentMap<V, Boolean>(cleaner == Cleaner.THREAD);
+                thread = new Thread(this);
+                thread.setName("weak-ref-cleaner-set-" + ID.getAndIncrement());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                thread.start();
+                registration = null;
+                break;
+            case SHARED:
+                thread = null;
+                registration = WeakCleaner.shared().register(this);
                 break;
             default:
                 throw new AssertionError();
@@ -34,7 +78,17 @@ public class WeakConcurrentSet<V> implements Runnable, Iterable<V> {
      * @return {@code true} if the value was added to the set and was not contained before.
      */
     public boolean add(V value) {
-        return target.put(value, Boolean.TRUE) == null; // is null or Boolean.TRUE
+        if (value == null) throw new NullPointerException();
+        expungeInline();
+        if (statistics != null) {
+            statistics.recordPuts(1);
+        }
+        return insert(value);
+    }
+
+    private boolean insert(V value) {
+        int hash = WeakHashTable.hash(value);
+        return table.find(value, hash) == null && table.insert(value, new WeakHashTable.Entry<V>(value, hash, queue)) == null;
     }
 
     /**
@@ -42,7 +96,17 @@ public class WeakConcurrentSet<V> implements Runnable, Iterable<V> {
      * @return {@code true} if the set contains the value.
      */
     public boolean contains(V value) {
-        return target.containsKey(value);
+        if (value == null) throw new NullPointerException();
+        expungeInline();
+        boolean contained = table.find(value, WeakHashTable.hash(value)) != null;
+        if (statistics != null) {
+            if (contained) {
+                statistics.recordHits(1);
+            } else {
+                statistics.recordMisses(1);
+            }
+        }
+        return contained;
     }
 
     /**
@@ -50,85 +114,382 @@ public class WeakConcurrentSet<V> implements Runnable, Iterable<V> {
      * @return {@code true} if the value is contained in the set.
      */
     public boolean remove(V value) {
-        return target.remove(value) != null; // is null or Boolean.TRUE
+        if (value == null) throw new NullPointerException();
+        expungeInline();
+        return recordRemoval(delete(value));
+    }
+
+    private boolean delete(V value) {
+        WeakHashTable.Entry<V> entry = table.find(value, WeakHashTable.hash(value));
+        if (entry == null) {
+            return false;
+        }
+        entry.clear(); // an entry is cleared before it is unlinked such that it is no longer found
+        return table.remove(entry);
+    }
+
+    private boolean recordRemoval(boolean removed) {
+        if (removed && statistics != null) {
+            statistics.recordRemovals(1);
+        }
+        return removed;
+    }
+
+    /**
+     * @param values The values to add to the set.
+     * @return The number of values that were added to the set and were not contained before.
+     */
+    public int addAll(Iterable<? extends V> values) {
+        expungeInline();
+        int count = 0, added = 0;
+        try {
+            for (V value : values) {
+                if (value == null) throw new NullPointerException();
+                if (insert(value)) {
+                    added++;
+                }
+                count++;
+            }
+        } finally {
+            if (statistics != null) {
+                statistics.recordPuts(count);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @param values The values to remove from the set.
+     * @return The number of values that were contained in the set.
+     */
+    public int removeAll(Iterable<? extends V> values) {
+        expungeInline();
+        int removed = 0;
+        for (V value : values) {
+            if (value == null) throw new NullPointerException();
+            if (recordRemoval(delete(value))) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all values that match a predicate within a single sweep over this set.
+     *
+     * @param predicate The predicate that determines if a value is removed.
+     * @return The number of removed values.
+     */
+    public int removeIf(ElementPredicate<? super V> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        expungeInline();
+        int removed = 0;
+        WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor = table.cursor();
+        while (cursor.advance()) {
+            if (predicate.test(cursor.key())) {
+                WeakHashTable.Entry<V> entry = cursor.entry();
+                entry.clear();
+                if (recordRemoval(table.remove(entry))) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
     }
 
     /**
      * Clears the set.
      */
     public void clear() {
-        target.clear();
+        table.clear();
     }
 
     /**
      * Returns the approximate size of this set where the returned number is at least as big as the actual number of entries.
+     * Elements that were collected are counted until they are removed and are estimated by {@link #approximateStaleBacklog()}.
+     * Reading the size never removes stale elements.
      *
      * @return The minimum size of this set.
      */
     public int approximateSize() {
-        return target.approximateSize();
+        return table.size();
     }
 
     @Override
     public void run() {
-        target.run();
+        try {
+            while (!Thread.interrupted()) {
+                int expunged = expunge(queue.remove(), BATCH);
+                if (statistics != null && expunged > 0) {
+                    statistics.recordExpunctions(expunged);
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // do nothing
+        }
     }
 
     /**
      * Determines the cleaning format. A reference is removed either by an explicitly started cleaner thread
-     * associated with this instance ({@link Cleaner#THREAD}), as a result of interacting with this thread local
+     * associated with this instance ({@link Cleaner#THREAD}), by the {@linkplain WeakCleaner#shared() shared cleaner}
+     * that removes references of many instances ({@link Cleaner#SHARED}), as a result of interacting with this thread local
      * from any thread ({@link Cleaner#INLINE} or manually by submitting the detached thread local to a thread
      * ({@link Cleaner#MANUAL}).
      */
     public enum Cleaner {
-        THREAD, INLINE, MANUAL
+        THREAD, INLINE, MANUAL, SHARED
+    }
+
+    /**
+     * A consumer of the values of a set that is applied by {@link #forEach(long, ElementConsumer)}.
+     *
+     * @param <V> The type of the value.
+     */
+    public interface ElementConsumer<V> {
+
+        /**
+         * @param value The value of the set.
+         */
+        void accept(V value);
+    }
+
+    /**
+     * A transformation of the values of a set that is applied by {@link #reduce(long, ElementFunction, AbstractWeakConcurrentMap.Reducer)}.
+     *
+     * @param <V> The type of the value.
+     * @param <U> The type of the transformation.
+     */
+    public interface ElementFunction<V, U> {
+
+        /**
+         * @param value The value of the set.
+         * @return The transformation of the value or {@code null} if the value should be ignored.
+         */
+        U apply(V value);
+    }
+
+    /**
+     * A predicate that determines if a value is removed by {@link #removeIf(ElementPredicate)}.
+     *
+     * @param <V> The type of the value.
+     */
+    public interface ElementPredicate<V> {
+
+        /**
+         * @param value The value of the set.
+         * @return {@code true} if the value should be removed.
+         */
+        boolean test(V value);
+    }
+
+    /**
+     * Returns a snapshot of this set's statistics. The stale backlog of the snapshot is estimated by
+     * {@link #approximateStaleBacklog()}.
+     *
+     * @return A snapshot of the statistics of this set.
+     * @throws IllegalStateException If this set does not record statistics.
+     */
+    public Statistics getStatistics() {
+        if (statistics == null) {
+            throw new IllegalStateException("Statistics are not recorded by this set");
+        }
+        return statistics.snapshot().withStaleBacklog(approximateStaleBacklog());
+    }
+
+    /**
+     * Returns an estimate of the number of collected elements that were not yet removed from this set. The estimate is
+     * extrapolated from a sample of a bounded number of elements, where every invocation samples other elements than the
+     * previous one. The stale elements of a set that is not larger than the sample are counted exactly. Estimating the
+     * backlog neither polls the reference queue nor removes any element and does not require this set to record statistics.
+     *
+     * @return The estimated number of stale elements.
+     */
+    public int approximateStaleBacklog() {
+        return table.estimateStale(SAMPLE);
     }
 
     /**
      * Cleans all unused references.
      */
     public void expungeStaleEntries() {
-        target.expungeStaleEntries();
+        int expunged = 0, batch;
+        do {
+            batch = expunge(queue.poll(), BATCH);
+            expunged += batch;
+        } while (batch == BATCH);
+        if (statistics != null && expunged > 0) {
+            statistics.recordExpunctions(expunged);
+        }
+    }
+
+    @Override
+    public int expungeStaleEntries(int maximum) {
+        int expunged = expunge(queue.poll(), maximum);
+        if (statistics != null && expunged > 0) {
+            statistics.recordDrain(expunged);
+        }
+        return expunged;
+    }
+
+    void expungeInline() {
+        if (inline) {
+            expungeStaleEntries();
+        }
+    }
+
+    private int expunge(Reference<?> reference, int maximum) {
+        int expunged = 0;
+        while (reference != null) {
+            table.remove((WeakHashTable.Entry<?>) reference);
+            if (++expunged == maximum) {
+                break;
+            }
+            reference = queue.poll();
+        }
+        return expunged;
     }
 
     /**
      * @return The cleaner thread or {@code null} if no such thread was set.
      */
     public Thread getCleanerThread() {
-        return target.getCleanerThread();
+        return thread;
+    }
+
+    /**
+     * Stops this set's cleaner thread or unregisters this set from the shared cleaner.
+     */
+    public void close() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (registration != null) {
+            registration.unregister();
+        }
     }
 
     @Override
     public Iterator<V> iterator() {
-        return new ReducingIterator<V>(target.iterator());
+        expungeInline();
+        return new CursorIterator<V>(table.cursor());
+    }
+
+    /**
+     * Applies a consumer to each value of this set, in parallel if this set contains at least as many values as the
+     * parallelism threshold and if the current VM is Java 8 or later.
+     *
+     * @param parallelismThreshold The approximate number of values that are required for traversing in parallel or
+     *                             {@link Long#MAX_VALUE} for always traversing sequentially.
+     * @param consumer             The consumer to apply.
+     */
+    public void forEach(long parallelismThreshold, final ElementConsumer<? super V> consumer) {
+        if (consumer == null) throw new NullPointerException();
+        reduce(parallelismThreshold, new ElementFunction<V, Object>() {
+            @Override
+            public Object apply(V value) {
+                consumer.accept(value);
+                return null;
+            }
+        }, new AbstractWeakConcurrentMap.Reducer<Object>() {
+            @Override
+            public Object reduce(Object left, Object right) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Accumulates the transformations of this set's values, in parallel if this set contains at least as many values
+     * as the parallelism threshold and if the current VM is Java 8 or later.
+     *
+     * @param parallelismThreshold The approximate number of values that are required for traversing in parallel or
+     *                             {@link Long#MAX_VALUE} for always traversing sequentially.
+     * @param transformer          The transformation of a value or {@code null} if a value should be ignored.
+     * @param reducer              The reducer for combining two transformations.
+     * @param <U>                  The type of the transformations.
+     * @return The accumulated transformations or {@code null} if no value was transformed.
+     */
+    public <U> U reduce(long parallelismThreshold,
+                        final ElementFunction<? super V, ? extends U> transformer,
+                        final AbstractWeakConcurrentMap.Reducer<U> reducer) {
+        if (transformer == null || reducer == null) throw new NullPointerException();
+        expungeInline();
+        return AbstractWeakConcurrentMap.BULK_TRAVERSAL
+                ? BulkTraversal.reduce(table, parallelismThreshold, transformer, reducer)
+                : reduce(table.cursor(), transformer, reducer);
+    }
+
+    private static <V, U> U reduce(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor,
+                                   ElementFunction<? super V, ? extends U> transformer,
+                                   AbstractWeakConcurrentMap.Reducer<U> reducer) {
+        U result = null;
+        while (cursor.advance()) {
+            result = AbstractWeakConcurrentMap.combine(result, transformer.apply(cursor.key()), reducer);
+        }
+        return result;
     }
 
     @Override
-    public String toString(){
-        return Collections.newSetFromMap(target.target).toString();
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append('[');
+        WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor = table.cursor();
+        boolean first = true;
+        while (cursor.advance()) {
+            builder.append(first ? "" : ", ").append(cursor.key());
+            first = false;
+        }
+        return builder.append(']').toString();
     }
 
-    private static class ReducingIterator<V> implements Iterator<V> {
+    private static class CursorIterator<V> implements Iterator<V> {
 
-        private final Iterator<Map.Entry<V, Boolean>> iterator;
+        private final WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor;
 
-        private ReducingIterator(Iterator<Map.Entry<V, Boolean>> iterator) {
-            this.iterator = iterator;
+        private boolean advanced;
+
+        private CursorIterator(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor) {
+            this.cursor = cursor;
+            advanced = cursor.advance();
         }
 
         @Override
         public void remove() {
-            iterator.remove();
+            throw new UnsupportedOperationException();
         }
 
         @Override
         public V next() {
-            return iterator.next().getKey();
+            if (!advanced) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return cursor.key();
+            } finally {
+                advanced = cursor.advance();
+            }
         }
 
         @Override
         public boolean hasNext() {
-            return iterator.hasNext();
+            return advanced;
+        }
+    }
+
+    /**
+     * Traverses a set in parallel by splitting its weak hash table. This class is only loaded on Java 8 or later.
+     */
+    private static final class BulkTraversal {
+
+        static <V, U> U reduce(WeakHashTable<V, WeakHashTable.Entry<V>> table,
+                               long parallelismThreshold,
+                               final ElementFunction<? super V, ? extends U> transformer,
+                               final AbstractWeakConcurrentMap.Reducer<U> reducer) {
+            return ParallelTraversal.reduce(table, parallelismThreshold, new ParallelTraversal.Reduction<V, WeakHashTable.Entry<V>, U>() {
+                @Override
+                public U reduce(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor) {
+                    return WeakConcurrentSet.reduce(cursor, transformer, reducer);
+                }
+            }, reducer);
         }
     }
 }
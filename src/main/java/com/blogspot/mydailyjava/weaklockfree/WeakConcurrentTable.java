@@ -0,0 +1,226 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A thread-safe table with weak keys where each key is mapped to a row of a fixed number of value columns. A key is
+ * referenced by a single weak reference and its row is removed by a single expunction, no matter how many columns
+ * define a value for the key. This way, a table replaces several {@link WeakConcurrentMap}s with the same keys while
+ * only registering and hashing each key once. Entries are based on a key's system hash code and keys are considered
+ * equal only by reference equality. A key without a row behaves as if all of its columns were {@code null}.
+ * </p>
+ * <p>
+ * Columns are accessed by typed {@link Column} handles that are created by {@link WeakConcurrentTable#newColumn()}. A
+ * row that is looked up by {@link WeakConcurrentTable#rowOf(Object)} or {@link WeakConcurrentTable#rowOrCreate(Object)}
+ * can be accessed by several columns without looking up its key again. A row is an opaque handle that does not reference
+ * its key, and values that are set for a row after the row was removed are discarded together with the row.
+ * </p>
+ * This class does not implement the {@link java.util.Map} interface because this implementation is incompatible
+ * with the map contract.
+ *
+ * @param <K> The type of the table's keys.
+ */
+public class WeakConcurrentTable<K> extends AbstractWeakPrimitiveMap<K, WeakConcurrentTable.RowEntry<K>> {
+
+    private final int columns;
+
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param columns       The number of value columns of each row.
+     * @param cleanerThread {@code true} if a thread should be started that removes stale entries.
+     */
+    public WeakConcurrentTable(int columns, boolean cleanerThread) {
+        super(cleanerThread);
+        if (columns < 1) throw new IllegalArgumentException("A table requires at least one column: " + columns);
+        this.columns = columns;
+    }
+
+    /**
+     * @param columns The number of value columns of each row.
+     * @param cleaner The cleaner that removes stale entries of this table.
+     */
+    public WeakConcurrentTable(int columns, WeakCleaner cleaner) {
+        super(cleaner);
+        if (columns < 1) throw new IllegalArgumentException("A table requires at least one column: " + columns);
+        this.columns = columns;
+    }
+
+    /**
+     * Creates a handle for the next column of this table that was not yet assigned a handle.
+     *
+     * @param <V> The type of the column's values.
+     * @return A handle for accessing the values of the column.
+     * @throws IllegalStateException If all columns of this table were already assigned a handle.
+     */
+    public <V> Column<K, V> newColumn() {
+        int index;
+        do {
+            index = allocated.get();
+            if (index == columns) {
+                throw new IllegalStateException("All " + columns + " columns are already assigned");
+            }
+        } while (!allocated.compareAndSet(index, index + 1));
+        return new Column<K, V>(this, index);
+    }
+
+    /**
+     * @return The number of value columns of each row.
+     */
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * @param key The key of the row.
+     * @return The row of the key or {@code null} if the key has no row.
+     */
+    public Row<K> rowOf(K key) {
+        RowEntry<K> entry = entry(key);
+        return entry == null ? null : entry.row;
+    }
+
+    /**
+     * @param key The key of the row.
+     * @return The row of the key where a row is created for a key without a row.
+     */
+    public Row<K> rowOrCreate(K key) {
+        RowEntry<K> entry = entry(key);
+        if (entry == null) {
+            RowEntry<K> inserted = new RowEntry<K>(key, this, columns);
+            entry = table.insert(key, inserted);
+            if (entry == null) {
+                return inserted.row;
+            }
+        }
+        return entry.row;
+    }
+
+    @Override
+    void appendValue(StringBuilder builder, RowEntry<K> entry) {
+        builder.append(entry.row.values);
+    }
+
+    static final class RowEntry<K> extends WeakHashTable.Entry<K> {
+
+        final Row<K> row;
+
+        private RowEntry(K key, ReferenceQueue<? super K> queue, int columns) {
+            super(key, WeakHashTable.hash(key), queue);
+            row = new Row<K>(columns);
+        }
+    }
+
+    /**
+     * A row of a table that holds the values of the table's columns for a key. A row does not reference its key and
+     * is only removed from its table by removing or collecting its key.
+     *
+     * @param <K> The type of the table's keys.
+     */
+    public static final class Row<K> {
+
+        private final AtomicReferenceArray<Object> values;
+
+        private Row(int columns) {
+            values = new AtomicReferenceArray<Object>(columns);
+        }
+    }
+
+    /**
+     * A handle for accessing the values of a single column of a table.
+     *
+     * @param <K> The type of the table's keys.
+     * @param <V> The type of the column's values.
+     */
+    public static final class Column<K, V> {
+
+        private final WeakConcurrentTable<K> table;
+
+        private final int index;
+
+        private Column(WeakConcurrentTable<K> table, int index) {
+            this.table = table;
+            this.index = index;
+        }
+
+        /**
+         * @return The index of this column within its table's rows.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @param key The key of the row.
+         * @return The value of this column or {@code null} if the key has no row or the column has no value.
+         */
+        public V get(K key) {
+            RowEntry<K> entry = table.entry(key);
+            return entry == null ? null : get(entry.row);
+        }
+
+        /**
+         * @param row A row of this column's table.
+         * @return The value of this column or {@code null} if the column has no value.
+         */
+        @SuppressWarnings("unchecked")
+        public V get(Row<K> row) {
+            return (V) row.values.get(index);
+        }
+
+        /**
+         * Sets the value of this column where a row is created for a key without a row unless the value is {@code null}.
+         *
+         * @param key   The key of the row.
+         * @param value The value to set or {@code null} for removing the column's value.
+         * @return The previous value or {@code null} if the column had no value.
+         */
+        public V set(K key, V value) {
+            if (value == null) {
+                RowEntry<K> entry = table.entry(key);
+                return entry == null ? null : set(entry.row, null);
+            }
+            return set(table.rowOrCreate(key), value);
+        }
+
+        /**
+         * @param row   A row of this column's table.
+         * @param value The value to set or {@code null} for removing the column's value.
+         * @return The previous value or {@code null} if the column had no value.
+         */
+        @SuppressWarnings("unchecked")
+        public V set(Row<K> row, V value) {
+            return (V) row.values.getAndSet(index, value);
+        }
+
+        /**
+         * Sets the value of this column if its value is currently the expected value by reference equality where a row
+         * is created for a key without a row. An expected value of {@code null} only sets a column without a value.
+         *
+         * @param key    The key of the row.
+         * @param expect The expected value.
+         * @param update The value to set.
+         * @return {@code true} if the value was set.
+         */
+        public boolean compareAndSet(K key, V expect, V update) {
+            Row<K> row = expect == null ? table.rowOrCreate(key) : table.rowOf(key);
+            return row != null && compareAndSet(row, expect, update);
+        }
+
+        /**
+         * Sets the value of this column if its value is currently the expected value by reference equality. An expected
+         * value of {@code null} only sets a column without a value.
+         *
+         * @param row    A row of this column's table.
+         * @param expect The expected value.
+         * @param update The value to set.
+         * @return {@code true} if the value was set.
+         */
+        public boolean compareAndSet(Row<K> row, V expect, V update) {
+            return row.values.compareAndSet(index, expect, update);
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A lock-free hash table of weak entries where each entry is itself the weak reference to its key. Entries are based
+ * on a key's system hash code and keys are considered equal only by reference equality.
+ * </p>
+ * This table is not meant to be used directly but backs the weak concurrent data structures of this package.
+ */
+class WeakHashTable<K, E extends WeakHashTable.Entry<K>> {
+
+    private static final int MINIMUM_CAPACITY = 16, MAXIMUM_CAPACITY = 1 << 30;
+
+    private final StripedCounter size = new StripedCounter();
+
+    private final AtomicBoolean resizing = new AtomicBoolean();
+
+    private volatile AtomicReferenceArray<Object> bins;
+
+    private int sample; // the scan position of the next sample, races are benign
+
+    WeakHashTable() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The number of entries this table should be able to hold without resizing.
+     */
+    WeakHashTable(int initialCapacity) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < MAXIMUM_CAPACITY && capacity - (capacity >>> 2) < initialCapacity) {
+            capacity <<= 1;
+        }
+        bins = new AtomicReferenceArray<Object>(capacity);
+    }
+
+    /**
+     * Computes the hash code of a key as it is stored within an {@link Entry}.
+     *
+     * @param key The key to hash.
+     * @return The key's spread system hash code.
+     */
+    static int hash(Object key) {
+        return spread(System.identityHashCode(key));
+    }
+
+    /**
+     * Spreads the higher bits of a key's hash code to its lower bits which determine the key's bin.
+     *
+     * @param hash The key's hash code.
+     * @return The spread hash code as it is stored within an {@link Entry}.
+     */
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /*
+     * Why this works:
+     * ---------------
+     *
+     * Each bin of the table is either empty, a single entry, an array of entries or a forwarding marker that points
+     * to a resized table. Bins are never mutated but replaced by a compare-and-swap of the bin slot, such that a reader
+     * always observes a consistent snapshot of a bin without locking. Any entry is contained in at most one bin of the
+     * most recent table where a resize only copies the references to the entries but never the entries themselves.
+     * Mutable state of an entry, such as a value, can therefore be changed directly within the entry without getting lost.
+     *
+     * An entry is removed by its identity. Stale entries are therefore removed exactly once they are polled from the
+     * reference queue that they are registered with, without a need to guess which entry of a bin was collected and
+     * without leaving any marker in the table. An explicitly removed entry is cleared before it is unlinked such that
+     * it can never be found by a lookup once its removal has started.
+     */
+
+    /**
+     * @param key  The key to look up.
+     * @param hash The key's hash as computed by {@link #hash(Object)}.
+     * @return The entry of the key or {@code null} if no such entry exists.
+     */
+    @SuppressWarnings("unchecked")
+    E find(K key, int hash) {
+        AtomicReferenceArray<Object> bins = this.bins;
+        while (true) {
+            Object bin = bins.get(hash & (bins.length() - 1));
+            if (bin == null) {
+                return null;
+            } else if (bin instanceof Entry<?>) {
+                return References.refersTo((Entry<?>) bin, key) ? (E) bin : null;
+            } else if (bin instanceof Forward) {
+                bins = ((Forward) bin).bins;
+            } else {
+                for (Object entry : (Object[]) bin) {
+                    if (References.refersTo((Entry<?>) entry, key)) {
+                        return (E) entry;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Inserts an entry unless an entry for the same key is already contained.
+     *
+     * @param key   The key of the entry which must be strongly referenced by the caller.
+     * @param entry The entry to insert.
+     * @return The already contained entry or {@code null} if the supplied entry was inserted.
+     */
+    @SuppressWarnings("unchecked")
+    E insert(K key, E entry) {
+        AtomicReferenceArray<Object> bins = this.bins;
+        while (true) {
+            int index = entry.hash & (bins.length() - 1);
+            Object bin = bins.get(index), replacement;
+            if (bin == null) {
+                replacement = entry;
+            } else if (bin instanceof Entry<?>) {
+                if (References.refersTo((Entry<?>) bin, key)) {
+                    return (E) bin;
+                }
+                replacement = new Object[]{bin, entry};
+            } else if (bin instanceof Forward) {
+                bins = ((Forward) bin).bins;
+                continue;
+            } else {
+                Object[] entries = (Object[]) bin;
+                for (Object candidate : entries) {
+                    if (References.refersTo((Entry<?>) candidate, key)) {
+                        return (E) candidate;
+                    }
+                }
+                Object[] extended = new Object[entries.length + 1];
+                System.arraycopy(entries, 0, extended, 0, entries.length);
+                extended[entries.length] = entry;
+                replacement = extended;
+            }
+            if (bins.compareAndSet(index, bin, replacement)) {
+                size.add(1);
+                if (bin != null && size.sum() > threshold(bins)) { // only resize if entries collide
+                    resize(bins);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry by its identity.
+     *
+     * @param entry The entry to remove.
+     * @return {@code true} if the entry was contained and removed by this invocation.
+     */
+    boolean remove(Entry<?> entry) {
+        AtomicReferenceArray<Object> bins = this.bins;
+        while (true) {
+            int index = entry.hash & (bins.length() - 1);
+            Object bin = bins.get(index), replacement;
+            if (bin == null) {
+                return false;
+            } else if (bin instanceof Entry<?>) {
+                if (bin != entry) {
+                    return false;
+                }
+                replacement = null;
+            } else if (bin instanceof Forward) {
+                bins = ((Forward) bin).bins;
+                continue;
+            } else {
+                Object[] entries = (Object[]) bin;
+                int position = indexOf(entries, entry);
+                if (position == -1) {
+                    return false;
+                } else if (entries.length == 2) {
+                    replacement = entries[1 - position];
+                } else {
+                    Object[] reduced = new Object[entries.length - 1];
+                    System.arraycopy(entries, 0, reduced, 0, position);
+                    System.arraycopy(entries, position + 1, reduced, position, reduced.length - position);
+                    replacement = reduced;
+                }
+            }
+            if (bins.compareAndSet(index, bin, replacement)) {
+                size.add(-1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries of this table and {@linkplain Entry#retire() retires} them.
+     */
+    void clear() {
+        AtomicReferenceArray<Object> bins = this.bins;
+        do {
+            AtomicReferenceArray<Object> forwarded = null;
+            for (int index = 0; index < bins.length(); index++) {
+                Object bin;
+                do {
+                    bin = bins.get(index);
+                    if (bin instanceof Forward) {
+                        forwarded = ((Forward) bin).bins; // all bins of a table are forwarded to the same resized table
+                        break;
+                    }
+                } while (bin != null && !bins.compareAndSet(index, bin, null));
+                if (bin instanceof Entry<?>) {
+                    size.add(-1);
+                    ((Entry<?>) bin).retire();
+                } else if (bin instanceof Object[]) {
+                    size.add(-((Object[]) bin).length);
+                    for (Object entry : (Object[]) bin) {
+                        ((Entry<?>) entry).retire();
+                    }
+                }
+            }
+            bins = forwarded;
+        } while (bins != null);
+    }
+
+    /**
+     * @return The number of entries in this table, including entries of collected keys that were not yet removed.
+     */
+    int size() {
+        return (int) Math.max(0L, size.sum());
+    }
+
+    /**
+     * @return A weakly consistent iterator over the live entries of this table.
+     */
+    Cursor<K, E> cursor() {
+        AtomicReferenceArray<Object> bins = this.bins;
+        return new Cursor<K, E>(bins, 0, bins.length());
+    }
+
+    /**
+     * Collects the entries of the bins from a scan position until at least a given number of entries is collected or
+     * until all bins were visited. Bins are visited in the reverse binary order of their indices. As a resize splits a
+     * bin into two bins that both succeed its position in this order, a scan visits every entry that is contained in the
+     * table throughout the scan, even if the table is resized in between two invocations. No key is referenced by a scan.
+     *
+     * @param position The position to start from where {@code 0} starts a new scan.
+     * @param count    The minimum number of entries to collect unless all bins were visited.
+     * @param buffer   The buffer to add the collected entries to, including entries of collected keys.
+     * @return The position of the next bin to visit or {@code 0} if all bins were visited.
+     */
+    int scan(int position, int count, List<Entry<?>> buffer) {
+        AtomicReferenceArray<Object> bins = this.bins;
+        int mask = bins.length() - 1;
+        do {
+            Cursor.collect(bins, position & mask, buffer);
+            position = Integer.reverse(Integer.reverse(position | ~mask) + 1);
+        } while (position != 0 && buffer.size() < count);
+        return position;
+    }
+
+    /**
+     * Estimates the number of {@linkplain Entry#isStale() stale} entries of this table from a sample of its entries. Each
+     * sample resumes the scan where the previous sample stopped, such that consecutive samples cover the entire table. If
+     * the sample contains every entry of this table, the stale entries are counted exactly. Neither a key is referenced
+     * nor an entry is removed.
+     *
+     * @param count The minimum number of entries to sample unless the table contains fewer entries.
+     * @return The estimated number of stale entries of this table.
+     */
+    int estimateStale(int count) {
+        List<Entry<?>> buffer = new ArrayList<Entry<?>>(count);
+        int size = size(), position = scan(size > count ? sample : 0, count, buffer);
+        if (position == 0 && buffer.size() < count && size > count) {
+            position = scan(0, count, buffer); // the previous sample stopped close to the last bin
+        }
+        sample = position;
+        int stale = 0;
+        for (Entry<?> entry : buffer) {
+            if (entry.isStale()) {
+                stale++;
+            }
+        }
+        return stale == 0 || buffer.size() >= size ? stale : (int) ((long) stale * size / buffer.size());
+    }
+
+    private static int threshold(AtomicReferenceArray<Object> bins) {
+        int length = bins.length();
+        return length == MAXIMUM_CAPACITY ? Integer.MAX_VALUE : length - (length >>> 2);
+    }
+
+    private static int indexOf(Object[] entries, Object entry) {
+        for (int index = 0; index < entries.length; index++) {
+            if (entries[index] == entry) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void resize(AtomicReferenceArray<Object> bins) {
+        if (this.bins != bins || bins.length() == MAXIMUM_CAPACITY || !resizing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (this.bins != bins) {
+                return;
+            }
+            int length = bins.length();
+            AtomicReferenceArray<Object> resized = new AtomicReferenceArray<Object>(length << 1);
+            Forward forward = new Forward(resized);
+            for (int index = 0; index < length; index++) {
+                Object bin;
+                do {
+                    bin = bins.get(index);
+                    transfer(bin, length, resized, index);
+                } while (!bins.compareAndSet(index, bin, forward));
+            }
+            this.bins = resized;
+        } finally {
+            resizing.set(false);
+        }
+    }
+
+    private static void transfer(Object bin, int length, AtomicReferenceArray<Object> resized, int index) {
+        if (bin == null) {
+            resized.set(index, null);
+            resized.set(index + length, null);
+        } else if (bin instanceof Entry<?>) {
+            boolean high = (((Entry<?>) bin).hash & length) != 0;
+            resized.set(index, high ? null : bin);
+            resized.set(index + length, high ? bin : null);
+        } else {
+            Object[] entries = (Object[]) bin;
+            int highs = 0;
+            for (Object entry : entries) {
+                if ((((Entry<?>) entry).hash & length) != 0) {
+                    highs++;
+                }
+            }
+            Object[] low = new Object[entries.length - highs], high = new Object[highs];
+            int lowIndex = 0, highIndex = 0;
+            for (Object entry : entries) {
+                if ((((Entry<?>) entry).hash & length) != 0) {
+                    high[highIndex++] = entry;
+                } else {
+                    low[lowIndex++] = entry;
+                }
+            }
+            resized.set(index, low.length == 0 ? null : low.length == 1 ? low[0] : low);
+            resized.set(index + length, high.length == 0 ? null : high.length == 1 ? high[0] : high);
+        }
+    }
+
+    /**
+     * An entry of a weak hash table which is a weak reference to its key.
+     *
+     * @param <K> The type of the referenced key.
+     */
+    static class Entry<K> extends WeakReference<K> {
+
+        final int hash;
+
+        /**
+         * @param key   The key of this entry.
+         * @param hash  The key's hash as computed by {@link WeakHashTable#hash(Object)}.
+         * @param queue The queue to register this entry with.
+         */
+        Entry(K key, int hash, ReferenceQueue<? super K> queue) {
+            super(key, queue);
+            this.hash = hash;
+        }
+
+        /**
+         * @return {@code true} if this entry's key was collected such that the entry awaits its removal.
+         */
+        boolean isStale() {
+            return References.refersTo(this, null);
+        }
+
+        /**
+         * Invoked when this entry is removed from the table without being looked up, for example when the table is cleared.
+         */
+        void retire() {
+            clear();
+        }
+    }
+
+    private static final class Forward {
+
+        final AtomicReferenceArray<Object> bins;
+
+        private Forward(AtomicReferenceArray<Object> bins) {
+            this.bins = bins;
+        }
+    }
+
+    /**
+     * A weakly consistent traversal of a table's live entries. While a cursor is pointing to an entry,
+     * the entry's key is strongly referenced by the cursor.
+     *
+     * @param <K> The type of the table's keys.
+     * @param <E> The type of the table's entries.
+     */
+    static final class Cursor<K, E extends Entry<K>> {
+
+        private final AtomicReferenceArray<Object> bins;
+
+        private final List<Entry<?>> buffer = new ArrayList<Entry<?>>();
+
+        private int index, limit, position;
+
+        private E entry;
+
+        private K key;
+
+        private Cursor(AtomicReferenceArray<Object> bins, int index, int limit) {
+            this.bins = bins;
+            this.index = index;
+            this.limit = limit;
+        }
+
+        /**
+         * Splits off the upper half of the bins that this cursor did not yet visit such that both cursors can
+         * advance independently of one another.
+         *
+         * @return A cursor over the split off bins or {@code null} if too few bins remain for splitting.
+         */
+        Cursor<K, E> split() {
+            int middle = (index + limit) >>> 1;
+            if (middle <= index) {
+                return null;
+            }
+            Cursor<K, E> split = new Cursor<K, E>(bins, middle, limit);
+            limit = middle;
+            return split;
+        }
+
+        /**
+         * @return The fraction of the table's bins that this cursor did not yet visit.
+         */
+        double remaining() {
+            return (limit - index) / (double) bins.length();
+        }
+
+        /**
+         * Advances this cursor to the next live entry.
+         *
+         * @return {@code true} if this cursor points to another live entry.
+         */
+        @SuppressWarnings("unchecked")
+        boolean advance() {
+            while (true) {
+                while (position < buffer.size()) {
+                    entry = (E) buffer.get(position++);
+                    key = entry.get();
+                    if (key != null) {
+                        return true;
+                    }
+                }
+                buffer.clear();
+                position = 0;
+                if (index == limit) {
+                    entry = null;
+                    key = null;
+                    return false;
+                }
+                collect(bins, index++, buffer);
+            }
+        }
+
+        private static void collect(AtomicReferenceArray<Object> bins, int index, List<Entry<?>> buffer) {
+            Object bin = bins.get(index);
+            if (bin instanceof Entry<?>) {
+                buffer.add((Entry<?>) bin);
+            } else if (bin instanceof Forward) {
+                AtomicReferenceArray<Object> resized = ((Forward) bin).bins;
+                collect(resized, index, buffer);
+                collect(resized, index + bins.length(), buffer);
+            } else if (bin != null) {
+                for (Object entry : (Object[]) bin) {
+                    buffer.add((Entry<?>) entry);
+                }
+            }
+        }
+
+        /**
+         * @return The current entry.
+         */
+        E entry() {
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+            return entry;
+        }
+
+        /**
+         * @return The current entry's key.
+         */
+        K key() {
+            if (key == null) {
+                throw new NoSuchElementException();
+            }
+            return key;
+        }
+    }
+}
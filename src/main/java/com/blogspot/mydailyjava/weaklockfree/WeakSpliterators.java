@@ -0,0 +1,140 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Creates weakly consistent spliterators over the entries of a map or the values of a set that can be split for
+ * traversing the map or set in parallel, for example by a parallel stream. Entries of collected keys are skipped.
+ * </p>
+ * This class references types of Java 8 and must only be used on Java 8 or later. Maps and sets do not reference this
+ * class, such that their signatures do not contain any type of Java 8.
+ */
+public final class WeakSpliterators {
+
+    private WeakSpliterators() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns a weakly consistent spliterator over a map's entries that can be split for traversing the map in parallel.
+     * Entries of collected keys are skipped.
+     *
+     * @param map The map to traverse.
+     * @param <K> The type of the map's keys.
+     * @param <V> The type of the map's values.
+     * @return A spliterator over the map's entries.
+     */
+    public static <K, V> Spliterator<Map.Entry<K, V>> spliterator(AbstractWeakConcurrentMap<K, V, ?> map) {
+        return entries(map);
+    }
+
+    /**
+     * Returns a weakly consistent spliterator over a set's values that can be split for traversing the set in parallel.
+     *
+     * @param set The set to traverse.
+     * @param <V> The type of the set's values.
+     * @return A spliterator over the set's values.
+     */
+    public static <V> Spliterator<V> spliterator(WeakConcurrentSet<V> set) {
+        set.expungeInline();
+        return new ValueSpliterator<V>(set.table.cursor(), set.table.size());
+    }
+
+    private static <K, V, L> Spliterator<Map.Entry<K, V>> entries(AbstractWeakConcurrentMap<K, V, L> map) {
+        map.beforeAccess();
+        return map.table != null
+                ? new TableSpliterator<K, V, L>(map, map.table.cursor(), map.table.size())
+                : new EntrySpliterator<K, V, L>(map, map.target.entrySet().spliterator());
+    }
+
+    private static final class TableSpliterator<K, V, L> extends ParallelTraversal.CursorSpliterator<K, AbstractWeakConcurrentMap.WeakEntry<K, V>, Map.Entry<K, V>> {
+
+        private final AbstractWeakConcurrentMap<K, V, L> map;
+
+        private TableSpliterator(AbstractWeakConcurrentMap<K, V, L> map, WeakHashTable.Cursor<K, AbstractWeakConcurrentMap.WeakEntry<K, V>> cursor, int size) {
+            super(cursor, size);
+            this.map = map;
+        }
+
+        @Override
+        Map.Entry<K, V> element(WeakHashTable.Cursor<K, AbstractWeakConcurrentMap.WeakEntry<K, V>> cursor) {
+            AbstractWeakConcurrentMap.WeakEntry<K, V> entry = cursor.entry();
+            return entry.value() == null ? null : map.new TableEntry(cursor.key(), entry);
+        }
+
+        @Override
+        TableSpliterator<K, V, L> split(WeakHashTable.Cursor<K, AbstractWeakConcurrentMap.WeakEntry<K, V>> cursor, int size) {
+            return new TableSpliterator<K, V, L>(map, cursor, size);
+        }
+    }
+
+    private static final class EntrySpliterator<K, V, L> implements Spliterator<Map.Entry<K, V>>, Consumer<Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V>> {
+
+        private final AbstractWeakConcurrentMap<K, V, L> map;
+
+        private final Spliterator<Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V>> spliterator;
+
+        private Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V> entry;
+
+        private EntrySpliterator(AbstractWeakConcurrentMap<K, V, L> map, Spliterator<Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V>> spliterator) {
+            this.map = map;
+            this.spliterator = spliterator;
+        }
+
+        @Override
+        public void accept(Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            if (action == null) throw new NullPointerException();
+            while (spliterator.tryAdvance(this)) {
+                Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V> entry = this.entry;
+                this.entry = null;
+                K key = entry.getKey().get();
+                if (key != null) {
+                    action.accept(map.new SimpleEntry(key, entry));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            Spliterator<Map.Entry<AbstractWeakConcurrentMap.WeakKey<K>, V>> split = spliterator.trySplit();
+            return split == null ? null : new EntrySpliterator<K, V, L>(map, split);
+        }
+
+        @Override
+        public long estimateSize() {
+            return spliterator.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return CONCURRENT | DISTINCT | NONNULL;
+        }
+    }
+
+    private static final class ValueSpliterator<V> extends ParallelTraversal.CursorSpliterator<V, WeakHashTable.Entry<V>, V> {
+
+        private ValueSpliterator(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor, int size) {
+            super(cursor, size);
+        }
+
+        @Override
+        V element(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor) {
+            return cursor.key();
+        }
+
+        @Override
+        ValueSpliterator<V> split(WeakHashTable.Cursor<V, WeakHashTable.Entry<V>> cursor, int size) {
+            return new ValueSpliterator<V>(cursor, size);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+/**
+ * <p>
+ * Determines the weight of a value of a {@link WeakConcurrentCache} that is bounded by a maximum weight.
+ * </p>
+ * <p>
+ * A value's weight is computed when the value is set and again when the value is removed, also if the value's key was
+ * collected. A weigher must therefore not depend on a value's key and must return the same weight for a value as long
+ * as the value is contained in a cache.
+ * </p>
+ *
+ * @param <V> The type of the weighed values.
+ */
+public interface Weigher<V> {
+
+    /**
+     * @param value The value to weigh.
+     * @return The value's weight which must not be negative.
+     */
+    int weigh(V value);
+}
@@ -0,0 +1,28 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import java.lang.ref.Reference;
+
+/**
+ * <p>
+ * Compares the referent of a reference without retaining it. This version of the class is used on Java 16 or later
+ * and uses {@link Reference#refersTo(Object)} which does not load the referent. Such a comparison neither triggers a
+ * load barrier of a concurrent garbage collector nor keeps a referent alive for another collection cycle.
+ * </p>
+ * This class is not meant to be used directly but by the weak concurrent data structures of this package.
+ */
+final class References {
+
+    private References() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param reference The reference to compare.
+     * @param referent  The expected referent or {@code null} for checking if the reference is cleared.
+     * @return {@code true} if the reference refers to the expected referent.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean refersTo(Reference<?> reference, Object referent) {
+        return ((Reference<Object>) reference).refersTo(referent);
+    }
+}
@@ -0,0 +1,186 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Loads this library's classes with all types that were added in Java 7 or later being hidden, as if the classes
+ * were used on Java 6. Only the holders that are guarded by a check for these types are exempt.
+ */
+public class BaselineTest {
+
+    private static final String PACKAGE = BaselineTest.class.getPackage().getName();
+
+    private static final String[] HIDDEN = {
+            "java.util.Spliterator",
+            "java.util.function.",
+            "java.util.stream.",
+            "java.util.Optional",
+            "java.util.PrimitiveIterator",
+            "java.util.Objects",
+            "java.util.concurrent.CompletableFuture",
+            "java.util.concurrent.CompletionStage",
+            "java.util.concurrent.CountedCompleter",
+            "java.util.concurrent.ForkJoin",
+            "java.util.concurrent.Recursive",
+            "java.util.concurrent.ThreadLocalRandom",
+            "java.util.concurrent.atomic.LongAdder",
+            "java.util.concurrent.atomic.LongAccumulator",
+            "java.util.concurrent.atomic.DoubleAdder",
+            "java.util.concurrent.atomic.DoubleAccumulator",
+            "java.util.concurrent.atomic.Striped64",
+            "java.util.concurrent.locks.StampedLock",
+            "java.time.",
+            "java.lang.ClassValue",
+            "java.lang.AutoCloseable",
+            "java.lang.invoke."
+    };
+
+    @Test
+    public void testClassesLoadWithoutJava7Types() throws Exception {
+        ClassLoader classLoader = new BaselineClassLoader();
+        List<String> names = classNames();
+        assertThat(names.isEmpty(), is(false));
+        for (String name : names) {
+            if (!isGuarded(name)) {
+                Class.forName(name, true, classLoader);
+            }
+        }
+        Field bulkTraversal = Class.forName(AbstractWeakConcurrentMap.class.getName(), true, classLoader).getDeclaredField("BULK_TRAVERSAL");
+        bulkTraversal.setAccessible(true);
+        assertThat(bulkTraversal.getBoolean(null), is(false));
+    }
+
+    @Test
+    public void testSignaturesWithoutJava7Types() throws Exception {
+        ClassLoader classLoader = new BaselineClassLoader();
+        for (Class<?> type : new Class<?>[]{AbstractWeakConcurrentMap.class, WeakConcurrentMap.class, WeakConcurrentSet.class}) {
+            assertThat(Class.forName(type.getName(), true, classLoader).getDeclaredMethods().length > 0, is(true));
+        }
+    }
+
+    @Test
+    public void testMapAndSetWithoutJava7Types() throws Exception {
+        Callable<?> usage = (Callable<?>) Class.forName(Usage.class.getName(), true, new BaselineClassLoader()).newInstance();
+        assertThat(usage.call(), is((Object) true));
+    }
+
+    private static boolean isGuarded(String name) {
+        String simpleName = name.substring(PACKAGE.length() + 1);
+        return simpleName.startsWith("ParallelTraversal")
+                || simpleName.startsWith("WeakSpliterators")
+                || simpleName.contains("$BulkTraversal")
+                || simpleName.startsWith("WeakConcurrentClassMap$Holders");
+    }
+
+    private static List<String> classNames() throws Exception {
+        File folder = new File(new File(AbstractWeakConcurrentMap.class.getProtectionDomain().getCodeSource().getLocation().toURI()),
+                PACKAGE.replace('.', File.separatorChar));
+        List<String> names = new ArrayList<String>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".class")) {
+                    names.add(PACKAGE + "." + file.getName().substring(0, file.getName().length() - ".class".length()));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static class BaselineClassLoader extends ClassLoader {
+
+        private BaselineClassLoader() {
+            super(BaselineTest.class.getClassLoader());
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            for (String hidden : HIDDEN) {
+                if (name.startsWith(hidden)) {
+                    throw new ClassNotFoundException(name);
+                }
+            }
+            if (!name.startsWith(PACKAGE + ".") || name.equals(BaselineTest.class.getName()) || name.equals(BaselineClassLoader.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> type = findLoadedClass(name);
+            if (type == null) {
+                type = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(type);
+            }
+            return type;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            try {
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int length;
+                    while ((length = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, length);
+                    }
+                    byte[] binary = out.toByteArray();
+                    return defineClass(name, binary, 0, binary.length);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException exception) {
+                throw new ClassNotFoundException(name, exception);
+            }
+        }
+    }
+
+    /**
+     * Uses a map and a set from within the class loader that hides types of Java 7 or later.
+     */
+    public static class Usage implements Callable<Boolean> {
+
+        @Override
+        public Boolean call() {
+            Object key = new Object(), value = new Object();
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+            map.put(key, value);
+            WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.MANUAL);
+            set.add(value);
+            WeakConcurrentClassMap<Object> classMap = new WeakConcurrentClassMap<Object>(WeakConcurrentClassMap.Cleaner.MANUAL);
+            classMap.put(Object.class, value);
+            Integer size = map.reduce(1L, new AbstractWeakConcurrentMap.EntryFunction<Object, Object, Integer>() {
+                @Override
+                public Integer apply(Object key, Object value) {
+                    return 1;
+                }
+            }, new AbstractWeakConcurrentMap.Reducer<Integer>() {
+                @Override
+                public Integer reduce(Integer left, Integer right) {
+                    return left + right;
+                }
+            });
+            return map.get(key) == value
+                    && map.iterator().hasNext()
+                    && size == 1
+                    && set.contains(value)
+                    && set.iterator().next() == value
+                    && classMap.get(Object.class) == value;
+        }
+    }
+}
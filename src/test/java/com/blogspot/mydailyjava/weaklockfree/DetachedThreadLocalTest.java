@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -44,6 +45,125 @@ public class DetachedThreadLocalTest {
         assertThat(threadLocal.getBackingMap().getCleanerThread().isAlive(), is(false));
     }
 
+    @Test
+    public void testSharedCleaner() throws Exception {
+        DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.SHARED);
+        assertThat(threadLocal.getBackingMap().getCleanerThread(), nullValue(Thread.class));
+        new ThreadLocalTestCase(threadLocal).doTest();
+        threadLocal.close();
+    }
+
+    @Test
+    public void testComputeOnce() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        final DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.MANUAL, true) {
+            @Override
+            protected Object initialValue(Thread thread) {
+                computations.incrementAndGet();
+                return new Object();
+            }
+        };
+        Object value = threadLocal.get();
+        assertThat(threadLocal.get(), is(value));
+        assertThat(threadLocal.getBackingMap().get(Thread.currentThread()), is(value));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                threadLocal.get();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(threadLocal.get(thread), notNullValue());
+        assertThat(computations.get(), is(2));
+    }
+
+    @Test
+    public void testCompactLocalExpunction() throws Exception {
+        final DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.INLINE, false, true);
+        assertThat(threadLocal.map.table, notNullValue());
+        assertThat(threadLocal.map, instanceOf(WeakConcurrentMap.WithAmortizedExpunction.class));
+        new ThreadLocalTestCase(threadLocal) {
+            @Override
+            protected void triggerClean() {
+                threadLocal.map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testCompactInternalThread() throws Exception {
+        DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.THREAD, false, true);
+        assertThat(threadLocal.map.table, notNullValue());
+        new ThreadLocalTestCase(threadLocal).doTest();
+        threadLocal.close();
+    }
+
+    @Test
+    public void testInitialValueNotRetained() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        final DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.MANUAL, false, true) {
+            @Override
+            protected Object initialValue(Thread thread) {
+                computations.incrementAndGet();
+                return thread.getName();
+            }
+
+            @Override
+            protected boolean isInitialValueRetained(Thread thread) {
+                return thread != Thread.currentThread();
+            }
+        };
+        assertThat(threadLocal.get(), is((Object) Thread.currentThread().getName()));
+        assertThat(threadLocal.get(), is((Object) Thread.currentThread().getName()));
+        assertThat(threadLocal.getIfPresent(), nullValue());
+        assertThat(computations.get(), is(2));
+        Object value = new Object();
+        threadLocal.set(value);
+        assertThat(threadLocal.get(), is(value));
+        assertThat(computations.get(), is(2));
+        Thread thread = new Thread();
+        assertThat(threadLocal.get(thread), is((Object) thread.getName()));
+        assertThat(threadLocal.get(thread), is((Object) thread.getName()));
+        assertThat(computations.get(), is(3));
+        assertThat(threadLocal.map.approximateSize(), is(2));
+    }
+
+    @Test
+    public void testInitialValueNotRetainedInlinedExpunction() throws Exception {
+        DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.INLINE) {
+            @Override
+            protected Object initialValue(Thread thread) {
+                return thread.getName();
+            }
+
+            @Override
+            protected boolean isInitialValueRetained(Thread thread) {
+                return false;
+            }
+        };
+        threadLocal.define(new Thread(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(threadLocal.get(), is((Object) Thread.currentThread().getName()));
+        assertThat(threadLocal.map.target.size(), is(0));
+    }
+
+    @Test
+    public void testStatistics() {
+        DetachedThreadLocal<Object> threadLocal = new DetachedThreadLocal<Object>(DetachedThreadLocal.Cleaner.MANUAL, false, false, new StripedStatisticsCounter()) {
+            @Override
+            protected Object initialValue(Thread thread) {
+                return new Object();
+            }
+        };
+        Object value = threadLocal.get();
+        assertThat(threadLocal.get(), is(value));
+        assertThat(threadLocal.getStatistics().getMissCount(), is(1L));
+        assertThat(threadLocal.getStatistics().getHitCount(), is(1L));
+        assertThat(threadLocal.getStatistics().getDefaultValueCount(), is(1L));
+    }
+
     private class ThreadLocalTestCase {
 
         private final DetachedThreadLocal<Object> threadLocal;
@@ -63,14 +183,18 @@ public class DetachedThreadLocalTest {
             for (Thread thread : threads) {
                 thread.join();
             }
-            assertThat(threadLocal.map.target.size(), is(size));
+            assertThat(backingSize(), is(size));
             threads.clear();
             System.gc();
             Thread.sleep(1500L);
             System.gc();
             Thread.sleep(1500L);
             triggerClean();
-            assertThat(threadLocal.map.target.size(), is(0));
+            assertThat(backingSize(), is(0));
+        }
+
+        private int backingSize() {
+            return threadLocal.map.table == null ? threadLocal.map.target.size() : threadLocal.map.table.size();
         }
 
         void triggerClean() {
@@ -0,0 +1,45 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ReferencesTest {
+
+    @Test
+    public void testRefersTo() {
+        Object referent = new Object();
+        WeakReference<Object> reference = new WeakReference<Object>(referent);
+        assertThat(References.refersTo(reference, referent), is(true));
+        assertThat(References.refersTo(reference, new Object()), is(false));
+        assertThat(References.refersTo(reference, null), is(false));
+        reference.clear();
+        assertThat(References.refersTo(reference, referent), is(false));
+        assertThat(References.refersTo(reference, null), is(true));
+    }
+
+    /**
+     * Asserts that the class for the release that is set by the {@code weaklockfree.release} property is loaded when
+     * testing the multi-release jar, or the Java 6 class otherwise.
+     */
+    @Test
+    public void testVersionedClass() throws Exception {
+        int release = Integer.getInteger("weaklockfree.release", 6);
+        InputStream in = References.class.getResourceAsStream(References.class.getSimpleName() + ".class");
+        assertThat(in, notNullValue());
+        try {
+            DataInputStream data = new DataInputStream(in);
+            data.readInt(); // magic number
+            data.readUnsignedShort(); // minor version
+            assertThat(data.readUnsignedShort(), is(44 + release));
+        } finally {
+            in.close();
+        }
+    }
+}
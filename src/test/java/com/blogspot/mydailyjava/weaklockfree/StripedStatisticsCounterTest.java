@@ -0,0 +1,50 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class StripedStatisticsCounterTest {
+
+    @Test
+    public void testSnapshot() {
+        StripedStatisticsCounter counter = new StripedStatisticsCounter();
+        counter.recordHits(2);
+        counter.recordMisses(3);
+        counter.recordDefaultValue(false);
+        counter.recordDefaultValue(true);
+        counter.recordPuts(4);
+        counter.recordRemovals(5);
+        counter.recordExpunctions(6);
+        counter.recordDrain(7);
+        assertThat(counter.snapshot(), is(new Statistics(2, 3, 2, 1, 4, 5, 13, 1, 0)));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final StripedStatisticsCounter counter = new StripedStatisticsCounter();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int index = 0; index < 8; index++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int index = 0; index < 10000; index++) {
+                        counter.recordHits(1);
+                        counter.recordMisses(2);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.snapshot().getHitCount(), is(80000L));
+        assertThat(counter.snapshot().getMissCount(), is(160000L));
+    }
+}
@@ -0,0 +1,65 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakCleanerTest {
+
+    @Test
+    public void testCleansRegisteredMaps() throws Exception {
+        WeakCleaner cleaner = new WeakCleaner(2, 1, 10, TimeUnit.MILLISECONDS);
+        WeakConcurrentMap<Object, Object> first = new WeakConcurrentMap<Object, Object>(cleaner);
+        WeakConcurrentMap<Object, Object> second = new WeakConcurrentMap<Object, Object>(cleaner, AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+        assertThat(cleaner.approximateSize(), is(2));
+        Object key = new Object(), value = new Object();
+        for (int index = 0; index < 10; index++) {
+            first.put(new Object(), value);
+            second.put(new Object(), value);
+        }
+        first.put(key, value);
+        second.put(key, value);
+        System.gc();
+        Thread.sleep(500L);
+        assertThat(first.approximateSize(), is(1));
+        assertThat(second.approximateSize(), is(1));
+        assertThat(first.get(key), is(value));
+        assertThat(second.get(key), is(value));
+        cleaner.close();
+    }
+
+    @Test
+    public void testUnregister() throws Exception {
+        WeakCleaner cleaner = new WeakCleaner(1, 1024, 10, TimeUnit.MILLISECONDS);
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(cleaner);
+        assertThat(cleaner.approximateSize(), is(1));
+        map.close();
+        Thread.sleep(200L);
+        assertThat(cleaner.approximateSize(), is(0));
+        map.put(new Object(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.approximateStaleBacklog(), is(1));
+        assertThat(map.expungeStaleEntries(Integer.MAX_VALUE), is(1));
+        assertThat(map.approximateSize(), is(0));
+        cleaner.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        WeakCleaner cleaner = new WeakCleaner(2, 1024, 10, TimeUnit.MILLISECONDS);
+        cleaner.close();
+        Thread.sleep(200L);
+        for (Thread thread : cleaner.getCleanerThreads()) {
+            assertThat(thread.isAlive(), is(false));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalInterval() {
+        new WeakCleaner(1, 1024, 0, TimeUnit.MILLISECONDS);
+    }
+}
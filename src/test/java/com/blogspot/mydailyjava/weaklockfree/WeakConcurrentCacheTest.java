@@ -0,0 +1,323 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentCacheTest {
+
+    @Test
+    public void testMaximumSize() {
+        final List<RemovalListener.Cause> causes = new ArrayList<RemovalListener.Cause>();
+        WeakConcurrentMap<Object, Object> cache = new WeakConcurrentMap.Builder()
+                .maximumSize(10)
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        causes.add(cause);
+                    }
+                })
+                .build();
+        assertThat(cache, instanceOf(WeakConcurrentCache.class));
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 100; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, index);
+            assertThat(cache.approximateSize() <= 10, is(true));
+        }
+        assertThat(cache.approximateSize(), is(10));
+        assertThat(causes.size(), is(90));
+        for (RemovalListener.Cause cause : causes) {
+            assertThat(cause, is(RemovalListener.Cause.EVICTED));
+        }
+    }
+
+    @Test
+    public void testRecentlyReadEntriesAreRetained() {
+        WeakConcurrentCache<Object, Object> cache = new WeakConcurrentCache<Object, Object>(100);
+        List<Object> hot = new ArrayList<Object>(), cold = new ArrayList<Object>();
+        for (int index = 0; index < 100; index++) {
+            Object key = new Object();
+            (index % 2 == 0 ? hot : cold).add(key);
+            cache.put(key, key);
+        }
+        for (int index = 0; index < 50; index++) {
+            for (Object key : hot) {
+                assertThat(cache.get(key), is(key));
+            }
+            Object key = new Object();
+            cold.add(key);
+            cache.put(key, key);
+        }
+        assertThat(cache.approximateSize(), is(100));
+        for (Object key : hot) {
+            assertThat(cache.getIfPresent(key), is(key));
+        }
+    }
+
+    @Test
+    public void testMaximumWeight() {
+        WeakConcurrentCache<Object, String> cache = new WeakConcurrentCache<Object, String>(new WeakConcurrentMap.Builder()
+                .maximumWeight(100, new Weigher<String>() {
+                    @Override
+                    public int weigh(String value) {
+                        return value.length();
+                    }
+                }));
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 20; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, "0123456789");
+            assertThat(cache.approximateWeight() <= 100L, is(true));
+        }
+        assertThat(cache.approximateWeight(), is(100L));
+        assertThat(cache.approximateSize(), is(10));
+        Object key = null;
+        for (Object candidate : keys) {
+            if (cache.containsKey(candidate)) {
+                key = candidate;
+            }
+        }
+        assertThat(cache.put(key, "01234"), is("0123456789"));
+        assertThat(cache.approximateWeight(), is(95L));
+        assertThat(cache.remove(key), is("01234"));
+        assertThat(cache.approximateWeight(), is(90L));
+        cache.clear();
+        assertThat(cache.approximateWeight(), is(0L));
+    }
+
+    @Test
+    public void testEvictionRemovesLimitedNumberOfCollectedKeys() throws Exception {
+        final List<RemovalListener.Cause> causes = new ArrayList<RemovalListener.Cause>();
+        WeakConcurrentCache<Object, Object> cache = new WeakConcurrentCache<Object, Object>(new WeakConcurrentMap.Builder()
+                .maximumSize(1000)
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        causes.add(cause);
+                    }
+                }));
+        for (int index = 0; index < 1000; index++) {
+            cache.put(new Object(), index);
+        }
+        System.gc();
+        Thread.sleep(200L);
+        Object key = new Object();
+        cache.put(key, 1000);
+        assertThat(Collections.frequency(causes, RemovalListener.Cause.COLLECTED) <= 64, is(true));
+        cache.expungeStaleEntries();
+        assertThat(Collections.frequency(causes, RemovalListener.Cause.COLLECTED) > 64, is(true));
+        assertThat(cache.get(key), is((Object) 1000));
+    }
+
+    @Test
+    public void testCollectedKeysAreRemovedBeforeEviction() throws Exception {
+        final List<RemovalListener.Cause> causes = new ArrayList<RemovalListener.Cause>();
+        WeakConcurrentCache<Object, Object> cache = new WeakConcurrentCache<Object, Object>(new WeakConcurrentMap.Builder()
+                .maximumSize(10)
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        causes.add(cause);
+                    }
+                }));
+        for (int index = 0; index < 10; index++) {
+            cache.put(new Object(), index);
+        }
+        System.gc();
+        Thread.sleep(200L);
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 10; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, index);
+        }
+        assertThat(causes.size(), is(10));
+        for (RemovalListener.Cause cause : causes) {
+            assertThat(cause, is(RemovalListener.Cause.COLLECTED));
+        }
+        for (Object key : keys) {
+            assertThat(cache.containsKey(key), is(true));
+        }
+    }
+
+    @Test
+    public void testExpireAfterWrite() {
+        ManualTicker ticker = new ManualTicker();
+        final List<RemovalListener.Cause> causes = Collections.synchronizedList(new ArrayList<RemovalListener.Cause>());
+        WeakConcurrentMap<Object, Object> cache = new WeakConcurrentMap.Builder()
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        causes.add(cause);
+                    }
+                })
+                .build();
+        assertThat(cache, instanceOf(WeakConcurrentCache.class));
+        Object key = new Object(), other = new Object();
+        cache.put(key, "foo");
+        cache.put(other, "bar");
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertThat(cache.get(key), is((Object) "foo"));
+        cache.put(other, "qux");
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertThat(cache.get(key), nullValue());
+        assertThat(cache.containsKey(key), is(false));
+        assertThat(cache.get(other), is((Object) "qux"));
+        assertThat(causes, is(Collections.singletonList(RemovalListener.Cause.EXPIRED)));
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertThat(cache.putIfAbsent(other, "baz"), nullValue());
+        assertThat(cache.get(other), is((Object) "baz"));
+        assertThat(causes, is(Arrays.asList(RemovalListener.Cause.EXPIRED, RemovalListener.Cause.EXPIRED)));
+    }
+
+    @Test
+    public void testExpireAfterAccess() {
+        ManualTicker ticker = new ManualTicker();
+        WeakConcurrentMap<Object, Object> cache = new WeakConcurrentMap.Builder()
+                .expireAfterAccess(10, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+        Object key = new Object(), other = new Object();
+        cache.put(key, "foo");
+        cache.put(other, "bar");
+        for (int index = 0; index < 10; index++) {
+            ticker.advance(6, TimeUnit.SECONDS);
+            assertThat(cache.get(key), is((Object) "foo"));
+        }
+        assertThat(cache.containsKey(other), is(false));
+        ticker.advance(10, TimeUnit.SECONDS);
+        assertThat(cache.get(key), nullValue());
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemovedByExpunction() {
+        ManualTicker ticker = new ManualTicker();
+        final List<RemovalListener.Cause> causes = Collections.synchronizedList(new ArrayList<RemovalListener.Cause>());
+        WeakCleaner cleaner = new WeakCleaner(1, 1024, 1, TimeUnit.HOURS);
+        WeakConcurrentCache<Object, Object> cache = new WeakConcurrentCache<Object, Object>(new WeakConcurrentMap.Builder()
+                .cleaner(cleaner)
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        causes.add(cause);
+                    }
+                }));
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 100; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, index);
+        }
+        ticker.advance(9, TimeUnit.SECONDS);
+        cache.expungeStaleEntries();
+        assertThat(cache.approximateSize(), is(100));
+        ticker.advance(2, TimeUnit.SECONDS);
+        cache.expungeStaleEntries();
+        assertThat(cache.approximateSize(), is(0));
+        assertThat(causes.size(), is(100));
+        for (RemovalListener.Cause cause : causes) {
+            assertThat(cause, is(RemovalListener.Cause.EXPIRED));
+        }
+        cache.close();
+        cleaner.close();
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemovedByCleanerThread() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        WeakConcurrentCache<Object, Object> cache = new WeakConcurrentCache<Object, Object>(new WeakConcurrentMap.Builder()
+                .cleanerThread()
+                .expireAfterWrite(100, TimeUnit.MILLISECONDS)
+                .ticker(ticker));
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 10; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, index);
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (cache.approximateSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(cache.approximateSize(), is(0));
+        for (Object key : keys) {
+            assertThat(cache.containsKey(key), is(false));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testExpirationAndMaximumSize() {
+        ManualTicker ticker = new ManualTicker();
+        WeakConcurrentMap<Object, Object> cache = new WeakConcurrentMap.Builder()
+                .maximumSize(10)
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 100; index++) {
+            Object key = new Object();
+            keys.add(key);
+            cache.put(key, index);
+        }
+        assertThat(cache.approximateSize(), is(10));
+        ticker.advance(11, TimeUnit.SECONDS);
+        cache.expungeStaleEntries();
+        assertThat(cache.approximateSize(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConcurrentHashMap() {
+        new WeakConcurrentMap.Builder().maximumSize(10).backing(AbstractWeakConcurrentMap.Backing.CONCURRENT_HASH_MAP).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWeakValues() {
+        new WeakConcurrentMap.Builder().maximumSize(10).valueStrength(AbstractWeakConcurrentMap.Strength.WEAK).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoMaximum() {
+        new WeakConcurrentCache<Object, Object>(new WeakConcurrentMap.Builder());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapWithMaximumSize() {
+        new WeakConcurrentMap<Object, Object>(new WeakConcurrentMap.Builder().maximumSize(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapWithExpiration() {
+        new WeakConcurrentMap.WithInlinedExpunction<Object, Object>(new WeakConcurrentMap.Builder().expireAfterWrite(1, TimeUnit.SECONDS));
+    }
+
+    private static class ManualTicker implements WeakConcurrentCache.Ticker {
+
+        private final AtomicLong time = new AtomicLong();
+
+        @Override
+        public long read() {
+            return time.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            time.addAndGet(unit.toNanos(duration));
+        }
+    }
+}
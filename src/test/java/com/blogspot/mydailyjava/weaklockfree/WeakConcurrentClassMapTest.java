@@ -0,0 +1,134 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentClassMapTest {
+
+    @Test
+    public void testClassValue() throws Exception {
+        final WeakConcurrentClassMap<Object> map = new WeakConcurrentClassMap<Object>(WeakConcurrentClassMap.Cleaner.MANUAL, true);
+        assertThat(map.types, not(nullValue()));
+        new ClassMapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        final WeakConcurrentClassMap<Object> map = new WeakConcurrentClassMap<Object>(WeakConcurrentClassMap.Cleaner.MANUAL, false);
+        assertThat(map.target, not(nullValue()));
+        new ClassMapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testInternalThread() throws Exception {
+        WeakConcurrentClassMap<Object> map = new WeakConcurrentClassMap<Object>(WeakConcurrentClassMap.Cleaner.THREAD);
+        assertThat(map.getCleanerThread(), not(nullValue(Thread.class)));
+        new ClassMapTestCase(map).doTest();
+        map.getCleanerThread().interrupt();
+        Thread.sleep(200L);
+        assertThat(map.getCleanerThread().isAlive(), is(false));
+    }
+
+    @Test
+    public void testDefaultValue() {
+        for (boolean classValue : new boolean[]{true, false}) {
+            WeakConcurrentClassMap<String> map = new WeakConcurrentClassMap<String>(WeakConcurrentClassMap.Cleaner.INLINE, classValue) {
+                @Override
+                protected String defaultValue(Class<?> type) {
+                    return type.getName();
+                }
+            };
+            assertThat(map.getIfPresent(Object.class), nullValue());
+            assertThat(map.get(Object.class), is(Object.class.getName()));
+            assertThat(map.getIfPresent(Object.class), is(Object.class.getName()));
+            assertThat(map.putIfAbsent(Object.class, "foo"), is(Object.class.getName()));
+            assertThat(map.approximateSize(), is(1));
+        }
+    }
+
+    @Test
+    public void testEntrySetValue() {
+        for (boolean classValue : new boolean[]{true, false}) {
+            WeakConcurrentClassMap<Object> map = new WeakConcurrentClassMap<Object>(WeakConcurrentClassMap.Cleaner.MANUAL, classValue);
+            map.put(Object.class, 1);
+            Iterator<Map.Entry<Class<?>, Object>> iterator = map.iterator();
+            assertThat(iterator.next().setValue(2), is((Object) 1));
+            assertThat(iterator.hasNext(), is(false));
+            assertThat(map.get(Object.class), is((Object) 2));
+        }
+    }
+
+    private static class ClassMapTestCase {
+
+        private final WeakConcurrentClassMap<Object> map;
+
+        ClassMapTestCase(WeakConcurrentClassMap<Object> map) {
+            this.map = map;
+        }
+
+        void doTest() throws Exception {
+            URL location = Sample.class.getProtectionDomain().getCodeSource().getLocation();
+            ClassLoader classLoader = new URLClassLoader(new URL[]{location}, null);
+            Class<?> type1 = Class.forName(Sample.class.getName(), false, classLoader);
+            assertThat(type1, not((Object) Sample.class));
+            Object value1 = new Object(), value2 = new Object(), value3 = new Object();
+            assertThat(map.put(type1, value1), nullValue());
+            assertThat(map.put(Sample.class, value2), nullValue());
+            assertThat(map.put(Object.class, value3), nullValue());
+            assertThat(map.get(type1), is(value1));
+            assertThat(map.get(Sample.class), is(value2));
+            assertThat(map.get(Object.class), is(value3));
+            assertThat(map.get(String.class), nullValue());
+            Map<Class<?>, Object> values = new HashMap<Class<?>, Object>();
+            values.put(type1, value1);
+            values.put(Sample.class, value2);
+            values.put(Object.class, value3);
+            for (Map.Entry<Class<?>, Object> entry : map) {
+                assertThat(values.remove(entry.getKey()), is(entry.getValue()));
+            }
+            assertThat(values.isEmpty(), is(true));
+            WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(classLoader);
+            classLoader = null;
+            type1 = null; // Make eligible for GC
+            value1 = null;
+            System.gc();
+            Thread.sleep(200L);
+            triggerClean();
+            assertThat(reference.get(), nullValue(ClassLoader.class));
+            assertThat(map.approximateSize(), is(2));
+            assertThat(map.remove(Sample.class), is(value2));
+            assertThat(map.get(Sample.class), nullValue());
+            assertThat(map.get(Object.class), is(value3));
+            assertThat(map.approximateSize(), is(1));
+            map.clear();
+            assertThat(map.get(Object.class), nullValue());
+            assertThat(map.approximateSize(), is(0));
+            assertThat(map.iterator().hasNext(), is(false));
+        }
+
+        protected void triggerClean() { }
+    }
+
+    public static class Sample {
+        /* empty */
+    }
+}
@@ -0,0 +1,157 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentIntMapTest {
+
+    @Test
+    public void testLocalExpunction() throws Exception {
+        final WeakConcurrentIntMap.WithInlinedExpunction<Object> map = new WeakConcurrentIntMap.WithInlinedExpunction<Object>();
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new MapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testInternalThread() throws Exception {
+        WeakConcurrentIntMap<Object> map = new WeakConcurrentIntMap<Object>(true);
+        assertThat(map.getCleanerThread(), not(nullValue(Thread.class)));
+        new MapTestCase(map).doTest();
+        map.close();
+        Thread.sleep(200);
+        assertThat(map.getCleanerThread().isAlive(), is(false));
+    }
+
+    @Test
+    public void testPrimitiveOperations() {
+        WeakConcurrentIntMap<Object> map = new WeakConcurrentIntMap<Object>(false);
+        Object key = new Object();
+        assertThat(map.get(key), is(0));
+        assertThat(map.compareAndSet(key, 0, 1), is(false));
+        assertThat(map.containsKey(key), is(false));
+        assertThat(map.addAndGet(key, 5), is(5));
+        assertThat(map.incrementAndGet(key), is(6));
+        assertThat(map.compareAndSet(key, 5, 1), is(false));
+        assertThat(map.compareAndSet(key, 6, Integer.MAX_VALUE), is(true));
+        assertThat(map.put(key, 3), is(Integer.MAX_VALUE));
+        assertThat(map.get(key), is(3));
+        assertThat(map.toString(), is("{" + key + "=3}"));
+        assertThat(map.remove(key), is(true));
+        assertThat(map.remove(key), is(false));
+        assertThat(map.get(key), is(0));
+    }
+
+    @Test
+    public void testOverflow() {
+        WeakConcurrentIntMap<Object> map = new WeakConcurrentIntMap<Object>(false);
+        Object key = new Object();
+        assertThat(map.addAndGet(key, Integer.MAX_VALUE), is(Integer.MAX_VALUE));
+        assertThat(map.incrementAndGet(key), is(Integer.MIN_VALUE));
+        assertThat(map.compareAndSet(key, Integer.MIN_VALUE, -1), is(true));
+        assertThat(map.addAndGet(key, Integer.MIN_VALUE), is(Integer.MAX_VALUE));
+        assertThat(map.get(key), is(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testUpdateAfterRemoval() {
+        WeakConcurrentIntMap<Object> map = new WeakConcurrentIntMap<Object>(false);
+        Object key = new Object();
+        map.put(key, 5);
+        AbstractWeakNumberMap.NumberEntry<Object> entry = map.entry(key);
+        assertThat(map.remove(key), is(true));
+        assertThat(entry.value(), is(0L));
+        assertThat(map.addAndGet(key, 1), is(1));
+        assertThat(map.entry(key), not(sameInstance(entry)));
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        final WeakConcurrentIntMap<Object> map = new WeakConcurrentIntMap<Object>(false);
+        final Object[] keys = new Object[100];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int index = 0; index < 4; index++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int iteration = 0; iteration < 1000; iteration++) {
+                        for (Object key : keys) {
+                            map.incrementAndGet(key);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Object key : keys) {
+            assertThat(map.get(key), is(4000));
+        }
+        assertThat(map.approximateSize(), is(keys.length));
+    }
+
+    private static class MapTestCase {
+
+        private final WeakConcurrentIntMap<Object> map;
+
+        public MapTestCase(WeakConcurrentIntMap<Object> map) {
+            this.map = map;
+        }
+
+        void doTest() throws Exception {
+            Object key1 = new Object(), key2 = new Object(), key3 = new Object(), key4 = new Object();
+            map.put(key1, 1);
+            map.put(key2, 2);
+            map.put(key3, 3);
+            map.put(key4, 4);
+            assertThat(map.get(key1), is(1));
+            assertThat(map.get(key2), is(2));
+            assertThat(map.get(key3), is(3));
+            assertThat(map.get(key4), is(4));
+            Map<Object, Integer> values = new HashMap<Object, Integer>();
+            values.put(key1, 1);
+            values.put(key2, 2);
+            values.put(key3, 3);
+            values.put(key4, 4);
+            for (Map.Entry<Object, Integer> entry : map) {
+                assertThat(values.remove(entry.getKey()), is(entry.getValue()));
+            }
+            assertThat(values.isEmpty(), is(true));
+            key1 = key2 = null; // Make eligible for GC
+            System.gc();
+            Thread.sleep(200);
+            triggerClean();
+            assertThat(map.get(key3), is(3));
+            assertThat(map.get(key4), is(4));
+            assertThat(map.approximateSize(), is(2));
+            assertThat(map.table.size(), is(2));
+            assertThat(map.remove(key3), is(true));
+            assertThat(map.get(key3), is(0));
+            assertThat(map.get(key4), is(4));
+            assertThat(map.approximateSize(), is(1));
+            map.clear();
+            assertThat(map.get(key4), is(0));
+            assertThat(map.approximateSize(), is(0));
+            assertThat(map.iterator().hasNext(), is(false));
+        }
+
+        protected void triggerClean() { }
+    }
+}
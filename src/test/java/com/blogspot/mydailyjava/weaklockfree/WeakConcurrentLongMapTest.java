@@ -0,0 +1,134 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentLongMapTest {
+
+    @Test
+    public void testLocalExpunction() throws Exception {
+        final WeakConcurrentLongMap.WithInlinedExpunction<Object> map = new WeakConcurrentLongMap.WithInlinedExpunction<Object>();
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new MapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testInternalThread() throws Exception {
+        WeakConcurrentLongMap<Object> map = new WeakConcurrentLongMap<Object>(true);
+        assertThat(map.getCleanerThread(), not(nullValue(Thread.class)));
+        new MapTestCase(map).doTest();
+        map.close();
+        Thread.sleep(200L);
+        assertThat(map.getCleanerThread().isAlive(), is(false));
+    }
+
+    @Test
+    public void testPrimitiveOperations() {
+        WeakConcurrentLongMap<Object> map = new WeakConcurrentLongMap<Object>(false);
+        Object key = new Object();
+        assertThat(map.get(key), is(0L));
+        assertThat(map.compareAndSet(key, 0L, 1L), is(false));
+        assertThat(map.containsKey(key), is(false));
+        assertThat(map.addAndGet(key, 5L), is(5L));
+        assertThat(map.incrementAndGet(key), is(6L));
+        assertThat(map.compareAndSet(key, 5L, 1L), is(false));
+        assertThat(map.compareAndSet(key, 6L, Long.MAX_VALUE), is(true));
+        assertThat(map.put(key, 3L), is(Long.MAX_VALUE));
+        assertThat(map.get(key), is(3L));
+        assertThat(map.toString(), is("{" + key + "=3}"));
+        assertThat(map.remove(key), is(true));
+        assertThat(map.remove(key), is(false));
+        assertThat(map.get(key), is(0L));
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        final WeakConcurrentLongMap<Object> map = new WeakConcurrentLongMap<Object>(false);
+        final Object[] keys = new Object[100];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int index = 0; index < 4; index++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int iteration = 0; iteration < 1000; iteration++) {
+                        for (Object key : keys) {
+                            map.incrementAndGet(key);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Object key : keys) {
+            assertThat(map.get(key), is(4000L));
+        }
+        assertThat(map.approximateSize(), is(keys.length));
+    }
+
+    private static class MapTestCase {
+
+        private final WeakConcurrentLongMap<Object> map;
+
+        public MapTestCase(WeakConcurrentLongMap<Object> map) {
+            this.map = map;
+        }
+
+        void doTest() throws Exception {
+            Object key1 = new Object(), key2 = new Object(), key3 = new Object(), key4 = new Object();
+            map.put(key1, 1L);
+            map.put(key2, 2L);
+            map.put(key3, 3L);
+            map.put(key4, 4L);
+            assertThat(map.get(key1), is(1L));
+            assertThat(map.get(key2), is(2L));
+            assertThat(map.get(key3), is(3L));
+            assertThat(map.get(key4), is(4L));
+            Map<Object, Long> values = new HashMap<Object, Long>();
+            values.put(key1, 1L);
+            values.put(key2, 2L);
+            values.put(key3, 3L);
+            values.put(key4, 4L);
+            for (Map.Entry<Object, Long> entry : map) {
+                assertThat(values.remove(entry.getKey()), is(entry.getValue()));
+            }
+            assertThat(values.isEmpty(), is(true));
+            key1 = key2 = null; // Make eligible for GC
+            System.gc();
+            Thread.sleep(200L);
+            triggerClean();
+            assertThat(map.get(key3), is(3L));
+            assertThat(map.get(key4), is(4L));
+            assertThat(map.approximateSize(), is(2));
+            assertThat(map.table.size(), is(2));
+            assertThat(map.remove(key3), is(true));
+            assertThat(map.get(key3), is(0L));
+            assertThat(map.get(key4), is(4L));
+            assertThat(map.approximateSize(), is(1));
+            map.clear();
+            assertThat(map.get(key4), is(0L));
+            assertThat(map.approximateSize(), is(0));
+            assertThat(map.iterator().hasNext(), is(false));
+        }
+
+        protected void triggerClean() { }
+    }
+}
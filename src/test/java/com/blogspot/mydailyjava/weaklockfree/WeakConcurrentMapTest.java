@@ -4,9 +4,21 @@ import java.lang.ref.WeakReference;
 import org.junit.Test;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 
 public class WeakConcurrentMapTest {
 
@@ -44,6 +56,1046 @@ public class WeakConcurrentMapTest {
         assertThat(map.getCleanerThread().isAlive(), is(false));
     }
 
+    @Test
+    public void testSharedCleaner() throws Exception {
+        WeakCleaner cleaner = new WeakCleaner(1, 1024, 10, TimeUnit.MILLISECONDS);
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(cleaner);
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new MapTestCase(map).doTest();
+        map.close();
+        cleaner.close();
+    }
+
+    @Test
+    public void testAmortizedExpunction() throws Exception {
+        final WeakConcurrentMap.WithAmortizedExpunction<Object, Object> map = new WeakConcurrentMap.WithAmortizedExpunction<Object, Object>(1, 1);
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new MapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testAmortizedExpunctionBudget() throws Exception {
+        WeakConcurrentMap.WithAmortizedExpunction<Object, Object> map = new WeakConcurrentMap.WithAmortizedExpunction<Object, Object>(2, 3, AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+        Object key = new Object(), value = new Object();
+        for (int index = 0; index < 10; index++) {
+            map.putIfAbsent(new Object(), value);
+        }
+        map.putIfAbsent(key, value);
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.table.size(), is(11));
+        map.get(key);
+        assertThat(map.table.size(), is(11));
+        map.get(key);
+        assertThat(map.table.size(), is(8));
+        for (int index = 0; index < 4; index++) {
+            map.get(key);
+        }
+        assertThat(map.table.size(), is(2));
+        map.get(key);
+        map.get(key);
+        assertThat(map.table.size(), is(1));
+    }
+
+    @Test
+    public void testLocalExpunctionTable() throws Exception {
+        final WeakConcurrentMap.WithInlinedExpunction<Object, Object> map = new WeakConcurrentMap.WithInlinedExpunction<Object, Object>(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new TableMapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+    }
+
+    @Test
+    public void testInternalThreadTable() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(true, AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+        assertThat(map.getCleanerThread(), not(nullValue(Thread.class)));
+        new TableMapTestCase(map).doTest();
+        map.getCleanerThread().interrupt();
+        Thread.sleep(200L);
+        assertThat(map.getCleanerThread().isAlive(), is(false));
+    }
+
+    @Test
+    public void testTableConcurrentResize() throws Exception {
+        final WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false, AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE);
+        int threads = 4, size = 10000;
+        final Object[][] keys = new Object[threads][size];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<Future<?>>();
+            for (int index = 0; index < threads; index++) {
+                final Object[] local = keys[index];
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int index = 0; index < local.length; index++) {
+                            local[index] = new Object();
+                            assertThat(map.put(local[index], index), nullValue());
+                            assertThat(map.get(local[index]), is((Object) index));
+                            if (index % 3 == 0) {
+                                assertThat(map.remove(local[index]), is((Object) index));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException exception) {
+                    throw new AssertionError(exception.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        int expected = 0;
+        for (Object[] local : keys) {
+            for (int index = 0; index < local.length; index++) {
+                assertThat(map.get(local[index]), index % 3 == 0 ? nullValue() : is((Object) index));
+                expected += index % 3 == 0 ? 0 : 1;
+            }
+        }
+        assertThat(map.approximateSize(), is(expected));
+        int iterated = 0;
+        for (Map.Entry<Object, Object> ignored : map) {
+            iterated++;
+        }
+        assertThat(iterated, is(expected));
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        final WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder().build();
+        assertThat(map.target, not(nullValue()));
+        assertThat(map.getCleanerThread(), nullValue(Thread.class));
+        new MapTestCase(map) {
+            @Override
+            protected void triggerClean() {
+                map.expungeStaleEntries();
+            }
+        }.doTest();
+        assertThat(new WeakConcurrentMap.Builder().inlinedExpunction().build(), instanceOf(WeakConcurrentMap.WithInlinedExpunction.class));
+        WeakConcurrentMap<Object, Object> threaded = new WeakConcurrentMap.Builder().backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE).cleanerThread().build();
+        assertThat(threaded.table, not(nullValue()));
+        assertThat(threaded.getCleanerThread(), not(nullValue(Thread.class)));
+        threaded.close();
+    }
+
+    @Test
+    public void testWeakValues() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .valueStrength(AbstractWeakConcurrentMap.Strength.WEAK)
+                .build();
+        assertThat(map.table, not(nullValue()));
+        Object key1 = new Object(), key2 = new Object(), value1 = new Object(), value2 = new Object();
+        map.put(key1, value1);
+        map.put(key2, value2);
+        assertThat(map.get(key1), is(value1));
+        assertThat(map.get(key2), is(value2));
+        value1 = null; // Make eligible for GC
+        System.gc();
+        Thread.sleep(200L);
+        map.expungeStaleEntries();
+        assertThat(map.get(key1), nullValue());
+        assertThat(map.containsKey(key1), is(false));
+        assertThat(map.get(key2), is(value2));
+        assertThat(map.approximateSize(), is(1));
+        Object value3 = new Object();
+        assertThat(map.put(key2, value3), is(value2));
+        assertThat(map.remove(key2), is(value3));
+        assertThat(map.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testSoftKeysAndValues() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .keyStrength(AbstractWeakConcurrentMap.Strength.SOFT)
+                .valueStrength(AbstractWeakConcurrentMap.Strength.SOFT)
+                .build();
+        Object key = new Object(), value = new Object();
+        map.put(key, value);
+        WeakReference<Object> keyReference = new WeakReference<Object>(key), valueReference = new WeakReference<Object>(value);
+        key = value = null; // Only softly referenced by the map
+        System.gc();
+        Thread.sleep(200L);
+        map.expungeStaleEntries();
+        assertThat(keyReference.get(), not(nullValue()));
+        assertThat(valueReference.get(), not(nullValue()));
+        assertThat(map.get(keyReference.get()), is(valueReference.get()));
+        assertThat(map.approximateSize(), is(1));
+    }
+
+    @Test
+    public void testSoftKeysWithStrongValues() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .keyStrength(AbstractWeakConcurrentMap.Strength.SOFT)
+                .build();
+        Object key = new Object(), value = new Object();
+        map.put(key, value);
+        WeakReference<Object> reference = new WeakReference<Object>(key);
+        key = null; // Only softly referenced by the map
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(reference.get(), not(nullValue()));
+        assertThat(map.get(reference.get()), is(value));
+        assertThat(map.remove(reference.get()), is(value));
+        assertThat(map.approximateSize(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStrongKeys() {
+        new WeakConcurrentMap.Builder().keyStrength(AbstractWeakConcurrentMap.Strength.STRONG).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReferenceStrengthWithConcurrentHashMap() {
+        new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.CONCURRENT_HASH_MAP)
+                .valueStrength(AbstractWeakConcurrentMap.Strength.WEAK)
+                .build();
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .recordStatistics()) {
+                @Override
+                protected Object defaultValue(Object key) {
+                    return key;
+                }
+            };
+            Object key = new Object(), other = new Object(), value = new Object();
+            assertThat(map.put(key, value), nullValue());
+            assertThat(map.get(key), is(value));
+            assertThat(map.getIfPresent(other), nullValue());
+            assertThat(map.get(other), is(other));
+            assertThat(map.putIfAbsent(key, value), is(value));
+            assertThat(map.remove(key), is(value));
+            assertThat(map.remove(key), nullValue());
+            map.put(new Object(), value);
+            long deadline = System.currentTimeMillis() + 5000L;
+            do {
+                System.gc();
+                Thread.sleep(200L);
+            } while (map.approximateStaleBacklog() == 0 && System.currentTimeMillis() < deadline);
+            assertThat(map.getStatistics(), is(new Statistics(1, 2, 1, 0, 2, 1, 0, 0, 1)));
+            map.expungeStaleEntries();
+            assertThat(map.getStatistics(), is(new Statistics(1, 2, 1, 0, 2, 1, 1, 0, 0)));
+        }
+    }
+
+    @Test
+    public void testStatisticsDrain() throws Exception {
+        StripedStatisticsCounter counter = new StripedStatisticsCounter();
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder().recordStatistics(counter).build();
+        map.put(new Object(), new Object());
+        map.put(new Object(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.expungeStaleEntries(1), is(1));
+        assertThat(map.expungeStaleEntries(1), is(1));
+        assertThat(map.expungeStaleEntries(1), is(0));
+        assertThat(counter.snapshot().getDrainCount(), is(2L));
+        assertThat(counter.snapshot().getExpungedCount(), is(2L));
+    }
+
+    @Test
+    public void testStripedReferenceQueues() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .referenceQueues(3)
+                    .recordStatistics()
+                    .build();
+            assertThat(map.getReferenceQueueCount(), is(4));
+            assertThat(map.getCleanerThreads().length, is(0));
+            Object key = new Object(), value = new Object();
+            map.put(key, value);
+            for (int index = 0; index < 100; index++) {
+                map.put(new Object(), value);
+            }
+            System.gc();
+            Thread.sleep(200L);
+            assertThat(map.approximateStaleBacklog(), is(100));
+            assertThat(map.expungeStaleEntries(10), is(10));
+            map.expungeStaleEntries();
+            assertThat(map.approximateStaleBacklog(), is(0));
+            assertThat(map.approximateSize(), is(1));
+            assertThat(map.get(key), is(value));
+            assertThat(map.getStatistics().getExpungedCount(), is(100L));
+        }
+    }
+
+    @Test
+    public void testStripedReferenceQueuesCleanerThreads() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .referenceQueues(4)
+                    .cleanerThread()
+                    .build();
+            assertThat(map.getCleanerThreads().length, is(4));
+            assertThat(map.getCleanerThread(), is(map.getCleanerThreads()[0]));
+            for (int index = 0; index < 1000; index++) {
+                map.put(new Object(), new Object());
+            }
+            System.gc();
+            Thread.sleep(200L);
+            assertThat(map.approximateSize(), is(0));
+            map.close();
+            Thread.sleep(200L);
+            for (Thread thread : map.getCleanerThreads()) {
+                assertThat(thread.isAlive(), is(false));
+            }
+        }
+    }
+
+    @Test
+    public void testStripedReferenceQueuesExternalThread() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .referenceQueues(4)
+                .build();
+        Thread thread = new Thread(map); // a single thread drains all queues while its own queue is idle
+        thread.start();
+        for (int index = 0; index < 1000; index++) {
+            map.put(new Object(), new Object());
+        }
+        System.gc();
+        Thread.sleep(500L);
+        assertThat(map.approximateSize(), is(0));
+        thread.interrupt();
+        Thread.sleep(200L);
+        assertThat(thread.isAlive(), is(false));
+    }
+
+    @Test
+    public void testApproximateSizeDoesNotExpunge() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .inlinedExpunction()
+                    .build();
+            Object key = new Object(), value = new Object();
+            map.put(key, value);
+            map.put(new Object(), value);
+            System.gc();
+            Thread.sleep(200L);
+            assertThat(map.approximateSize(), is(2));
+            assertThat(map.approximateStaleBacklog(), is(1));
+            assertThat(map.table != null ? map.table.size() : map.target.size(), is(2));
+            map.expungeStaleEntries();
+            assertThat(map.approximateSize(), is(1));
+            assertThat(map.approximateStaleBacklog(), is(0));
+            assertThat(map.table != null ? map.table.size() : map.target.size(), is(1));
+        }
+    }
+
+    @Test
+    public void testStaleBacklogCleanerThread() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(true);
+        Object key = new Object();
+        map.put(key, key);
+        for (int index = 0; index < 10; index++) {
+            map.put(new Object(), key);
+        }
+        System.gc();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (map.approximateStaleBacklog() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(map.approximateStaleBacklog(), is(0));
+        assertThat(map.approximateSize(), is(1));
+        assertThat(map.target.size(), is(1));
+        map.close();
+    }
+
+    @Test
+    public void testIdleCleanerThreadBlocks() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(true);
+        map.put(new Object(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.approximateStaleBacklog(), is(0));
+        assertThat(map.getCleanerThread().getState(), is(Thread.State.WAITING));
+        map.close();
+    }
+
+    @Test
+    public void testStaleBacklogEstimate() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .build();
+        Object[] keys = new Object[10000];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+            map.put(keys[index], keys[index]);
+            map.put(new Object(), keys[index]);
+        }
+        System.gc();
+        Thread.sleep(200L);
+        for (int index = 0; index < 10; index++) {
+            int backlog = map.approximateStaleBacklog();
+            assertThat(backlog > 7500 && backlog < 12500, is(true));
+        }
+        assertThat(map.approximateSize(), is(20000));
+        assertThat(map.expungeStaleEntries(Integer.MAX_VALUE), is(10000));
+        assertThat(map.approximateStaleBacklog(), is(0));
+        assertThat(map.approximateSize(), is(keys.length));
+    }
+
+    @Test
+    public void testStaleBacklogClear() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+        map.put(new Object(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.approximateStaleBacklog(), is(1));
+        map.clear();
+        assertThat(map.approximateStaleBacklog(), is(0));
+        assertThat(map.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testApproximateSizeConcurrentUpdates() throws Exception {
+        final WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .build();
+        final Object[][] keys = new Object[4][10000];
+        Thread[] threads = new Thread[keys.length];
+        for (int index = 0; index < threads.length; index++) {
+            final Object[] chunk = keys[index];
+            threads[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int index = 0; index < chunk.length; index++) {
+                        chunk[index] = new Object();
+                        map.put(chunk[index], chunk);
+                    }
+                    for (int index = 0; index < chunk.length; index += 2) {
+                        map.remove(chunk[index]);
+                    }
+                }
+            });
+            threads[index].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(map.approximateSize(), is(keys.length * keys[0].length / 2));
+        for (Object[] chunk : keys) {
+            for (int index = 1; index < chunk.length; index += 2) {
+                assertThat(map.getIfPresent(chunk[index]), is((Object) chunk));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoReferenceQueue() {
+        new WeakConcurrentMap.Builder().referenceQueues(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStatisticsNotRecorded() {
+        new WeakConcurrentMap<Object, Object>(false).getStatistics();
+    }
+
+    @Test
+    public void testRemovalListener() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            final List<Object> removed = new ArrayList<Object>();
+            final List<RemovalListener.Cause> causes = new ArrayList<RemovalListener.Cause>();
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .removalListener(new RemovalListener<Object>() {
+                        @Override
+                        public void onRemoval(Object value, Cause cause) {
+                            removed.add(value);
+                            causes.add(cause);
+                        }
+                    }).build();
+            Object key1 = new Object(), key2 = new Object(), value1 = new Object(), value2 = new Object(), value3 = new Object();
+            map.put(key1, value1);
+            map.put(key2, value2);
+            map.put(new Object(), value3);
+            assertThat(map.remove(key1), is(value1));
+            assertThat(map.remove(key1), nullValue());
+            assertThat(removed, is(Arrays.asList(value1)));
+            System.gc();
+            Thread.sleep(200L);
+            assertThat(map.get(key2), is(value2));
+            assertThat(removed.size(), is(1));
+            map.expungeStaleEntries();
+            assertThat(removed, is(Arrays.asList(value1, value3)));
+            map.clear();
+            assertThat(removed, is(Arrays.asList(value1, value3, value2)));
+            assertThat(causes, is(Arrays.asList(RemovalListener.Cause.EXPLICIT, RemovalListener.Cause.COLLECTED, RemovalListener.Cause.CLEARED)));
+            assertThat(map.approximateSize(), is(0));
+        }
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false, backing) {
+                @Override
+                protected Object defaultValue(Object key) {
+                    return key instanceof String ? "default" : null;
+                }
+            };
+            final Object key1 = new Object(), key2 = new Object(), key3 = new Object(), value1 = new Object(), value2 = new Object();
+            Map<Object, Object> entries = new HashMap<Object, Object>();
+            entries.put(key1, value1);
+            entries.put(key2, value2);
+            assertThat(map.putAll(entries), is(2));
+            assertThat(map.putAll(entries), is(0));
+            Object[] values = new Object[4];
+            assertThat(map.getAll(new Object[]{key1, key3, key2, "foo"}, values), is(2));
+            assertThat(values, is(new Object[]{value1, null, value2, "default"}));
+            assertThat(map.getIfPresent("foo"), is((Object) "default"));
+            assertThat(map.putAll(Arrays.asList(key2, key3), value1), is(1));
+            assertThat(map.get(key3), is(value1));
+            assertThat(map.removeAll(Arrays.asList(key3, key3, "bar")), is(1));
+            assertThat(map.removeIf(new AbstractWeakConcurrentMap.EntryPredicate<Object, Object>() {
+                @Override
+                public boolean test(Object key, Object value) {
+                    return value == value1;
+                }
+            }), is(2));
+            assertThat(map.getIfPresent(key1), nullValue());
+            assertThat(map.getIfPresent(key2), nullValue());
+            assertThat(map.getIfPresent("foo"), is((Object) "default"));
+            assertThat(map.approximateSize(), is(1));
+        }
+    }
+
+    @Test
+    public void testBatchOperationsStatistics() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder().recordStatistics().build();
+        Object key1 = new Object(), key2 = new Object(), value = new Object();
+        assertThat(map.putAll(Arrays.asList(key1, key2), value), is(2));
+        assertThat(map.getAll(Arrays.asList(key1, key2, new Object()), new Object[3]), is(2));
+        assertThat(map.removeAll(Arrays.asList(key1, key2)), is(2));
+        Statistics statistics = map.getStatistics();
+        assertThat(statistics.getPutCount(), is(2L));
+        assertThat(statistics.getHitCount(), is(2L));
+        assertThat(statistics.getMissCount(), is(1L));
+        assertThat(statistics.getRemovalCount(), is(2L));
+    }
+
+    @Test
+    public void testBatchOperationsInlinedExpunction() throws Exception {
+        WeakConcurrentMap.WithInlinedExpunction<Object, Object> map = new WeakConcurrentMap.WithInlinedExpunction<Object, Object>();
+        Object key = new Object();
+        map.putAll(Arrays.asList(key, new Object()), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.getAll(Collections.singleton(key), new Object[1]), is(1));
+        assertThat(map.target.size(), is(1));
+    }
+
+    @Test
+    public void testParallelTraversal() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Integer> map = new WeakConcurrentMap<Object, Integer>(false, backing);
+            List<Object> keys = new ArrayList<Object>();
+            for (int index = 0; index < 10000; index++) {
+                Object key = new Object();
+                keys.add(key);
+                map.put(key, index);
+            }
+            map.put(new Object(), -1);
+            System.gc();
+            Thread.sleep(200L);
+            for (long threshold : new long[]{1L, 100L, Long.MAX_VALUE}) {
+                final Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+                map.forEach(threshold, new AbstractWeakConcurrentMap.EntryConsumer<Object, Integer>() {
+                    @Override
+                    public void accept(Object key, Integer value) {
+                        visited.add(key);
+                    }
+                });
+                assertThat(visited, is((Set<Object>) new HashSet<Object>(keys)));
+                assertThat(map.reduce(threshold, new AbstractWeakConcurrentMap.EntryFunction<Object, Integer, Long>() {
+                    @Override
+                    public Long apply(Object key, Integer value) {
+                        return value % 2 == 0 ? (long) value : null;
+                    }
+                }, new AbstractWeakConcurrentMap.Reducer<Long>() {
+                    @Override
+                    public Long reduce(Long left, Long right) {
+                        return left + right;
+                    }
+                }), is(24995000L));
+            }
+            map.clear();
+            assertThat(map.reduce(1L, new AbstractWeakConcurrentMap.EntryFunction<Object, Integer, Integer>() {
+                @Override
+                public Integer apply(Object key, Integer value) {
+                    return value;
+                }
+            }, new AbstractWeakConcurrentMap.Reducer<Integer>() {
+                @Override
+                public Integer reduce(Integer left, Integer right) {
+                    return left + right;
+                }
+            }), nullValue());
+        }
+    }
+
+    @Test
+    public void testSpliterator() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false, backing);
+            Set<Object> keys = new HashSet<Object>();
+            for (int index = 0; index < 1000; index++) {
+                Object key = new Object();
+                keys.add(key);
+                map.put(key, key);
+            }
+            map.put(new Object(), new Object());
+            System.gc();
+            Thread.sleep(200L);
+            Spliterator<Map.Entry<Object, Object>> spliterator = WeakSpliterators.spliterator(map), split = spliterator.trySplit();
+            assertThat(split, notNullValue());
+            assertThat(spliterator.hasCharacteristics(Spliterator.CONCURRENT), is(true));
+            final Set<Object> visited = new HashSet<Object>();
+            Consumer<Map.Entry<Object, Object>> consumer = new Consumer<Map.Entry<Object, Object>>() {
+                @Override
+                public void accept(Map.Entry<Object, Object> entry) {
+                    assertThat(entry.getValue(), is(entry.getKey()));
+                    assertThat(visited.add(entry.getKey()), is(true));
+                }
+            };
+            split.forEachRemaining(consumer);
+            assertThat(visited.isEmpty(), is(false));
+            spliterator.forEachRemaining(consumer);
+            assertThat(visited, is(keys));
+        }
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        WeakConcurrentMap<Object, Integer> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .build();
+        List<Object> keys = new ArrayList<Object>();
+        for (int index = 0; index < 100; index++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, index);
+        }
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        AbstractWeakConcurrentMap.EntryConsumer<Object, Integer> consumer = new AbstractWeakConcurrentMap.EntryConsumer<Object, Integer>() {
+            @Override
+            public void accept(Object key, Integer value) {
+                visited.add(key);
+            }
+        };
+        long position = 0L;
+        int chunks = 0;
+        do {
+            position = map.scan(position, 10, consumer);
+            for (int index = 0; index < 50; index++) {
+                Object key = new Object(); // grows the table in between chunks
+                keys.add(key);
+                map.put(key, index);
+            }
+            chunks++;
+        } while (position != 0L);
+        assertThat(chunks > 1, is(true));
+        for (Object key : keys.subList(0, 100)) {
+            assertThat(visited.contains(key), is(true));
+        }
+    }
+
+    @Test
+    public void testScanDoesNotReferenceKeys() throws Exception {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .build();
+        final List<WeakReference<Object>> references = new ArrayList<WeakReference<Object>>();
+        for (int index = 0; index < 100; index++) {
+            map.put(new Object(), new Object());
+        }
+        long position = map.scan(0L, 10, new AbstractWeakConcurrentMap.EntryConsumer<Object, Object>() {
+            @Override
+            public void accept(Object key, Object value) {
+                references.add(new WeakReference<Object>(key));
+            }
+        });
+        assertThat(position, not(0L));
+        System.gc();
+        Thread.sleep(200L);
+        for (WeakReference<Object> reference : references) {
+            assertThat(reference.get(), nullValue());
+        }
+        final AtomicInteger count = new AtomicInteger();
+        do {
+            position = map.scan(position, 10, new AbstractWeakConcurrentMap.EntryConsumer<Object, Object>() {
+                @Override
+                public void accept(Object key, Object value) {
+                    count.incrementAndGet();
+                }
+            });
+        } while (position != 0L);
+        assertThat(count.get(), is(0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testScanConcurrentHashMap() {
+        new WeakConcurrentMap<Object, Object>(false).scan(0L, 10, new AbstractWeakConcurrentMap.EntryConsumer<Object, Object>() {
+            @Override
+            public void accept(Object key, Object value) {
+                fail();
+            }
+        });
+    }
+
+    @Test
+    public void testRemovalListenerCleanerThread() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                .backing(AbstractWeakConcurrentMap.Backing.WEAK_HASH_TABLE)
+                .cleanerThread()
+                .removalListener(new RemovalListener<Object>() {
+                    @Override
+                    public void onRemoval(Object value, Cause cause) {
+                        threads.add(Thread.currentThread());
+                        latch.countDown();
+                        throw new RuntimeException();
+                    }
+                }).build();
+        map.put(new Object(), new Object());
+        map.put(new Object(), new Object());
+        System.gc();
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(threads, is(Collections.singleton(map.getCleanerThread())));
+        assertThat(map.getCleanerThread().isAlive(), is(true));
+        map.close();
+    }
+
+    @Test
+    public void testComputeIfAbsentOnce() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            final WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false, backing);
+            final Object key = new Object();
+            final AtomicInteger computations = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AbstractWeakConcurrentMap.Loader<Object, Object> loader = new AbstractWeakConcurrentMap.Loader<Object, Object>() {
+                @Override
+                public Object load(Object key) {
+                    computations.incrementAndGet();
+                    try {
+                        Thread.sleep(100L);
+                    } catch (InterruptedException exception) {
+                        throw new AssertionError(exception);
+                    }
+                    return new Object();
+                }
+            };
+            final Set<Object> values = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int index = 0; index < 8; index++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException exception) {
+                            throw new AssertionError(exception);
+                        }
+                        values.add(map.computeIfAbsent(key, loader));
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertThat(computations.get(), is(1));
+            assertThat(values.size(), is(1));
+            assertThat(map.get(key), is(values.iterator().next()));
+        }
+    }
+
+    @Test
+    public void testComputeIfAbsentWithArgument() {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+        Object key = new Object(), value = new Object(), other = new Object();
+        AbstractWeakConcurrentMap.ArgumentLoader<Object, Object, Object> loader = new AbstractWeakConcurrentMap.ArgumentLoader<Object, Object, Object>() {
+            @Override
+            public Object load(Object key, Object argument) {
+                return argument;
+            }
+        };
+        assertThat(map.computeIfAbsent(key, value, loader), is(value));
+        assertThat(map.computeIfAbsent(key, other, loader), is(value));
+        assertThat(map.computeIfAbsent(other, null, loader), nullValue());
+        assertThat(map.containsKey(other), is(false));
+    }
+
+    @Test
+    public void testComputeIfAbsentFailure() {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+        Object key = new Object(), value = new Object();
+        try {
+            map.computeIfAbsent(key, new AbstractWeakConcurrentMap.Loader<Object, Object>() {
+                @Override
+                public Object load(Object key) {
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+            // expected
+        }
+        assertThat(map.computeIfAbsent(key, value, new AbstractWeakConcurrentMap.ArgumentLoader<Object, Object, Object>() {
+            @Override
+            public Object load(Object key, Object argument) {
+                return argument;
+            }
+        }), is(value));
+    }
+
+    @Test
+    public void testComputeIfAbsentInlinedExpunction() throws Exception {
+        WeakConcurrentMap.WithInlinedExpunction<Object, Object> map = new WeakConcurrentMap.WithInlinedExpunction<Object, Object>();
+        Object key = new Object(), value = new Object();
+        map.put(new Object(), value);
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.computeIfAbsent(key, new AbstractWeakConcurrentMap.Loader<Object, Object>() {
+            @Override
+            public Object load(Object key) {
+                return key;
+            }
+        }), is(key));
+        assertThat(map.target.size(), is(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testComputeIfAbsentRecursive() {
+        final WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+        map.computeIfAbsent(new Object(), new AbstractWeakConcurrentMap.Loader<Object, Object>() {
+            @Override
+            public Object load(Object key) {
+                return map.computeIfAbsent(key, this);
+            }
+        });
+    }
+
+    @Test
+    public void testGetAsync() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            final AtomicInteger loads = new AtomicInteger();
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(new WeakConcurrentMap.Builder().backing(backing)) {
+                @Override
+                protected Object defaultValue(Object key) {
+                    loads.incrementAndGet();
+                    return key;
+                }
+            };
+            QueuingExecutor executor = new QueuingExecutor();
+            Object key = new Object();
+            Future<Object> future = map.getAsync(key, executor), other = map.getAsync(key, executor);
+            assertThat(other, sameInstance(future));
+            assertThat(future.isDone(), is(false));
+            assertThat(executor.tasks.size(), is(1));
+            executor.runAll();
+            assertThat(future.get(), is(key));
+            assertThat(loads.get(), is(1));
+            assertThat(map.getIfPresent(key), is(key));
+            Future<Object> completed = map.getAsync(key, executor);
+            assertThat(completed.isDone(), is(true));
+            assertThat(completed.get(), is(key));
+            assertThat(executor.tasks.size(), is(0));
+        }
+    }
+
+    @Test
+    public void testGetAsyncRetriesFailedLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false) {
+            @Override
+            protected Object defaultValue(Object key) {
+                if (loads.incrementAndGet() == 1) {
+                    throw new IllegalStateException();
+                }
+                return key;
+            }
+        };
+        QueuingExecutor executor = new QueuingExecutor();
+        Object key = new Object();
+        Future<Object> failed = map.getAsync(key, executor);
+        executor.runAll();
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException exception) {
+            assertThat(exception.getCause(), instanceOf(IllegalStateException.class));
+        }
+        assertThat(map.getIfPresent(key), nullValue());
+        Future<Object> future = map.getAsync(key, executor);
+        assertThat(future, not(sameInstance(failed)));
+        executor.runAll();
+        assertThat(future.get(), is(key));
+        assertThat(loads.get(), is(2));
+    }
+
+    @Test
+    public void testGetAsyncDropsCollectedKey() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false) {
+            @Override
+            protected Object defaultValue(Object key) {
+                loads.incrementAndGet();
+                return key;
+            }
+        };
+        QueuingExecutor executor = new QueuingExecutor();
+        Future<Object> future = map.getAsync(new Object(), executor);
+        System.gc();
+        Thread.sleep(200L);
+        executor.runAll();
+        assertThat(future.get(), nullValue());
+        assertThat(loads.get(), is(0));
+        assertThat(map.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testHasher() throws Exception {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            final AtomicInteger hashes = new AtomicInteger();
+            WeakConcurrentMap<IdentifiedKey, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .referenceQueues(4)
+                    .hasher(new IdentityHasher<IdentifiedKey>() {
+                        @Override
+                        public int hash(IdentifiedKey key) {
+                            hashes.incrementAndGet();
+                            return key.id;
+                        }
+                    })
+                    .build();
+            List<IdentifiedKey> keys = new ArrayList<IdentifiedKey>();
+            for (int index = 0; index < 100; index++) {
+                IdentifiedKey key = new IdentifiedKey(index);
+                keys.add(key);
+                assertThat(map.put(key, index), nullValue());
+            }
+            for (int index = 0; index < 100; index++) {
+                assertThat(map.get(keys.get(index)), is((Object) index));
+                assertThat(map.containsKey(new IdentifiedKey(index)), is(false));
+            }
+            assertThat(hashes.get() >= 300, is(true));
+            assertThat(map.remove(keys.get(0)), is((Object) 0));
+            assertThat(map.computeIfAbsent(keys.get(0), new AbstractWeakConcurrentMap.Loader<IdentifiedKey, Object>() {
+                @Override
+                public Object load(IdentifiedKey key) {
+                    return key.id;
+                }
+            }), is((Object) 0));
+            keys.subList(50, 100).clear();
+            System.gc();
+            Thread.sleep(200L);
+            map.expungeStaleEntries();
+            assertThat(map.approximateSize(), is(50));
+        }
+    }
+
+    @Test
+    public void testHasherCollisions() {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder()
+                    .backing(backing)
+                    .hasher(new IdentityHasher<Object>() {
+                        @Override
+                        public int hash(Object key) {
+                            return 0;
+                        }
+                    })
+                    .build();
+            Object key = new Object(), other = new Object();
+            map.put(key, "foo");
+            map.put(other, "bar");
+            assertThat(map.get(key), is((Object) "foo"));
+            assertThat(map.get(other), is((Object) "bar"));
+            assertThat(map.remove(key), is((Object) "foo"));
+            assertThat(map.get(key), nullValue());
+            assertThat(map.get(other), is((Object) "bar"));
+        }
+    }
+
+    private static class IdentifiedKey {
+
+        final int id;
+
+        IdentifiedKey(int id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void testReplace() {
+        for (AbstractWeakConcurrentMap.Backing backing : AbstractWeakConcurrentMap.Backing.values()) {
+            WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap.Builder().backing(backing).recordStatistics().build();
+            Object key = new Object();
+            assertThat(map.replace(key, "foo"), nullValue());
+            assertThat(map.containsKey(key), is(false));
+            assertThat(map.put(key, "foo"), nullValue());
+            assertThat(map.replace(key, "bar"), is((Object) "foo"));
+            assertThat(map.get(key), is((Object) "bar"));
+            assertThat(map.approximateSize(), is(1));
+            assertThat(map.getStatistics().getPutCount(), is(2L));
+        }
+    }
+
+    @Test
+    public void testPutRetainsWeakKey() {
+        WeakConcurrentMap<Object, Object> map = new WeakConcurrentMap<Object, Object>(false);
+        Object key = new Object();
+        map.put(key, "foo");
+        AbstractWeakConcurrentMap.WeakKey<Object> weakKey = map.target.keySet().iterator().next();
+        assertThat(map.put(key, "bar"), is((Object) "foo"));
+        assertThat(map.replace(key, "qux"), is((Object) "bar"));
+        assertThat(map.target.keySet().iterator().next(), sameInstance(weakKey));
+        assertThat(map.target.size(), is(1));
+    }
+
+    private static class QueuingExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
     static class KeyEqualToWeakRefOfItself {
 
         @Override
@@ -113,28 +1165,50 @@ public class WeakConcurrentMapTest {
             }
             assertThat(values.isEmpty(), is(true));
             key1 = key2 = null; // Make eligible for GC
-            System.gc();
-            Thread.sleep(200L);
-            triggerClean();
+            long deadline = System.currentTimeMillis() + 5000L;
+            do {
+                System.gc();
+                Thread.sleep(200L);
+                triggerClean();
+            } while (backingSize() > 2 && System.currentTimeMillis() < deadline);
             assertThat(map.get(key3), is(value3));
             assertThat(map.getIfPresent(key3), is(value3));
             assertThat(map.get(key4), is(value4));
             assertThat(map.approximateSize(), is(2));
-            assertThat(map.target.size(), is(2));
+            assertThat(backingSize(), is(2));
             assertThat(map.remove(key3), is(value3));
             assertThat(map.get(key3), nullValue());
             assertThat(map.getIfPresent(key3), nullValue());
             assertThat(map.get(key4), is(value4));
             assertThat(map.approximateSize(), is(1));
-            assertThat(map.target.size(), is(1));
+            assertThat(backingSize(), is(1));
             map.clear();
             assertThat(map.get(key3), nullValue());
             assertThat(map.get(key4), nullValue());
             assertThat(map.approximateSize(), is(0));
-            assertThat(map.target.size(), is(0));
+            assertThat(backingSize(), is(0));
             assertThat(map.iterator().hasNext(), is(false));
         }
 
         protected void triggerClean() { }
+
+        protected int backingSize() {
+            return map.target.size();
+        }
+    }
+
+    private static class TableMapTestCase extends MapTestCase {
+
+        private final WeakConcurrentMap<Object, Object> map;
+
+        TableMapTestCase(WeakConcurrentMap<Object, Object> map) {
+            super(map);
+            this.map = map;
+        }
+
+        @Override
+        protected int backingSize() {
+            return map.table.size();
+        }
     }
 }
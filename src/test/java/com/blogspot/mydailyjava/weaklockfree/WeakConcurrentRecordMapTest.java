@@ -0,0 +1,132 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentRecordMapTest {
+
+    @Test
+    public void testRecordOperations() {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(3, false);
+        assertThat(map.getFieldCount(), is(3));
+        Object key = new Object();
+        assertThat(map.get(key, 0), is(0L));
+        assertThat(map.containsKey(key), is(false));
+        assertThat(map.slotOf(key), is(-1));
+        map.set(key, 1, 42L);
+        assertThat(map.containsKey(key), is(true));
+        assertThat(map.get(key, 0), is(0L));
+        assertThat(map.get(key, 1), is(42L));
+        assertThat(map.get(key, 2), is(0L));
+        int slot = map.slotOf(key);
+        assertThat(map.slotOrCreate(key), is(slot));
+        map.putLong(slot, 2, Long.MIN_VALUE);
+        assertThat(map.getLong(slot, 2), is(Long.MIN_VALUE));
+        long[] values = new long[3];
+        assertThat(map.get(key, values), is(true));
+        assertThat(values[0], is(0L));
+        assertThat(values[1], is(42L));
+        assertThat(values[2], is(Long.MIN_VALUE));
+        assertThat(map.toString(), is("{" + key + "=[0, 42, " + Long.MIN_VALUE + "]}"));
+        assertThat(map.remove(key), is(true));
+        assertThat(map.remove(key), is(false));
+        assertThat(map.get(key, 1), is(0L));
+        assertThat(map.get(key, values), is(false));
+        assertThat(values[1], is(0L));
+        assertThat(map.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testRemovedSlotIsRecycled() {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(2, false);
+        Object key = new Object(), other = new Object();
+        map.set(key, 0, 1L);
+        map.set(key, 1, 2L);
+        int slot = map.slotOf(key);
+        map.remove(key);
+        assertThat(map.slotOrCreate(other), is(slot));
+        assertThat(map.get(other, 0), is(0L));
+        assertThat(map.get(other, 1), is(0L));
+    }
+
+    @Test
+    public void testCollectedSlotIsRecycled() throws Exception {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(1, false);
+        Set<Integer> slots = new HashSet<Integer>();
+        for (int index = 0; index < 10; index++) {
+            Object key = new Object();
+            map.set(key, 0, index + 1L);
+            slots.add(map.slotOf(key));
+        }
+        System.gc();
+        Thread.sleep(200L);
+        map.expungeStaleEntries();
+        assertThat(map.approximateSize(), is(0));
+        for (int index = 0; index < 10; index++) {
+            Object key = new Object();
+            assertThat(slots.remove(map.slotOrCreate(key)), is(true));
+            assertThat(map.get(key, 0), is(0L));
+        }
+    }
+
+    @Test
+    public void testClearRecyclesSlots() {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(1, false);
+        Object[] keys = new Object[5000];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new Object();
+            map.set(keys[index], 0, index);
+        }
+        long allocated = map.getAllocatedBytes();
+        map.clear();
+        assertThat(map.approximateSize(), is(0));
+        for (Object key : keys) {
+            assertThat(map.containsKey(key), is(false));
+            map.set(key, 0, 1L);
+        }
+        assertThat(map.getAllocatedBytes(), is(allocated));
+    }
+
+    @Test
+    public void testClearedSlotIsReassigned() {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(1, false);
+        Object key = new Object(), other = new Object();
+        int slot = map.slotOrCreate(key);
+        map.clear();
+        assertThat(map.slotOrCreate(other), is(slot));
+        map.putLong(slot, 0, 42L); // an update by a slot that was resolved before clearing the map
+        assertThat(map.get(other, 0), is(42L));
+        assertThat(map.get(key, 0), is(0L));
+    }
+
+    @Test
+    public void testInternalThread() throws Exception {
+        WeakConcurrentRecordMap<Object> map = new WeakConcurrentRecordMap<Object>(1, true);
+        assertThat(map.getCleanerThread(), not(nullValue(Thread.class)));
+        map.set(new Object(), 0, 1L);
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(map.approximateSize(), is(0));
+        map.close();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIllegalField() {
+        new WeakConcurrentRecordMap<Object>(2, false).set(new Object(), 2, 0L);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIllegalSlot() {
+        new WeakConcurrentRecordMap<Object>(2, false).getLong(0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalFieldCount() {
+        new WeakConcurrentRecordMap<Object>(0, false);
+    }
+}
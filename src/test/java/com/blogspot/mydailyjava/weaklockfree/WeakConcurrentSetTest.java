@@ -2,9 +2,16 @@ package com.blogspot.mydailyjava.weaklockfree;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -18,7 +25,7 @@ public class WeakConcurrentSetTest {
         new SetTestCase(set) {
             @Override
             protected void triggerClean() {
-                set.target.expungeStaleEntries();
+                set.expungeStaleEntries();
             }
         }.doTest();
     }
@@ -45,6 +52,108 @@ public class WeakConcurrentSetTest {
         assertThat(set.getCleanerThread().isAlive(), is(false));
     }
 
+    @Test
+    public void testSharedCleaner() throws Exception {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.SHARED);
+        assertThat(set.getCleanerThread(), nullValue(Thread.class));
+        new SetTestCase(set).doTest();
+        set.close();
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.INLINE);
+        final Object value1 = new Object(), value2 = new Object(), value3 = new Object();
+        assertThat(set.addAll(Arrays.asList(value1, value2)), is(2));
+        assertThat(set.addAll(Arrays.asList(value2, value3)), is(1));
+        assertThat(set.removeAll(Arrays.asList(value3, new Object())), is(1));
+        assertThat(set.removeIf(new WeakConcurrentSet.ElementPredicate<Object>() {
+            @Override
+            public boolean test(Object value) {
+                return value == value1;
+            }
+        }), is(1));
+        assertThat(set.contains(value1), is(false));
+        assertThat(set.contains(value2), is(true));
+        assertThat(set.approximateSize(), is(1));
+    }
+
+    @Test
+    public void testParallelTraversal() throws Exception {
+        WeakConcurrentSet<Integer> set = new WeakConcurrentSet<Integer>(WeakConcurrentSet.Cleaner.MANUAL);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int index = 0; index < 1000; index++) {
+            values.add(index);
+        }
+        set.addAll(values);
+        final Set<Integer> visited = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        set.forEach(1L, new WeakConcurrentSet.ElementConsumer<Integer>() {
+            @Override
+            public void accept(Integer value) {
+                visited.add(value);
+            }
+        });
+        assertThat(visited, is((Set<Integer>) new HashSet<Integer>(values)));
+        assertThat(set.reduce(1L, new WeakConcurrentSet.ElementFunction<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer value) {
+                return value;
+            }
+        }, new AbstractWeakConcurrentMap.Reducer<Integer>() {
+            @Override
+            public Integer reduce(Integer left, Integer right) {
+                return Math.max(left, right);
+            }
+        }), is(999));
+        final Set<Integer> split = new HashSet<Integer>();
+        Spliterator<Integer> spliterator = WeakSpliterators.spliterator(set);
+        spliterator.trySplit().forEachRemaining(new Consumer<Integer>() {
+            @Override
+            public void accept(Integer value) {
+                split.add(value);
+            }
+        });
+        while (spliterator.tryAdvance(new Consumer<Integer>() {
+            @Override
+            public void accept(Integer value) {
+                split.add(value);
+            }
+        })) {
+            /* empty */
+        }
+        assertThat(split, is(visited));
+    }
+
+    @Test
+    public void testStatistics() {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.MANUAL, new StripedStatisticsCounter());
+        Object value = new Object();
+        assertThat(set.add(value), is(true));
+        assertThat(set.contains(value), is(true));
+        assertThat(set.remove(value), is(true));
+        assertThat(set.getStatistics().getPutCount(), is(1L));
+        assertThat(set.getStatistics().getRemovalCount(), is(1L));
+    }
+
+    @Test
+    public void testStatisticsWithoutStaleElements() {
+        final AtomicInteger recordings = new AtomicInteger();
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.INLINE, new StripedStatisticsCounter() {
+            @Override
+            public void recordExpunctions(int count) {
+                recordings.incrementAndGet();
+                super.recordExpunctions(count);
+            }
+        });
+        Object value = new Object();
+        assertThat(set.add(value), is(true));
+        assertThat(set.contains(value), is(true));
+        set.expungeStaleEntries();
+        assertThat(set.expungeStaleEntries(16), is(0));
+        assertThat(recordings.get(), is(0));
+        assertThat(set.getStatistics().getDrainCount(), is(0L));
+    }
+
     private class SetTestCase {
 
         private final WeakConcurrentSet<Object> set;
@@ -75,17 +184,17 @@ public class WeakConcurrentSetTest {
             assertThat(set.contains(value3), is(true));
             assertThat(set.contains(value4), is(true));
             assertThat(set.approximateSize(), is(2));
-            assertThat(set.target.target.size(), is(2));
+            assertThat(set.table.size(), is(2));
             assertThat(set.remove(value3), is(true));
             assertThat(set.contains(value3), is(false));
             assertThat(set.contains(value4), is(true));
             assertThat(set.approximateSize(), is(1));
-            assertThat(set.target.target.size(), is(1));
+            assertThat(set.table.size(), is(1));
             set.clear();
             assertThat(set.contains(value3), is(false));
             assertThat(set.contains(value4), is(false));
             assertThat(set.approximateSize(), is(0));
-            assertThat(set.target.target.size(), is(0));
+            assertThat(set.table.size(), is(0));
             assertThat(set.iterator().hasNext(), is(false));
         }
 
@@ -106,4 +215,52 @@ public class WeakConcurrentSetTest {
         assertThat(set.contains(obj), is(false));
         assertThat(set.remove(obj), is(false));
     }
+
+    @Test
+    public void testStaleBacklog() throws Exception {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.MANUAL);
+        Object value = new Object();
+        set.add(value);
+        set.add(new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(set.approximateSize(), is(2));
+        assertThat(set.approximateStaleBacklog(), is(1));
+        assertThat(set.table.size(), is(2));
+        set.expungeStaleEntries();
+        assertThat(set.approximateSize(), is(1));
+        assertThat(set.approximateStaleBacklog(), is(0));
+        assertThat(set.table.size(), is(1));
+    }
+
+    @Test
+    public void testStaleBacklogEstimate() throws Exception {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.MANUAL);
+        Object[] values = new Object[10000];
+        for (int index = 0; index < values.length; index++) {
+            values[index] = new Object();
+            set.add(values[index]);
+            set.add(new Object());
+        }
+        System.gc();
+        Thread.sleep(200L);
+        for (int index = 0; index < 10; index++) {
+            int backlog = set.approximateStaleBacklog();
+            assertThat(backlog > 7500 && backlog < 12500, is(true));
+        }
+        assertThat(set.approximateSize(), is(20000));
+        assertThat(set.expungeStaleEntries(Integer.MAX_VALUE), is(10000));
+        assertThat(set.approximateSize(), is(values.length));
+    }
+
+    @Test
+    public void testIdleCleanerThreadBlocks() throws Exception {
+        WeakConcurrentSet<Object> set = new WeakConcurrentSet<Object>(WeakConcurrentSet.Cleaner.THREAD);
+        set.add(new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(set.approximateStaleBacklog(), is(0));
+        assertThat(set.getCleanerThread().getState(), is(Thread.State.WAITING));
+        set.getCleanerThread().interrupt();
+    }
 }
@@ -0,0 +1,154 @@
+package com.blogspot.mydailyjava.weaklockfree;
+
+import org.junit.Test;
+
+import java.lang.ref.Reference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WeakConcurrentTableTest {
+
+    @Test
+    public void testColumns() {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(2, false);
+        WeakConcurrentTable.Column<Object, String> names = table.newColumn();
+        WeakConcurrentTable.Column<Object, Integer> counts = table.newColumn();
+        assertThat(table.getColumnCount(), is(2));
+        assertThat(names.getIndex(), is(0));
+        assertThat(counts.getIndex(), is(1));
+        Object key = new Object();
+        assertThat(names.get(key), nullValue());
+        assertThat(names.set(key, null), nullValue());
+        assertThat(table.containsKey(key), is(false));
+        assertThat(names.set(key, "foo"), nullValue());
+        assertThat(table.containsKey(key), is(true));
+        assertThat(names.get(key), is("foo"));
+        assertThat(counts.get(key), nullValue());
+        assertThat(names.set(key, "bar"), is("foo"));
+        assertThat(table.toString(), is("{" + key + "=[bar, null]}"));
+        assertThat(table.approximateSize(), is(1));
+        assertThat(table.remove(key), is(true));
+        assertThat(names.get(key), nullValue());
+        assertThat(table.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testCompareAndSet() {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(1, false);
+        WeakConcurrentTable.Column<Object, Integer> counts = table.newColumn();
+        Object key = new Object();
+        Integer first = 1, second = 2;
+        assertThat(counts.compareAndSet(key, first, second), is(false));
+        assertThat(table.containsKey(key), is(false));
+        assertThat(counts.compareAndSet(key, null, first), is(true));
+        assertThat(counts.compareAndSet(key, null, second), is(false));
+        assertThat(counts.compareAndSet(key, first, second), is(true));
+        assertThat(counts.get(key), is(second));
+    }
+
+    @Test
+    public void testRows() {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(2, false);
+        WeakConcurrentTable.Column<Object, String> names = table.newColumn(), descriptions = table.newColumn();
+        Object key = new Object();
+        assertThat(table.rowOf(key), nullValue());
+        WeakConcurrentTable.Row<Object> row = table.rowOrCreate(key);
+        assertThat(table.rowOf(key), sameInstance(row));
+        assertThat(table.rowOrCreate(key), sameInstance(row));
+        names.set(row, "foo");
+        descriptions.set(row, "bar");
+        assertThat(names.compareAndSet(row, "foo", "qux"), is(true));
+        assertThat(names.get(key), is("qux"));
+        assertThat(descriptions.get(key), is("bar"));
+        assertThat(row, not(instanceOf(Reference.class)));
+    }
+
+    @Test
+    public void testRowDoesNotRetainKey() throws Exception {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(1, false);
+        WeakConcurrentTable.Column<Object, String> names = table.newColumn();
+        WeakConcurrentTable.Row<Object> row = table.rowOrCreate(new Object());
+        names.set(row, "foo");
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(table.expungeStaleEntries(Integer.MAX_VALUE), is(1));
+        assertThat(table.approximateSize(), is(0));
+        assertThat(names.get(row), is("foo"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTooManyColumns() {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(1, false);
+        table.newColumn();
+        table.newColumn();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoColumns() {
+        new WeakConcurrentTable<Object>(0, false);
+    }
+
+    @Test
+    public void testSingleExpunctionPerKey() throws Exception {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(3, false);
+        WeakConcurrentTable.Column<Object, Object> first = table.newColumn(), second = table.newColumn(), third = table.newColumn();
+        for (int index = 0; index < 10; index++) {
+            Object key = new Object();
+            first.set(key, index);
+            second.set(key, index);
+            third.set(key, index);
+        }
+        assertThat(table.approximateSize(), is(10));
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(table.expungeStaleEntries(Integer.MAX_VALUE), is(10));
+        assertThat(table.approximateSize(), is(0));
+    }
+
+    @Test
+    public void testInternalThread() throws Exception {
+        WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(1, true);
+        assertThat(table.getCleanerThread(), not(nullValue(Thread.class)));
+        WeakConcurrentTable.Column<Object, Object> column = table.newColumn();
+        column.set(new Object(), new Object());
+        System.gc();
+        Thread.sleep(200L);
+        assertThat(table.approximateSize(), is(0));
+        table.close();
+    }
+
+    @Test
+    public void testConcurrentRowCreation() throws Exception {
+        final WeakConcurrentTable<Object> table = new WeakConcurrentTable<Object>(1, false);
+        final WeakConcurrentTable.Column<Object, Object> column = table.newColumn();
+        final Object key = new Object();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger successes = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException exception) {
+                        throw new AssertionError(exception);
+                    }
+                    if (column.compareAndSet(key, null, this)) {
+                        successes.incrementAndGet();
+                    }
+                }
+            };
+            threads[index].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(successes.get(), is(1));
+        assertThat(table.approximateSize(), is(1));
+    }
+}